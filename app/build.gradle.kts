@@ -38,6 +38,10 @@ android {
         sourceCompatibility = JavaVersion.VERSION_1_8
         targetCompatibility = JavaVersion.VERSION_1_8
     }
+    testOptions {
+        // Lets the connectivity services run against FakeAsteroidDevice on a plain JVM
+        unitTests.isReturnDefaultValues = true
+    }
     lint {
         checkReleaseBuilds = true
         disable += "MissingTranslation"
@@ -8,7 +8,6 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.location.LocationManager;
@@ -17,11 +16,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
-import android.os.Messenger;
 import android.os.ParcelUuid;
-import android.os.RemoteException;
-import android.provider.Settings;
 import android.util.Log;
 import android.view.MenuItem;
 
@@ -41,13 +36,16 @@ import org.asteroidos.sync.fragments.AppListFragment;
 import org.asteroidos.sync.fragments.DeviceDetailFragment;
 import org.asteroidos.sync.fragments.DeviceListFragment;
 import org.asteroidos.sync.fragments.WeatherSettingsFragment;
+import org.asteroidos.sync.services.ISyncStateListener;
 import org.asteroidos.sync.services.SynchronizationService;
 import org.asteroidos.sync.utils.AppInfo;
 import org.asteroidos.sync.utils.AppInfoHelper;
 import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.Settings;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import no.nordicsemi.android.support.v18.scanner.BluetoothLeScannerCompat;
 import no.nordicsemi.android.support.v18.scanner.ScanCallback;
@@ -60,32 +58,41 @@ import static android.os.ParcelUuid.fromString;
 public class MainActivity extends AppCompatActivity implements DeviceListFragment.OnDefaultDeviceSelectedListener,
         DeviceListFragment.OnScanRequestedListener, DeviceDetailFragment.OnDefaultDeviceUnselectedListener,
         DeviceDetailFragment.OnConnectRequestedListener, DeviceDetailFragment.OnAppSettingsClickedListener,
-        DeviceDetailFragment.OnWeatherSettingsClickedListener, DeviceDetailFragment.OnUpdateListener {
+        DeviceDetailFragment.OnWeatherSettingsClickedListener, DeviceDetailFragment.SyncStateSource {
 
     public static final String PREFS_NAME = "MainPreferences";
     public static final String PREFS_DEFAULT_MAC_ADDR = "defaultMacAddress";
     public static final String PREFS_DEFAULT_LOC_NAME = "defaultLocalName";
+    /* All paired watches, the default one included */
+    public static final String PREFS_WATCH_MAC_ADDRS = "watchMacAddresses";
+    public static final Settings.Key<String> DEFAULT_MAC_ADDR = Settings.Key.string(PREFS_NAME, PREFS_DEFAULT_MAC_ADDR, "");
+    public static final Settings.Key<String> DEFAULT_LOC_NAME = Settings.Key.string(PREFS_NAME, PREFS_DEFAULT_LOC_NAME, "");
+    public static final Settings.Key<Set<String>> WATCH_MAC_ADDRS = Settings.Key.stringSet(PREFS_NAME, PREFS_WATCH_MAC_ADDRS);
     private static final String TAG = "MainActivity";
     public static ArrayList<AppInfo> appInfoList;
-    final Messenger mDeviceDetailMessenger = new Messenger(new MainActivity.SynchronizationHandler(this));
     public ParcelUuid asteroidUUID = fromString(AsteroidUUIDS.SERVICE_UUID.toString());
-    Messenger mSyncServiceMessenger;
+    SynchronizationService.LocalBinder mSyncService;
     ActivityResultLauncher<Intent> mLocationEnableActivityLauncher;
     LocationManager mLocationManager;
+    IAsteroidDevice.ConnectionState mStatus = IAsteroidDevice.ConnectionState.STATUS_DISCONNECTED;
+    private final ISyncStateListener mStateListener = state -> mStatus = state.state;
+    /* Subscribers of the synchronization service, kept across rebinds */
+    private final ArrayList<ISyncStateListener> mStateSubscribers = new ArrayList<>();
     /* Synchronization service events handling */
     private final ServiceConnection mConnection = new ServiceConnection() {
         public void onServiceConnected(ComponentName className,
                                        IBinder service) {
-            mSyncServiceMessenger = new Messenger(service);
-            onUpdateRequested();
+            mSyncService = (SynchronizationService.LocalBinder) service;
+            mSyncService.subscribe(mStateListener);
+            for (ISyncStateListener listener : mStateSubscribers)
+                mSyncService.subscribe(listener);
         }
 
         public void onServiceDisconnected(ComponentName className) {
-            mSyncServiceMessenger = null;
+            mSyncService = null;
         }
     };
     Intent mSyncServiceIntent;
-    IAsteroidDevice.ConnectionState mStatus = IAsteroidDevice.ConnectionState.STATUS_DISCONNECTED;
     ScanSettings mSettings;
     List<ScanFilter> mFilters;
     private DeviceListFragment mListFragment;
@@ -109,7 +116,7 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
     private DeviceDetailFragment mDetailFragment;
     private Fragment mPreviousFragment;
     private BluetoothLeScannerCompat mScanner;
-    private SharedPreferences mPrefs;
+    private Settings mPrefs;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -118,8 +125,8 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
 
         mScanner = BluetoothLeScannerCompat.getScanner();
 
-        mPrefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        String defaultDevMacAddr = mPrefs.getString(PREFS_DEFAULT_MAC_ADDR, "");
+        mPrefs = Settings.get(this);
+        String defaultDevMacAddr = mPrefs.get(DEFAULT_MAC_ADDR);
 
         Thread appInfoRetrieval = new Thread(new Runnable() {
             public void run() {
@@ -154,7 +161,7 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
                 f = mListFragment = new DeviceListFragment();
                 onScanRequested();
             } else {
-                setTitle(mPrefs.getString(PREFS_DEFAULT_LOC_NAME, ""));
+                setTitle(mPrefs.get(DEFAULT_LOC_NAME));
                 f = mDetailFragment = new DeviceDetailFragment();
             }
 
@@ -164,6 +171,13 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
         }
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // The process may be killed in the background before the pending settings are written
+        mPrefs.flush();
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
@@ -186,13 +200,8 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
                 .replace(R.id.flContainer, mDetailFragment)
                 .commit();
 
-        try {
-            Message msg = Message.obtain(null, SynchronizationService.MSG_SET_DEVICE);
-            msg.obj = mDevice;
-            msg.replyTo = mDeviceDetailMessenger;
-            mSyncServiceMessenger.send(msg);
-        } catch (RemoteException ignored) {
-        }
+        if (mSyncService != null)
+            mSyncService.setDevice(mDevice);
 
         onConnectRequested();
 
@@ -209,49 +218,61 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
                 .replace(R.id.flContainer, mListFragment)
                 .commit();
 
-        try {
-            Message msg = Message.obtain(null, SynchronizationService.MSG_UNSET_DEVICE);
-            msg.obj = "";
-            msg.replyTo = mDeviceDetailMessenger;
-            mSyncServiceMessenger.send(msg);
-        } catch (RemoteException ignored) {
-        }
+        if (mSyncService != null)
+            mSyncService.unsetDevice();
 
         mDetailFragment = null;
         setTitle(R.string.app_name);
     }
 
+    /* Shows the device list without unpairing the current watch, the selected one is paired next to it */
+    @Override
+    public void onAddDeviceRequested() {
+        onScanRequested();
+        mListFragment = new DeviceListFragment();
+
+        getSupportFragmentManager()
+                .beginTransaction()
+                .replace(R.id.flContainer, mListFragment)
+                .commit();
+
+        mDetailFragment = null;
+        setTitle(R.string.app_name);
+    }
+
+    @Override
+    public void subscribe(ISyncStateListener listener) {
+        if (mStateSubscribers.contains(listener)) return;
+        mStateSubscribers.add(listener);
+        if (mSyncService != null)
+            mSyncService.subscribe(listener);
+    }
+
+    @Override
+    public void unsubscribe(ISyncStateListener listener) {
+        mStateSubscribers.remove(listener);
+        if (mSyncService != null)
+            mSyncService.unsubscribe(listener);
+    }
+
     @Override
     public void onUpdateRequested() {
-        try {
-            Message msg = Message.obtain(null, SynchronizationService.MSG_UPDATE);
-            msg.replyTo = mDeviceDetailMessenger;
-            if (mSyncServiceMessenger != null)
-                mSyncServiceMessenger.send(msg);
-        } catch (RemoteException ignored) {
-        }
+        if (mSyncService != null)
+            mSyncService.refresh();
     }
 
     @Override
     public void onConnectRequested() {
         if (mScanner != null)
             mScanner.stopScan(scanCallback);
-        try {
-            Message msg = Message.obtain(null, SynchronizationService.MSG_CONNECT);
-            msg.replyTo = mDeviceDetailMessenger;
-            mSyncServiceMessenger.send(msg);
-        } catch (RemoteException ignored) {
-        }
+        if (mSyncService != null)
+            mSyncService.connect();
     }
 
     @Override
     public void onDisconnectRequested() {
-        try {
-            Message msg = Message.obtain(null, SynchronizationService.MSG_DISCONNECT);
-            msg.replyTo = mDeviceDetailMessenger;
-            mSyncServiceMessenger.send(msg);
-        } catch (RemoteException ignored) {
-        }
+        if (mSyncService != null)
+            mSyncService.disconnect();
     }
 
     @Override
@@ -267,7 +288,7 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
         FragmentManager fm = getSupportFragmentManager();
         if (fm.getBackStackEntryCount() > 0) {
             fm.popBackStack();
-            setTitle(mPrefs.getString(PREFS_DEFAULT_LOC_NAME, ""));
+            setTitle(mPrefs.get(DEFAULT_LOC_NAME));
             ActionBar ab = getSupportActionBar();
             if (ab != null)
                 ab.setDisplayHomeAsUpEnabled(false);
@@ -331,31 +352,6 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
             ab.setDisplayHomeAsUpEnabled(true);
     }
 
-    private void handleSetLocalName(String name) {
-        if (mDetailFragment != null)
-            mDetailFragment.setLocalName(name);
-    }
-
-    private void handleSetStatus(IAsteroidDevice.ConnectionState status) {
-        if (mDetailFragment != null) {
-            mDetailFragment.setStatus(status);
-            mStatus = status;
-        }
-        if (status == IAsteroidDevice.ConnectionState.STATUS_CONNECTED) {
-            try {
-                Message msg = Message.obtain(null, SynchronizationService.MSG_REQUEST_BATTERY_LIFE);
-                msg.replyTo = mDeviceDetailMessenger;
-                mSyncServiceMessenger.send(msg);
-            } catch (RemoteException ignored) {
-            }
-        }
-    }
-
-    private void handleSetBatteryPercentage(int percentage) {
-        if (mDetailFragment != null)
-            mDetailFragment.setBatteryPercentage(percentage);
-    }
-
     @Override
     public void onScanRequested() {
         btEnableAndScan();
@@ -384,7 +380,7 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
             builder.setTitle(R.string.location_disabled_title);
             builder.setMessage(R.string.location_disabled_message);
             builder.setPositiveButton(android.R.string.yes, (dialogInterface, i) -> {
-                Intent intent = new Intent(Settings.ACTION_LOCATION_SOURCE_SETTINGS);
+                Intent intent = new Intent(android.provider.Settings.ACTION_LOCATION_SOURCE_SETTINGS);
                 mLocationEnableActivityLauncher.launch(intent);
 
             });
@@ -414,6 +410,13 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
     @Override
     protected void onPause() {
         super.onPause();
+        if (mSyncService != null) {
+            // The service outlives the activity, its subscribers must not
+            mSyncService.unsubscribe(mStateListener);
+            for (ISyncStateListener listener : mStateSubscribers)
+                mSyncService.unsubscribe(listener);
+            mSyncService = null;
+        }
         unbindService(mConnection);
     }
 
@@ -435,29 +438,4 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
         overridePendingTransition(0, 0);
         startActivity(getIntent());
     }
-
-    static private class SynchronizationHandler extends Handler {
-        private final MainActivity mActivity;
-
-        SynchronizationHandler(MainActivity activity) {
-            mActivity = activity;
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            switch (msg.what) {
-                case SynchronizationService.MSG_SET_LOCAL_NAME:
-                    mActivity.handleSetLocalName((String) msg.obj);
-                    break;
-                case SynchronizationService.MSG_SET_STATUS:
-                    mActivity.handleSetStatus((IAsteroidDevice.ConnectionState) msg.obj);
-                    break;
-                case SynchronizationService.MSG_SET_BATTERY_PERCENTAGE:
-                    mActivity.handleSetBatteryPercentage(msg.arg1);
-                    break;
-                default:
-                    super.handleMessage(msg);
-            }
-        }
-    }
 }
@@ -1,11 +1,12 @@
 package org.asteroidos.sync;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
+import org.asteroidos.sync.utils.Settings;
+
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -45,19 +46,16 @@ public class NotificationPreferences {
     private static final String PREFS_NAME = "NotificationPreferences";
     private static final String PREFS_NOTIFICATIONS = "notifications";
     private static final String PREFS_SEEN_PACKAGES = "seenPackages";
+    private static final Settings.Key<String> NOTIFICATIONS = Settings.Key.string(PREFS_NAME, PREFS_NOTIFICATIONS, "{}");
+    private static final Settings.Key<String> SEEN_PACKAGES = Settings.Key.string(PREFS_NAME, PREFS_SEEN_PACKAGES, "[]");
 
     private static Map<String, NotificationOption> getOptionMap(Context context) {
-        SharedPreferences prefs = getPrefs(context);
-        String notificationPrefsAsString = prefs.getString(PREFS_NOTIFICATIONS, "{}");
+        String notificationPrefsAsString = Settings.get(context).get(NOTIFICATIONS);
         Gson gson = new Gson();
         Type notificationPrefs = new TypeToken<Map<String, NotificationOption>>(){}.getType();
         return gson.fromJson(notificationPrefsAsString, notificationPrefs);
     }
 
-    private static SharedPreferences getPrefs(Context context) {
-        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-    }
-
     public static NotificationOption getNotificationPreferenceForApp(Context context, String packageName) {
         NotificationOption value = getOptionMap(context).get(packageName);
         return value == null ? NotificationOption.DEFAULT : value;
@@ -72,14 +70,12 @@ public class NotificationPreferences {
             return;
 
         map.put(packageName, option);
-        SharedPreferences.Editor editor = getPrefs(context).edit();
         String jsonString = new Gson().toJson(map);
-        editor.putString(PREFS_NOTIFICATIONS, jsonString);
-        editor.apply();
+        Settings.get(context).set(NOTIFICATIONS, jsonString);
     }
 
     public static List<String> seenPackageNames(Context context) {
-        String asString = getPrefs(context).getString(PREFS_SEEN_PACKAGES, "[]");
+        String asString = Settings.get(context).get(SEEN_PACKAGES);
         String[] asArray = new Gson().fromJson(asString, String[].class);
         return Arrays.asList(asArray);
     }
@@ -91,8 +87,6 @@ public class NotificationPreferences {
         ArrayList<String> array = new ArrayList<>(list);
         array.add(packageName);
 
-        SharedPreferences.Editor editor = getPrefs(context).edit();
-        editor.putString(PREFS_SEEN_PACKAGES, new Gson().toJson(array));
-        editor.apply();
+        Settings.get(context).set(SEEN_PACKAGES, new Gson().toJson(array));
     }
 }
@@ -1,11 +1,15 @@
 package org.asteroidos.sync.asteroid;
 
 import android.Manifest;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -16,35 +20,521 @@ import org.asteroidos.sync.connectivity.IConnectivityService;
 import org.asteroidos.sync.connectivity.IServiceCallback;
 import org.asteroidos.sync.services.SynchronizationService;
 import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.PayloadCompressor;
+import org.asteroidos.sync.utils.PayloadUtils;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.UUID;
 
 import no.nordicsemi.android.ble.BleManager;
+import no.nordicsemi.android.ble.RequestQueue;
 import no.nordicsemi.android.ble.data.Data;
 
 public class AsteroidBleManager extends BleManager {
     public static final String TAG = AsteroidBleManager.class.toString();
+
     @Nullable
     public BluetoothGattCharacteristic batteryCharacteristic;
+    /* Present if the watch reports its capabilities */
+    @Nullable
+    private BluetoothGattCharacteristic mCapabilitiesCharacteristic;
+    /* Present if the watch grants credits for pipelined writes */
+    @Nullable
+    private volatile BluetoothGattCharacteristic mCreditsCharacteristic;
     SynchronizationService mSynchronizationService;
     ArrayList<BluetoothGattService> mGattServices;
-    public HashMap<UUID, IServiceCallback> recvCallbacks;
-    public HashMap<UUID, BluetoothGattCharacteristic> sendingCharacteristics;
+    /* Registered from the sync looper, read on the GATT callback thread */
+    public final ConcurrentHashMap<UUID, IServiceCallback> recvCallbacks;
+    private final HashMap<UUID, AsteroidChannel> mChannels;
+    /* Owning service of every characteristic the watch notifies us about */
+    private final HashMap<UUID, UUID> mInboundRoutes;
+    /* Inbound characteristics resolved at discovery, notifications get enabled on them in initialize() */
+    private final HashMap<UUID, BluetoothGattCharacteristic> mInboundCharacteristics;
+    private final GattLayoutCache mLayoutCache;
+    private long mLinkConnectingAt = 0;
+    private long mLinkConnectedAt = 0;
+    private volatile long mLinkReadyAt = 0;
+    @Nullable
+    private BluetoothGatt mGatt;
+    private final String mMacAddress;
+    private String mLayout;
+    /* The watch exposes the cached layout, the MTU negotiated on it last time applies until the exchange */
+    private boolean mLayoutCached = false;
+    private int mPendingNotificationSetups = 0;
+    /* initialize() enabled the notifications resolved so far, later services enable their own */
+    private boolean mNotificationsInitialized = false;
+    private final TransportMetrics mMetrics;
+    private final WriteScheduler mWriteScheduler;
+    private final InboundDispatcher mInboundDispatcher;
+    private final WritePipeline mPipeline;
+    private final PayloadCompressor mCompressor;
+    private final boolean mDebuggable;
+    private final OutboundJournal mJournal;
+    private final ConnectionPriorityController mPriorityController;
+    /* Batch opened by beginBatch() on the calling thread */
+    private final ThreadLocal<WriteScheduler.Batch> mBatch = new ThreadLocal<>();
+    private int mMtu = PayloadUtils.DEFAULT_MTU;
+    /* Last reported by the watch, kept across connections for the writes journaled meanwhile */
+    private volatile WatchCapabilities mCapabilities;
 
-    public AsteroidBleManager(@NonNull final Context context, SynchronizationService syncService) {
+    public AsteroidBleManager(@NonNull final Context context, SynchronizationService syncService, String macAddress) {
         super(context);
         mSynchronizationService = syncService;
+        mMacAddress = macAddress;
         mGattServices = new ArrayList<>();
-        recvCallbacks = new HashMap<>();
+        recvCallbacks = new ConcurrentHashMap<>();
+        mChannels = new HashMap<>();
+        mInboundRoutes = new HashMap<>();
+        mInboundCharacteristics = new HashMap<>();
+        mMetrics = new TransportMetrics();
+        mWriteScheduler = new WriteScheduler(this::dispatchWrite, mMetrics);
+        mInboundDispatcher = new InboundDispatcher(mMetrics);
+        mPipeline = new WritePipeline();
+        mCompressor = new PayloadCompressor();
+        mDebuggable = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        mLayoutCache = new GattLayoutCache(context);
+        mCapabilities = mLayoutCache.getCapabilities(macAddress);
+        mJournal = new OutboundJournal(new File(context.getFilesDir(), "outbound_journal_" + macAddress.replace(":", "")));
+        mPriorityController = new ConnectionPriorityController(priority ->
+                requestConnectionPriority(priority)
+                        .fail((device, status) -> Log.w(TAG, "Connection priority " + priority + " rejected: " + status))
+                        .enqueue());
+    }
+
+    /**
+     * @return the channel writing to characteristic, the same instance for every call
+     */
+    public final synchronized IChannel openChannel(UUID characteristic) {
+        return channel(characteristic);
+    }
+
+    private AsteroidChannel channel(UUID characteristic) {
+        AsteroidChannel channel = mChannels.get(characteristic);
+        if (channel == null) {
+            channel = new AsteroidChannel(characteristic, this::submit, mMetrics);
+            mChannels.put(characteristic, channel);
+        }
+        return channel;
+    }
+
+    private CompletableFuture<Void> submit(AsteroidChannel channel, byte[] data,
+                                           IAsteroidDevice.WritePriority priority, @Nullable String key) {
+        checkNotOnMainThread();
+        WriteScheduler.Batch batch = mBatch.get();
+        if (batch != null)
+            return mWriteScheduler.add(batch, channel, key, data, priority);
+        if (!isReady()) {
+            mJournal.append(channel.getCharacteristic(), key, data, priority);
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> future = mWriteScheduler.enqueue(channel, key, data, priority);
+        mPriorityController.onBacklog(mWriteScheduler.getPendingCount());
+        return future;
+    }
+
+    /**
+     * Groups the writes of the calling thread until the matching {@link #commitBatch()}, then
+     * sends them back to back without other writes in between. Batches nest, the outermost
+     * commit sends.
+     */
+    public final void beginBatch() {
+        checkNotOnMainThread();
+        WriteScheduler.Batch batch = mBatch.get();
+        if (batch == null) {
+            batch = new WriteScheduler.Batch();
+            mBatch.set(batch);
+        }
+        batch.depth++;
+    }
+
+    public final void commitBatch() {
+        WriteScheduler.Batch batch = mBatch.get();
+        if (batch == null || --batch.depth > 0) return;
+        mBatch.remove();
+        if (!isReady()) {
+            for (WriteScheduler.PendingWrite write : batch.writes) {
+                mJournal.append(write.channel.getCharacteristic(), write.key, write.data, write.priority);
+                write.complete(null);
+            }
+            return;
+        }
+        mWriteScheduler.commit(batch);
+        mPriorityController.onBacklog(mWriteScheduler.getPendingCount());
+    }
+
+    /**
+     * Services write from the sync looper. In debuggable builds, a write issued on the main
+     * thread is logged with its stack, like the StrictMode violations of that thread.
+     */
+    private void checkNotOnMainThread() {
+        if (!mDebuggable) return;
+        Looper looper = Looper.myLooper();
+        if (looper != null && looper == Looper.getMainLooper())
+            Log.w(TAG, "Write issued on the main thread", new Throwable());
+    }
+
+    /**
+     * Configures the channels of a newly registered service, so that its writes get the right
+     * priority, are coalesced and accounted for even before the watch has been discovered.
+     * Its inbound characteristics are added to the routing index, the first service declaring
+     * a characteristic owns it. If the watch is connected already, the service is resolved
+     * on the live connection. Its notifications are enabled here if initialize() has set up
+     * the others already, and left to initialize() otherwise.
+     */
+    public final void onServiceRegistered(IConnectivityService service) {
+        UUID serviceUUID = service.getServiceUUID();
+        IAsteroidDevice.WritePriority priority = IAsteroidDevice.WritePriority.forService(serviceUUID);
+        HashMap<UUID, BluetoothGattCharacteristic> inbound = new HashMap<>();
+        synchronized (this) {
+            service.getCharacteristicUUIDs().forEach((uuid, direction) -> {
+                mMetrics.bindCharacteristic(uuid, serviceUUID);
+                if (direction.isToWatch()) {
+                    channel(uuid).configure(priority, direction == IConnectivityService.Direction.TO_WATCH_COALESCED,
+                            service.getCompressibleCharacteristics().contains(uuid));
+                } else {
+                    UUID owner = mInboundRoutes.putIfAbsent(uuid, serviceUUID);
+                    if (owner != null && !owner.equals(serviceUUID))
+                        Log.w(TAG, uuid + " is already routed to " + owner + ", ignoring " + serviceUUID);
+                }
+            });
+            if (mGatt == null) return;
+            if (!resolve(mGatt, service, inbound)) return;
+            mLayout = GattLayoutCache.describe(mGatt, mSynchronizationService.getServices().keySet());
+            // Otherwise initialize() enables them along with the others
+            if (!mNotificationsInitialized) return;
+        }
+        for (Map.Entry<UUID, BluetoothGattCharacteristic> entry : inbound.entrySet())
+            if (routeNotifications(entry.getKey(), entry.getValue()))
+                enableNotificationsOnWatch(entry.getValue());
+        storeLayoutIfSetUp();
+        Log.i(TAG, "Attached " + serviceUUID + " to the live connection, " + inbound.size() + " inbound characteristics");
+    }
+
+    /**
+     * Releases the characteristics of a service that went away and disables its notifications
+     * on the live connection.
+     */
+    public final void onServiceUnregistered(IConnectivityService service) {
+        UUID serviceUUID = service.getServiceUUID();
+        List<BluetoothGattCharacteristic> detached = new ArrayList<>();
+        synchronized (this) {
+            service.getCharacteristicUUIDs().forEach((uuid, direction) -> {
+                if (direction.isToWatch()) {
+                    AsteroidChannel channel = mChannels.get(uuid);
+                    if (channel != null)
+                        channel.bind(null);
+                } else if (mInboundRoutes.remove(uuid, serviceUUID)) {
+                    BluetoothGattCharacteristic characteristic = mInboundCharacteristics.remove(uuid);
+                    if (characteristic != null)
+                        detached.add(characteristic);
+                }
+            });
+            if (mGatt == null) return;
+            mLayout = GattLayoutCache.describe(mGatt, mSynchronizationService.getServices().keySet());
+        }
+        for (BluetoothGattCharacteristic characteristic : detached) {
+            removeNotificationCallback(characteristic);
+            synchronized (this) {
+                mPendingNotificationSetups++;
+            }
+            disableNotifications(characteristic)
+                    .done(device -> onNotificationSetupDone())
+                    .fail((device, status) -> mLayoutCache.invalidate(mMacAddress))
+                    .enqueue();
+        }
+        storeLayoutIfSetUp();
+        Log.i(TAG, "Detached " + serviceUUID + " from the live connection");
+    }
+
+    /**
+     * Binds the channels of service to the characteristics found on the watch and collects its
+     * inbound characteristics, as far as it owns them, into inbound.
+     *
+     * @return false if the watch does not have the service
+     */
+    private boolean resolve(BluetoothGatt gatt, IConnectivityService service, Map<UUID, BluetoothGattCharacteristic> inbound) {
+        BluetoothGattService gattService = gatt.getService(service.getServiceUUID());
+        if (gattService == null) {
+            Log.w(TAG, "Service " + service.getServiceUUID() + " not found on the watch");
+            return false;
+        }
+        service.getCharacteristicUUIDs().forEach((uuid, direction) -> {
+            BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(uuid);
+            if (direction.isToWatch())
+                channel(uuid).bind(characteristic);
+            else if (characteristic != null && service.getServiceUUID().equals(mInboundRoutes.get(uuid)))
+                inbound.put(uuid, characteristic);
+        });
+        mInboundCharacteristics.putAll(inbound);
+        return true;
+    }
+
+    /**
+     * The connection phases, connecting, connected and ready, are timed to measure reconnects.
+     */
+    public final void onLinkConnecting() {
+        mLinkConnectingAt = SystemClock.elapsedRealtime();
+        mLinkConnectedAt = 0;
+    }
+
+    public final void onLinkConnected() {
+        mLinkConnectedAt = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records the phase timings of the connection and replays the writes journaled meanwhile.
+     */
+    public final void onLinkReady() {
+        if (mLinkConnectedAt != 0) {
+            long now = SystemClock.elapsedRealtime();
+            long connect = mLinkConnectingAt != 0 ? mLinkConnectedAt - mLinkConnectingAt : -1;
+            long setup = now - mLinkConnectedAt;
+            mLinkConnectingAt = 0;
+            mLinkConnectedAt = 0;
+            mLinkReadyAt = now;
+            mMetrics.onReady(connect, setup, mLayoutCached);
+            Log.i(TAG, "Connected in " + connect + " ms, ready " + setup + " ms later"
+                    + (mLayoutCached ? " (cached layout)" : ""));
+        }
+        drainJournal();
+    }
+
+    /**
+     * Records how long after the watch became ready all services were synced to it.
+     */
+    public final void onServicesSynced() {
+        long readyAt = mLinkReadyAt;
+        if (readyAt == 0) return;
+        mLinkReadyAt = 0;
+        long synced = SystemClock.elapsedRealtime() - readyAt;
+        mMetrics.onSynced(synced);
+        Log.i(TAG, "Services synced " + synced + " ms after ready");
+    }
+
+    /**
+     * Hands the writes issued while the watch was away to the write scheduler.
+     */
+    private void drainJournal() {
+        List<OutboundJournal.Entry> entries = mJournal.drain();
+        if (entries.isEmpty()) return;
+        Log.i(TAG, "Replaying " + entries.size() + " journaled writes");
+        for (OutboundJournal.Entry entry : entries) {
+            AsteroidChannel channel;
+            synchronized (this) {
+                channel = channel(entry.characteristic);
+            }
+            mWriteScheduler.enqueue(channel, entry.key, entry.data, entry.priority);
+        }
+        mPriorityController.onBacklog(mWriteScheduler.getPendingCount());
+    }
+
+    /**
+     * Empties the write scheduler once the link goes away. Writes of channels that are not
+     * coalesced would be lost for good, so they are journaled and replayed on the next
+     * connection like any write issued while the watch is away. Coalesced channels carry
+     * state their service sends again when it syncs.
+     */
+    private void clearWrites() {
+        int journaled = 0;
+        for (WriteScheduler.PendingWrite write : mWriteScheduler.clear()) {
+            if (write.channel.isCoalesced()) {
+                write.cancel(false);
+                continue;
+            }
+            mJournal.append(write.channel.getCharacteristic(), write.key, write.data, write.priority);
+            write.complete(null);
+            journaled++;
+        }
+        if (journaled > 0)
+            Log.i(TAG, "Journaled " + journaled + " writes the watch did not get");
+    }
+
+    /**
+     * Keeps the link at a short connection interval until the matching {@link #endBulkTransfer()}.
+     */
+    public final void beginBulkTransfer() {
+        mPriorityController.beginBulkTransfer();
+    }
+
+    public final void endBulkTransfer() {
+        mPriorityController.endBulkTransfer();
+    }
+
+    /**
+     * @param mode one of the ConnectionPriorityRequest.CONNECTION_PRIORITY_* constants
+     * @return milliseconds the link spent in that connection priority mode
+     */
+    public final long getTimeInConnectionPriority(int mode) {
+        return mPriorityController.getTimeInMode(mode);
+    }
+
+    /**
+     * @return what the watch reported on the current or, while it is away, the last connection
+     */
+    public final WatchCapabilities getCapabilities() {
+        return mCapabilities;
+    }
+
+    private void onCapabilities(WatchCapabilities capabilities) {
+        if (!capabilities.equals(mCapabilities))
+            Log.i(TAG, "Watch capabilities: " + capabilities);
+        mCapabilities = capabilities;
+        mLayoutCache.storeCapabilities(mMacAddress, capabilities);
+    }
+
+    public final TransportMetrics getMetrics() {
+        return mMetrics;
     }
 
-    public final void send(UUID characteristic, byte[] data) {
-        writeCharacteristic(sendingCharacteristics.get(characteristic), data,
-                Objects.requireNonNull(sendingCharacteristics.get(characteristic)).getWriteType()).enqueue();
+    /**
+     * @return the ATT MTU negotiated for the current connection, {@link PayloadUtils#DEFAULT_MTU} until then
+     */
+    public final int getNegotiatedMtu() {
+        return mMtu;
+    }
+
+    private void dispatchWrite(WriteScheduler.PendingWrite write) {
+        if (write.batch != null) {
+            dispatchBatch(write.batch);
+            return;
+        }
+        BluetoothGattCharacteristic characteristic = write.channel.getGattCharacteristic();
+        if (characteristic == null) {
+            Log.w(TAG, "No characteristic resolved for " + write.channel.getCharacteristic());
+            mWriteScheduler.onWriteComplete(write, false);
+            return;
+        }
+        byte[] data = encode(write);
+        if (isPipelined(characteristic, data)) {
+            streamWrite(write, characteristic, data);
+            return;
+        }
+        writeCharacteristic(characteristic, data, write.channel.getWriteType())
+                .done(device -> {
+                    mWriteScheduler.onWriteComplete(write, true);
+                    mPriorityController.onTraffic();
+                    mPriorityController.onBacklog(mWriteScheduler.getPendingCount());
+                })
+                .fail((device, status) -> mWriteScheduler.onWriteComplete(write, false))
+                .invalid(() -> mWriteScheduler.onWriteComplete(write, false))
+                .enqueue();
+    }
+
+    /**
+     * Deflates payloads of compressible channels that span several packets, if the watch
+     * supports it and the result is smaller.
+     *
+     * @return the bytes to put on the air for write
+     */
+    private byte[] encode(WriteScheduler.PendingWrite write) {
+        byte[] data = write.data;
+        if (!write.channel.isCompressed() || !mCapabilities.supportsCompression()
+                || data.length <= PayloadUtils.maxPayloadSize(mMtu))
+            return data;
+        long startedAt = System.nanoTime();
+        byte[] compressed;
+        synchronized (mCompressor) {
+            compressed = mCompressor.compress(data);
+        }
+        mMetrics.onCompressed(write.channel.getCharacteristic(), data.length,
+                compressed != null ? compressed.length : data.length, System.nanoTime() - startedAt);
+        return compressed != null ? compressed : data;
+    }
+
+    /**
+     * Payloads spanning several packets are pipelined if the watch grants credits and the
+     * characteristic accepts writes without response. After a stall they are written with
+     * response until the watch grants credits again.
+     */
+    private boolean isPipelined(BluetoothGattCharacteristic characteristic, byte[] data) {
+        int packetSize = PayloadUtils.maxPayloadSize(mMtu);
+        return mCreditsCharacteristic != null
+                && !mPipeline.isStalled()
+                && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0
+                && data.length > packetSize
+                && WritePipeline.fits(data, packetSize);
+    }
+
+    private void streamWrite(WriteScheduler.PendingWrite write, BluetoothGattCharacteristic characteristic, byte[] data) {
+        long startedAt = SystemClock.elapsedRealtime();
+        mPriorityController.beginBulkTransfer();
+        mPipeline.stream(data, PayloadUtils.maxPayloadSize(mMtu),
+                (packet, done) -> writeCharacteristic(characteristic, packet, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE)
+                        .done(device -> done.onComplete(true))
+                        .fail((device, status) -> done.onComplete(false))
+                        .invalid(() -> done.onComplete(false))
+                        .enqueue(),
+                success -> {
+                    mPriorityController.endBulkTransfer();
+                    mMetrics.onStreamComplete(data.length, SystemClock.elapsedRealtime() - startedAt, success);
+                    mWriteScheduler.onWriteComplete(write, success);
+                    mPriorityController.onBacklog(mWriteScheduler.getPendingCount());
+                },
+                () -> {
+                    mPriorityController.endBulkTransfer();
+                    mMetrics.onStreamComplete(data.length, SystemClock.elapsedRealtime() - startedAt, false);
+                    writeAcknowledged(write, characteristic, data);
+                });
+    }
+
+    /**
+     * Falls back to a long write with response for a stream that stalled, the watch
+     * acknowledges it as a whole instead of handing back credits.
+     */
+    private void writeAcknowledged(WriteScheduler.PendingWrite write, BluetoothGattCharacteristic characteristic, byte[] data) {
+        writeCharacteristic(characteristic, data, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT)
+                .done(device -> {
+                    mWriteScheduler.onWriteComplete(write, true);
+                    mPriorityController.onBacklog(mWriteScheduler.getPendingCount());
+                })
+                .fail((device, status) -> mWriteScheduler.onWriteComplete(write, false))
+                .invalid(() -> mWriteScheduler.onWriteComplete(write, false))
+                .enqueue();
+    }
+
+    /**
+     * @return the credits the watch granted and no pipelined packet used up yet
+     */
+    public final int getPipelineCredits() {
+        return mPipeline.getCredits();
+    }
+
+    private void onCreditsGranted(Data data) {
+        Integer credits = data.getIntValue(Data.FORMAT_UINT16_LE, 0);
+        if (credits != null && credits > 0)
+            mPipeline.grant(credits);
+    }
+
+    /**
+     * Sends the writes of a batch through one atomic request queue, so that no other GATT
+     * operation is interleaved. The watch still applies every write on its own.
+     */
+    private void dispatchBatch(WriteScheduler.Batch batch) {
+        RequestQueue queue = beginAtomicRequestQueue();
+        for (WriteScheduler.PendingWrite write : batch.writes) {
+            BluetoothGattCharacteristic characteristic = write.channel.getGattCharacteristic();
+            if (characteristic == null) {
+                Log.w(TAG, "No characteristic resolved for " + write.channel.getCharacteristic() + ", failing its batch");
+                mWriteScheduler.onBatchComplete(batch, false);
+                return;
+            }
+            queue.add(writeCharacteristic(characteristic, encode(write), write.channel.getWriteType()));
+        }
+        queue.done(device -> {
+                    mWriteScheduler.onBatchComplete(batch, true);
+                    mPriorityController.onTraffic();
+                    mPriorityController.onBacklog(mWriteScheduler.getPendingCount());
+                })
+                .fail((device, status) -> mWriteScheduler.onBatchComplete(batch, false))
+                .invalid(() -> mWriteScheduler.onBatchComplete(batch, false))
+                .enqueue();
     }
 
     @NonNull
@@ -53,7 +543,20 @@ public class AsteroidBleManager extends BleManager {
         return new AsteroidBleManagerGattCallback() {
             @Override
             protected void onServicesInvalidated() {
-                mSynchronizationService.unsyncServices();
+                clearWrites();
+                mPipeline.reset();
+                mCapabilitiesCharacteristic = null;
+                mCreditsCharacteristic = null;
+                synchronized (AsteroidBleManager.this) {
+                    for (AsteroidChannel channel : mChannels.values())
+                        channel.bind(null);
+                    mInboundCharacteristics.clear();
+                    mGatt = null;
+                    mNotificationsInitialized = false;
+                }
+                mLayoutCached = false;
+                mPriorityController.onDisconnected();
+                mMtu = PayloadUtils.DEFAULT_MTU;
                 batteryCharacteristic = null;
                 mGattServices.clear();
             }
@@ -61,9 +564,21 @@ public class AsteroidBleManager extends BleManager {
     }
 
     public final void abort() {
+        clearWrites();
         cancelQueue();
     }
 
+    /**
+     * Frees the native resources of the manager once the watch is not going to be connected
+     * to anymore, and writes the journal to disk without waiting for its delay.
+     */
+    public final void release() {
+        synchronized (mCompressor) {
+            mCompressor.end();
+        }
+        mJournal.flush();
+    }
+
     @Override
     protected final void finalize() throws Throwable {
         super.finalize();
@@ -72,13 +587,56 @@ public class AsteroidBleManager extends BleManager {
     public final void setBatteryLevel(Data data) {
         BatteryLevelEvent batteryLevelEvent = new BatteryLevelEvent();
         batteryLevelEvent.battery = Objects.requireNonNull(data.getByte(0)).intValue();
-        mSynchronizationService.handleUpdateBatteryPercentage(batteryLevelEvent);
+        mSynchronizationService.handleUpdateBatteryPercentage(mMacAddress, batteryLevelEvent);
     }
 
     public static class BatteryLevelEvent {
         public int battery = 0;
     }
 
+    private static boolean isBonded(BluetoothDevice device) {
+        try {
+            return device.getBondState() == BluetoothDevice.BOND_BONDED;
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Hands the notifications of an inbound characteristic to the callback registered for it.
+     *
+     * @return false if no callback is registered
+     */
+    private boolean routeNotifications(UUID uuid, BluetoothGattCharacteristic characteristic) {
+        IServiceCallback callback = recvCallbacks.get(uuid);
+        if (callback == null) return false;
+        UUID owner = mInboundRoutes.get(uuid);
+        setNotificationCallback(characteristic).with((device, data) -> {
+            mPriorityController.onTraffic();
+            mMetrics.onNotification(uuid, data.size());
+            mInboundDispatcher.dispatch(owner, uuid, callback, data.getValue());
+        });
+        return true;
+    }
+
+    private synchronized void enableNotificationsOnWatch(BluetoothGattCharacteristic characteristic) {
+        mPendingNotificationSetups++;
+        enableNotifications(characteristic)
+                .done(device -> onNotificationSetupDone())
+                .fail((device, status) -> mLayoutCache.invalidate(mMacAddress))
+                .enqueue();
+    }
+
+    private synchronized void onNotificationSetupDone() {
+        if (--mPendingNotificationSetups == 0)
+            mLayoutCache.storeLayout(mMacAddress, mLayout);
+    }
+
+    private synchronized void storeLayoutIfSetUp() {
+        if (mPendingNotificationSetups == 0 && mLayout != null)
+            mLayoutCache.storeLayout(mMacAddress, mLayout);
+    }
+
     private abstract class AsteroidBleManagerGattCallback extends BleManagerGattCallback {
 
         /* It is a constraint of the Bluetooth library that it is required to initialize
@@ -98,31 +656,29 @@ public class AsteroidBleManager extends BleManager {
                     notify = (properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0;
                 }
             }
-            if (sendingCharacteristics == null)
-                sendingCharacteristics = new HashMap<>();
-
-            for (IConnectivityService service : mSynchronizationService.getServices().values()) {
-                BluetoothGattService bluetoothGattService = gatt.getService(service.getServiceUUID());
-                List<UUID> sendUuids = new ArrayList<>();
-                service.getCharacteristicUUIDs().forEach((uuid, direction) -> {
-                    if (direction == IConnectivityService.Direction.TO_WATCH)
-                        sendUuids.add(uuid);
-                });
-                Log.d(TAG, "UUID " + sendUuids);
-
-                for (UUID uuid : sendUuids) {
-                    BluetoothGattCharacteristic characteristic = bluetoothGattService.getCharacteristic(uuid);
-                    sendingCharacteristics.put(uuid, characteristic);
-                    bluetoothGattService.addCharacteristic(characteristic);
-                }
-                recvCallbacks.forEach((characteristic, callback) -> {
-                    BluetoothGattCharacteristic characteristic1 = bluetoothGattService.getCharacteristic(characteristic);
-                    removeNotificationCallback(characteristic1);
-                    setNotificationCallback(characteristic1).with((device, data) -> callback.call(data.getValue()));
-                    enableNotifications(characteristic1).with((device, data) -> callback.call(data.getValue())).enqueue();
-                });
+            // Under the same lock as onServiceRegistered(), a service registered meanwhile is
+            // either resolved here or, seeing mGatt, resolves itself
+            synchronized (AsteroidBleManager.this) {
+                mGatt = gatt;
+                mInboundCharacteristics.clear();
+                for (IConnectivityService service : mSynchronizationService.getServices().values())
+                    resolve(gatt, service, new HashMap<>());
+                mLayout = GattLayoutCache.describe(gatt, mSynchronizationService.getServices().keySet());
             }
 
+            BluetoothGattService protocolService = gatt.getService(AsteroidUUIDS.PROTOCOL_SERVICE_UUID);
+            mCapabilitiesCharacteristic = protocolService != null
+                    ? protocolService.getCharacteristic(AsteroidUUIDS.CAPABILITIES_CHAR) : null;
+            BluetoothGattService flowControlService = gatt.getService(AsteroidUUIDS.FLOW_CONTROL_SERVICE_UUID);
+            mCreditsCharacteristic = flowControlService != null
+                    ? flowControlService.getCharacteristic(AsteroidUUIDS.FLOW_CONTROL_CREDITS_CHAR) : null;
+
+            mLayoutCached = isBonded(gatt.getDevice()) && mLayoutCache.matches(mMacAddress, mLayout);
+            if (mLayoutCached)
+                mMtu = mLayoutCache.getMtu(mMacAddress);
+            else
+                mLayoutCache.invalidate(mMacAddress);
+
             supported = (batteryCharacteristic != null && notify);
             return supported;
         }
@@ -131,22 +687,60 @@ public class AsteroidBleManager extends BleManager {
         protected final void initialize() {
             beginAtomicRequestQueue()
                     .add(requestMtu(256) // Remember, GATT needs 3 bytes extra. This will allow packet size of 244 bytes.
-                            .with((device, mtu) -> log(Log.INFO, "MTU set to " + mtu))
-                            .fail((device, status) -> log(Log.WARN, "Requested MTU not supported: " + status)))
+                            .with((device, mtu) -> {
+                                mMtu = mtu;
+                                mLayoutCache.storeMtu(mMacAddress, mtu);
+                                log(Log.INFO, "MTU set to " + mtu);
+                            })
+                            .fail((device, status) -> {
+                                mMtu = PayloadUtils.DEFAULT_MTU;
+                                log(Log.WARN, "Requested MTU not supported: " + status);
+                            }))
                     .done(device -> log(Log.INFO, "Target initialized"))
                     .fail((device, status) -> Log.e("Init", device.getAddress() + " not initialized with error: " + status))
                     .enqueue();
 
+            // Read before anything is written, the device is only ready once it is known
+            if (mCapabilitiesCharacteristic != null) {
+                readCharacteristic(mCapabilitiesCharacteristic)
+                        .with((device, data) -> {
+                            Integer version = data.getIntValue(Data.FORMAT_UINT16_LE, 0);
+                            Integer flags = data.getIntValue(Data.FORMAT_UINT32_LE, 2);
+                            onCapabilities(new WatchCapabilities(version != null ? version : 0, flags != null ? flags : 0));
+                        })
+                        .fail((device, status) -> Log.w(TAG, "Could not read the watch capabilities: " + status))
+                        .enqueue();
+            } else {
+                onCapabilities(WatchCapabilities.NONE);
+            }
+
             setNotificationCallback(batteryCharacteristic).with(((device, data) -> setBatteryLevel(data)));
             readCharacteristic(batteryCharacteristic).with(((device, data) -> setBatteryLevel(data))).enqueue();
             enableNotifications(batteryCharacteristic).enqueue();
 
-            // Let all services know that we are connected.
-            try {
-                mSynchronizationService.syncServices();
-            } catch (Exception e){
-                e.printStackTrace();
+            if (mCreditsCharacteristic != null) {
+                // The watch grants its initial window as soon as notifications are enabled
+                setNotificationCallback(mCreditsCharacteristic).with((device, data) -> onCreditsGranted(data));
+                enableNotifications(mCreditsCharacteristic)
+                        .fail((device, status) -> mCreditsCharacteristic = null)
+                        .enqueue();
             }
+
+            int enabled = 0;
+            synchronized (AsteroidBleManager.this) {
+                mPendingNotificationSetups = 0;
+                for (Map.Entry<UUID, BluetoothGattCharacteristic> entry : mInboundCharacteristics.entrySet()) {
+                    if (!routeNotifications(entry.getKey(), entry.getValue())) continue;
+                    enableNotificationsOnWatch(entry.getValue());
+                    enabled++;
+                }
+                if (mPendingNotificationSetups == 0)
+                    mLayoutCache.storeLayout(mMacAddress, mLayout);
+                mNotificationsInitialized = true;
+            }
+            log(Log.INFO, "Enabling notifications on " + enabled + " characteristics");
+
+            mPriorityController.onConnected();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,103 @@
+package org.asteroidos.sync.asteroid;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import androidx.annotation.Nullable;
+
+import org.asteroidos.sync.asteroid.IAsteroidDevice.WritePriority;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link IChannel} of an {@link AsteroidBleManager}. The GATT characteristic and its write
+ * type are bound when the watch is discovered and released when the connection goes away.
+ */
+final class AsteroidChannel implements IChannel {
+    /* Key under which pending writes of a coalesced channel replace each other */
+    static final String COALESCE_KEY = "";
+
+    interface Submitter {
+        CompletableFuture<Void> submit(AsteroidChannel channel, byte[] data, WritePriority priority, String key);
+    }
+
+    private final UUID mUuid;
+    private final Submitter mSubmitter;
+    private final TransportMetrics mMetrics;
+
+    private volatile WritePriority mDefaultPriority = WritePriority.BULK;
+    private volatile boolean mCoalesced = false;
+    private volatile boolean mCompressed = false;
+    @Nullable
+    private volatile BluetoothGattCharacteristic mGattCharacteristic;
+    private volatile int mWriteType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    /* Only modified by the WriteScheduler while holding its lock */
+    volatile int pendingCount = 0;
+
+    AsteroidChannel(UUID uuid, Submitter submitter, TransportMetrics metrics) {
+        mUuid = uuid;
+        mSubmitter = submitter;
+        mMetrics = metrics;
+    }
+
+    final void configure(WritePriority defaultPriority, boolean coalesced, boolean compressed) {
+        mDefaultPriority = defaultPriority;
+        mCoalesced = coalesced;
+        mCompressed = compressed;
+    }
+
+    final void bind(@Nullable BluetoothGattCharacteristic characteristic) {
+        mGattCharacteristic = characteristic;
+        if (characteristic != null)
+            mWriteType = characteristic.getWriteType();
+    }
+
+    @Nullable
+    final BluetoothGattCharacteristic getGattCharacteristic() {
+        return mGattCharacteristic;
+    }
+
+    final int getWriteType() {
+        return mWriteType;
+    }
+
+    final boolean isCoalesced() {
+        return mCoalesced;
+    }
+
+    final boolean isCompressed() {
+        return mCompressed;
+    }
+
+    @Override
+    public final UUID getCharacteristic() {
+        return mUuid;
+    }
+
+    @Override
+    public final CompletableFuture<Void> write(byte[] data) {
+        return mSubmitter.submit(this, data, mDefaultPriority, mCoalesced ? COALESCE_KEY : null);
+    }
+
+    @Override
+    public final CompletableFuture<Void> write(byte[] data, WritePriority priority, String key) {
+        if (key == null && mCoalesced)
+            key = COALESCE_KEY;
+        return mSubmitter.submit(this, data, priority, key);
+    }
+
+    @Override
+    public final int getPendingCount() {
+        return pendingCount;
+    }
+
+    @Override
+    public final boolean isResolved() {
+        return mGattCharacteristic != null;
+    }
+
+    @Override
+    public final TransportMetrics.Counters getMetrics() {
+        return mMetrics.getCharacteristicCounters(mUuid);
+    }
+}
@@ -0,0 +1,141 @@
+package org.asteroidos.sync.asteroid;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import no.nordicsemi.android.ble.ConnectionPriorityRequest;
+
+/**
+ * Picks the connection interval of the link: high priority (short interval) while a bulk
+ * transfer or a large write backlog is active, balanced shortly after the link became
+ * idle and low power once it stayed idle for a while. Time spent in each mode is recorded.
+ */
+class ConnectionPriorityController {
+    public static final String TAG = ConnectionPriorityController.class.toString();
+
+    /* Pending writes above which the backlog is drained at high priority */
+    static final int BACKLOG_THRESHOLD = 8;
+    static final long BALANCED_DELAY_MS = 2000;
+    static final long LOW_POWER_DELAY_MS = 30000;
+
+    interface Requester {
+        void requestPriority(int priority);
+    }
+
+    private final Requester mRequester;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final long[] mTimeInMode = new long[3];
+    /* Package-private so that tests can fire the idle fallbacks */
+    final Runnable mToBalanced = () -> setMode(ConnectionPriorityRequest.CONNECTION_PRIORITY_BALANCED);
+    final Runnable mToLowPower = () -> setMode(ConnectionPriorityRequest.CONNECTION_PRIORITY_LOW_POWER);
+
+    private boolean mConnected = false;
+    private int mMode = ConnectionPriorityRequest.CONNECTION_PRIORITY_BALANCED;
+    private long mModeSince;
+    private int mBulkTransfers = 0;
+    private boolean mBacklogged = false;
+
+    ConnectionPriorityController(Requester requester) {
+        mRequester = requester;
+    }
+
+    final synchronized void onConnected() {
+        mConnected = true;
+        // Android connects with a balanced interval
+        mMode = ConnectionPriorityRequest.CONNECTION_PRIORITY_BALANCED;
+        mModeSince = SystemClock.elapsedRealtime();
+        update();
+    }
+
+    final synchronized void onDisconnected() {
+        if (!mConnected) return;
+        accumulate();
+        mConnected = false;
+        mBulkTransfers = 0;
+        mBacklogged = false;
+        mHandler.removeCallbacks(mToBalanced);
+        mHandler.removeCallbacks(mToLowPower);
+        Log.i(TAG, "Time in mode: high " + mTimeInMode[ConnectionPriorityRequest.CONNECTION_PRIORITY_HIGH]
+                + " ms, balanced " + mTimeInMode[ConnectionPriorityRequest.CONNECTION_PRIORITY_BALANCED]
+                + " ms, low power " + mTimeInMode[ConnectionPriorityRequest.CONNECTION_PRIORITY_LOW_POWER] + " ms");
+    }
+
+    final synchronized void beginBulkTransfer() {
+        mBulkTransfers++;
+        update();
+    }
+
+    final synchronized void endBulkTransfer() {
+        if (mBulkTransfers > 0)
+            mBulkTransfers--;
+        update();
+    }
+
+    final synchronized void onBacklog(int pendingWrites) {
+        boolean backlogged = pendingWrites >= BACKLOG_THRESHOLD;
+        if (backlogged != mBacklogged) {
+            mBacklogged = backlogged;
+            update();
+        }
+    }
+
+    /**
+     * Any traffic on the link postpones the fallback to a slower interval. Traffic on a link
+     * that already fell back to low power steps it up to balanced, as more usually follows.
+     */
+    final synchronized void onTraffic() {
+        if (!mConnected || isBusy()) return;
+        if (mMode == ConnectionPriorityRequest.CONNECTION_PRIORITY_LOW_POWER)
+            setMode(ConnectionPriorityRequest.CONNECTION_PRIORITY_BALANCED);
+        scheduleIdle();
+    }
+
+    /**
+     * @param mode one of the {@link ConnectionPriorityRequest} CONNECTION_PRIORITY_* constants
+     * @return milliseconds spent in mode since the manager was created
+     */
+    final synchronized long getTimeInMode(int mode) {
+        long time = mTimeInMode[mode];
+        if (mConnected && mMode == mode)
+            time += SystemClock.elapsedRealtime() - mModeSince;
+        return time;
+    }
+
+    private boolean isBusy() {
+        return mBulkTransfers > 0 || mBacklogged;
+    }
+
+    private void update() {
+        if (!mConnected) return;
+        if (isBusy()) {
+            mHandler.removeCallbacks(mToBalanced);
+            mHandler.removeCallbacks(mToLowPower);
+            setMode(ConnectionPriorityRequest.CONNECTION_PRIORITY_HIGH);
+        } else {
+            scheduleIdle();
+        }
+    }
+
+    private void scheduleIdle() {
+        mHandler.removeCallbacks(mToBalanced);
+        mHandler.removeCallbacks(mToLowPower);
+        if (mMode == ConnectionPriorityRequest.CONNECTION_PRIORITY_HIGH)
+            mHandler.postDelayed(mToBalanced, BALANCED_DELAY_MS);
+        mHandler.postDelayed(mToLowPower, BALANCED_DELAY_MS + LOW_POWER_DELAY_MS);
+    }
+
+    private synchronized void setMode(int mode) {
+        if (!mConnected || mode == mMode) return;
+        accumulate();
+        mMode = mode;
+        mRequester.requestPriority(mode);
+    }
+
+    private void accumulate() {
+        long now = SystemClock.elapsedRealtime();
+        mTimeInMode[mMode] += now - mModeSince;
+        mModeSince = now;
+    }
+}
@@ -0,0 +1,96 @@
+package org.asteroidos.sync.asteroid;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.asteroidos.sync.utils.PayloadUtils;
+
+import java.util.Collection;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * Remembers, per watch MAC address, the GATT layout of the services we use, the MTU
+ * negotiated and the {@link WatchCapabilities} reported last time. A layout is only stored
+ * once notifications have been enabled on it, so a reconnect to a bonded watch exposing the
+ * very same layout can start out with the MTU negotiated on it until the exchange completes.
+ */
+class GattLayoutCache {
+    public static final String PREFS_NAME = "GattLayoutCache";
+    private static final String KEY_LAYOUT = ".layout";
+    private static final String KEY_MTU = ".mtu";
+    private static final String KEY_PROTOCOL_VERSION = ".protocol";
+    private static final String KEY_CAPABILITIES = ".capabilities";
+
+    private final SharedPreferences mPrefs;
+
+    GattLayoutCache(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return a canonical description of the given services as discovered on the watch:
+     * every characteristic with its properties and write type, missing services included.
+     */
+    static String describe(BluetoothGatt gatt, Collection<UUID> serviceUUIDs) {
+        StringBuilder builder = new StringBuilder();
+        for (UUID serviceUUID : new TreeSet<>(serviceUUIDs)) {
+            builder.append(serviceUUID);
+            BluetoothGattService service = gatt.getService(serviceUUID);
+            if (service == null) {
+                builder.append(" -\n");
+                continue;
+            }
+            TreeMap<UUID, BluetoothGattCharacteristic> characteristics = new TreeMap<>();
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics())
+                characteristics.put(characteristic.getUuid(), characteristic);
+            characteristics.forEach((uuid, characteristic) -> builder.append(' ').append(uuid)
+                    .append('/').append(characteristic.getProperties())
+                    .append('/').append(characteristic.getWriteType()));
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    final boolean matches(String macAddress, String layout) {
+        return layout.equals(mPrefs.getString(macAddress + KEY_LAYOUT, null));
+    }
+
+    /**
+     * @return the MTU negotiated with the watch last time, {@link PayloadUtils#DEFAULT_MTU} if unknown
+     */
+    final int getMtu(String macAddress) {
+        return mPrefs.getInt(macAddress + KEY_MTU, PayloadUtils.DEFAULT_MTU);
+    }
+
+    /**
+     * @return what the watch reported on its last connection, {@link WatchCapabilities#NONE} if unknown
+     */
+    final WatchCapabilities getCapabilities(String macAddress) {
+        return new WatchCapabilities(mPrefs.getInt(macAddress + KEY_PROTOCOL_VERSION, 0),
+                mPrefs.getInt(macAddress + KEY_CAPABILITIES, 0));
+    }
+
+    final void storeCapabilities(String macAddress, WatchCapabilities capabilities) {
+        mPrefs.edit()
+                .putInt(macAddress + KEY_PROTOCOL_VERSION, capabilities.getProtocolVersion())
+                .putInt(macAddress + KEY_CAPABILITIES, capabilities.getFlags())
+                .apply();
+    }
+
+    final void storeLayout(String macAddress, String layout) {
+        mPrefs.edit().putString(macAddress + KEY_LAYOUT, layout).apply();
+    }
+
+    final void storeMtu(String macAddress, int mtu) {
+        mPrefs.edit().putInt(macAddress + KEY_MTU, mtu).apply();
+    }
+
+    final void invalidate(String macAddress) {
+        mPrefs.edit().remove(macAddress + KEY_LAYOUT).apply();
+    }
+}
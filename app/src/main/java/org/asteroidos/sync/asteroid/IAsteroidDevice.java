@@ -2,6 +2,7 @@ package org.asteroidos.sync.asteroid;
 
 import org.asteroidos.sync.connectivity.IConnectivityService;
 import org.asteroidos.sync.connectivity.IServiceCallback;
+import org.asteroidos.sync.utils.AsteroidUUIDS;
 
 import java.util.HashMap;
 import java.util.UUID;
@@ -18,9 +19,79 @@ public interface IAsteroidDevice {
         STATUS_DISCONNECTED
     }
 
+    /**
+     * Priority classes of outbound writes, from most to least urgent.
+     * Pending writes of a higher class are always sent before those of a lower class.
+     */
+    enum WritePriority {
+        CALL,
+        NOTIFICATION,
+        MEDIA,
+        TIME,
+        WEATHER,
+        BULK;
+
+        public static WritePriority forService(UUID serviceUUID) {
+            if (AsteroidUUIDS.NOTIFICATION_SERVICE_UUID.equals(serviceUUID))
+                return NOTIFICATION;
+            else if (AsteroidUUIDS.MEDIA_SERVICE_UUID.equals(serviceUUID))
+                return MEDIA;
+            else if (AsteroidUUIDS.TIME_SERVICE_UUID.equals(serviceUUID))
+                return TIME;
+            else if (AsteroidUUIDS.WEATHER_SERVICE_UUID.equals(serviceUUID))
+                return WEATHER;
+            return BULK;
+        }
+    }
+
     ConnectionState getConnectionState();
 
-    void send(UUID characteristic, byte[] data, IConnectivityService service);
+    /**
+     * @return the ATT MTU negotiated with the watch
+     */
+    int getMtu();
+
+    /**
+     * @return the largest value that fits in a single write packet, i.e. the MTU minus the ATT header
+     */
+    int getMaxPayloadSize();
+
+    TransportMetrics getTransportMetrics();
+
+    /**
+     * @return the protocol version and optional features every watch written to supports,
+     * {@link WatchCapabilities#NONE} for watches predating the capabilities characteristic
+     */
+    WatchCapabilities getCapabilities();
+
+    /**
+     * Services open their channels once, typically in their constructor, and write through them.
+     */
+    IChannel openChannel(UUID characteristic);
+
+    /**
+     * Like {@link #openChannel(UUID)}, but when several watches are paired only the one shown in
+     * the app is written to. Meant for request and response exchanges such as screenshots.
+     */
+    IChannel openPrimaryChannel(UUID characteristic);
+
+    /**
+     * Marks the start of a large transfer, during which the link is kept at a short connection interval.
+     * Every call has to be balanced by {@link #endBulkTransfer()}.
+     */
+    void beginBulkTransfer();
+    void endBulkTransfer();
+
+    /**
+     * Groups the writes issued on the calling thread until the matching {@link #commitBatch()},
+     * they are sent back to back so the watch never shows a mix of old and new values.
+     */
+    void beginBatch();
+    void commitBatch();
+
+    /**
+     * Services may come and go at any time, a connected watch picks them up without reconnecting.
+     */
     void registerBleService(IConnectivityService service);
     void unregisterBleService(UUID serviceUUID);
     void registerCallback(UUID characteristicUUID, IServiceCallback callback);
@@ -0,0 +1,38 @@
+package org.asteroidos.sync.asteroid;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A channel writes to one characteristic of the watch. It is obtained once through
+ * {@link IAsteroidDevice#openChannel(UUID)} and resolved against the GATT layout on every
+ * connection, so that writing does not involve any lookup. Whether pending writes are
+ * coalesced and which {@link IAsteroidDevice.WritePriority} they get by default follows
+ * from the service declaring the characteristic.
+ */
+public interface IChannel {
+    UUID getCharacteristic();
+
+    /**
+     * @return completes once the watch acknowledged the write, or once the write has been journaled
+     * while the watch is away. Completes exceptionally if the write failed or was discarded.
+     */
+    CompletableFuture<Void> write(byte[] data);
+
+    /**
+     * @param key a pending write of this channel with the same key is replaced by this one, may be null
+     */
+    CompletableFuture<Void> write(byte[] data, IAsteroidDevice.WritePriority priority, String key);
+
+    /**
+     * @return number of writes accepted by this channel that have not been handed to the radio yet
+     */
+    int getPendingCount();
+
+    /**
+     * @return true if the characteristic has been found on the connected watch
+     */
+    boolean isResolved();
+
+    TransportMetrics.Counters getMetrics();
+}
@@ -0,0 +1,60 @@
+package org.asteroidos.sync.asteroid;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.asteroidos.sync.connectivity.IServiceCallback;
+
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves {@link IServiceCallback} invocations off the BLE callback thread. Every connectivity
+ * service gets its own serial executor: the notifications of a characteristic are handled in
+ * order, while a service busy with file I/O or decoding cannot hold up GATT processing or the
+ * other services.
+ */
+class InboundDispatcher {
+    public static final String TAG = InboundDispatcher.class.toString();
+
+    /* Callbacks running longer than this are logged */
+    static final long SLOW_CALLBACK_MS = 100;
+    private static final long IDLE_TIMEOUT_S = 30;
+
+    private final TransportMetrics mMetrics;
+    private final HashMap<UUID, ThreadPoolExecutor> mExecutors = new HashMap<>();
+
+    InboundDispatcher(TransportMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    final void dispatch(UUID service, UUID characteristic, IServiceCallback callback, byte[] data) {
+        long queuedAt = SystemClock.elapsedRealtime();
+        executor(service).execute(() -> {
+            long startedAt = SystemClock.elapsedRealtime();
+            try {
+                callback.call(data);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Callback of " + characteristic + " failed", e);
+            }
+            long runTime = SystemClock.elapsedRealtime() - startedAt;
+            if (runTime > SLOW_CALLBACK_MS)
+                Log.w(TAG, "Callback of " + characteristic + " took " + runTime + " ms");
+            mMetrics.onCallback(characteristic, startedAt - queuedAt, runTime);
+        });
+    }
+
+    private synchronized ThreadPoolExecutor executor(UUID service) {
+        ThreadPoolExecutor executor = mExecutors.get(service);
+        if (executor == null) {
+            // A single thread that goes away while the service is idle
+            executor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT_S, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            executor.allowCoreThreadTimeOut(true);
+            mExecutors.put(service, executor);
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,216 @@
+package org.asteroidos.sync.asteroid;
+
+import android.util.Log;
+
+import org.asteroidos.sync.asteroid.IAsteroidDevice.WritePriority;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded, disk-backed store of the writes issued while the watch is not connected.
+ * Entries sharing a key collapse to the latest one, so a state characteristic only
+ * keeps its last value and a notification that was removed only keeps its removal.
+ * The journal is drained into the write scheduler once the watch is ready again. Appends are
+ * written to disk in the background, those within {@link #PERSIST_DELAY_MS} in one rewrite of
+ * the file, so a burst of notifications while the watch is away does not rewrite it every time.
+ */
+class OutboundJournal {
+    public static final String TAG = OutboundJournal.class.toString();
+
+    static final int MAX_ENTRIES = 64;
+    static final int MAX_BYTES = 32 * 1024;
+    /* Older writes are not worth replaying anymore */
+    static final long MAX_AGE_MS = 12 * 60 * 60 * 1000;
+    static final long PERSIST_DELAY_MS = 1000;
+    private static final int FORMAT_VERSION = 2;
+
+    static final class Entry {
+        /* Unique within the journal, entries with the same id replace each other */
+        final String id;
+        final UUID characteristic;
+        /* Key of the write within its channel, may be null */
+        final String key;
+        final byte[] data;
+        final WritePriority priority;
+        final long createdAt;
+
+        Entry(String id, UUID characteristic, String key, byte[] data, WritePriority priority, long createdAt) {
+            this.id = id;
+            this.characteristic = characteristic;
+            this.key = key;
+            this.data = data;
+            this.priority = priority;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final File mFile;
+    private final ScheduledExecutorService mIoExecutor = Executors.newSingleThreadScheduledExecutor();
+    private LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+    private int mBytes = 0;
+    private long mSequence = 0;
+    /* Changes are waiting to be written */
+    private boolean mDirty = false;
+
+    OutboundJournal(File file) {
+        mFile = file;
+        mIoExecutor.execute(this::load);
+    }
+
+    /**
+     * @param key writes to the same characteristic with the same non-null key replace each other,
+     *            null keeps every write
+     */
+    final synchronized void append(UUID characteristic, String key, byte[] data, WritePriority priority) {
+        long now = System.currentTimeMillis();
+        String id = key == null ? "#" + now + "-" + mSequence++ : characteristic + "/" + key;
+        remove(id);
+        mEntries.put(id, new Entry(id, characteristic, key, data, priority, now));
+        mBytes += data.length;
+
+        Iterator<Entry> eldest = mEntries.values().iterator();
+        while ((mEntries.size() > MAX_ENTRIES || mBytes > MAX_BYTES) && eldest.hasNext()) {
+            Entry dropped = eldest.next();
+            mBytes -= dropped.data.length;
+            eldest.remove();
+            Log.w(TAG, "Journal full, dropping write to " + dropped.characteristic);
+        }
+        if (!mDirty)
+            mIoExecutor.schedule(this::persist, PERSIST_DELAY_MS, TimeUnit.MILLISECONDS);
+        mDirty = true;
+    }
+
+    /**
+     * @return the journaled writes that are still fresh, oldest first. The journal is empty afterwards.
+     */
+    final synchronized List<Entry> drain() {
+        long oldest = System.currentTimeMillis() - MAX_AGE_MS;
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : mEntries.values())
+            if (entry.createdAt >= oldest)
+                entries.add(entry);
+        if (!mEntries.isEmpty()) {
+            mEntries.clear();
+            mBytes = 0;
+            // Right away, the drained writes must not be replayed a second time
+            mDirty = true;
+            flush();
+        }
+        return entries;
+    }
+
+    /**
+     * Writes the pending changes to disk without waiting for the delay.
+     */
+    final void flush() {
+        mIoExecutor.execute(this::persist);
+    }
+
+    /**
+     * Blocks until the journal has been loaded and every change so far written to disk.
+     */
+    final void awaitIo() throws InterruptedException {
+        try {
+            mIoExecutor.submit(this::persist).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void remove(String id) {
+        Entry previous = mEntries.remove(id);
+        if (previous != null)
+            mBytes -= previous.data.length;
+    }
+
+    /* Runs on the I/O executor */
+    private void persist() {
+        List<Entry> snapshot;
+        synchronized (this) {
+            if (!mDirty) return;
+            mDirty = false;
+            snapshot = new ArrayList<>(mEntries.values());
+        }
+        write(snapshot);
+    }
+
+    private void write(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            if (mFile.exists() && !mFile.delete())
+                Log.w(TAG, "Could not delete " + mFile);
+            return;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeLong(entry.characteristic.getMostSignificantBits());
+                out.writeLong(entry.characteristic.getLeastSignificantBits());
+                out.writeUTF(entry.id);
+                out.writeBoolean(entry.key != null);
+                if (entry.key != null)
+                    out.writeUTF(entry.key);
+                out.writeInt(entry.priority.ordinal());
+                out.writeLong(entry.createdAt);
+                out.writeInt(entry.data.length);
+                out.write(entry.data);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (!tmp.renameTo(mFile))
+            Log.w(TAG, "Could not replace " + mFile);
+    }
+
+    private void load() {
+        if (!mFile.exists()) return;
+        LinkedHashMap<String, Entry> loaded = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != FORMAT_VERSION) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                UUID characteristic = new UUID(in.readLong(), in.readLong());
+                String id = in.readUTF();
+                String key = in.readBoolean() ? in.readUTF() : null;
+                WritePriority priority = WritePriority.values()[in.readInt()];
+                long createdAt = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                loaded.put(id, new Entry(id, characteristic, key, data, priority, createdAt));
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Discarding unreadable journal: " + e);
+            return;
+        }
+
+        synchronized (this) {
+            // Writes appended while loading are newer than anything on disk
+            for (Entry entry : mEntries.values()) {
+                loaded.remove(entry.id);
+                loaded.put(entry.id, entry);
+            }
+            mEntries = loaded;
+            mBytes = 0;
+            for (Entry entry : mEntries.values())
+                mBytes += entry.data.length;
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package org.asteroidos.sync.asteroid;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Counters of the BLE link, kept per characteristic and per connectivity service:
+ * writes, bytes, failures, queue depth, enqueue to completion latency, compression, inbound
+ * notifications and the time their callbacks spent queued and running. Batches of writes are
+ * timed from their commit until the watch holds all of their values, pipelined writes by their
+ * throughput. Used to tell a slow watch apart from a slow phone or a congested radio.
+ */
+public class TransportMetrics {
+    /* Upper bounds of the latency histogram buckets, the last bucket holds everything above */
+    public static final long[] LATENCY_BUCKETS_MS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000};
+
+    public static final class Counters {
+        public long writes = 0;
+        public long bytes = 0;
+        public long failures = 0;
+        public long dropped = 0;
+        public long coalesced = 0;
+        public int queueDepth = 0;
+        public long notifications = 0;
+        public long notificationBytes = 0;
+        public long callbacks = 0;
+        public long callbackWaitMs = 0;
+        public long callbackRunMs = 0;
+        public long callbackMaxRunMs = 0;
+        public long compressed = 0;
+        public long compressedInBytes = 0;
+        public long compressedOutBytes = 0;
+        public long compressionNanos = 0;
+        public final long[] latencyHistogram = new long[LATENCY_BUCKETS_MS.length + 1];
+        private long mFirstNotificationAt = 0;
+        private long mLastNotificationAt = 0;
+
+        Counters() {
+        }
+
+        Counters(Counters other) {
+            writes = other.writes;
+            bytes = other.bytes;
+            failures = other.failures;
+            dropped = other.dropped;
+            coalesced = other.coalesced;
+            queueDepth = other.queueDepth;
+            notifications = other.notifications;
+            notificationBytes = other.notificationBytes;
+            callbacks = other.callbacks;
+            callbackWaitMs = other.callbackWaitMs;
+            callbackRunMs = other.callbackRunMs;
+            callbackMaxRunMs = other.callbackMaxRunMs;
+            compressed = other.compressed;
+            compressedInBytes = other.compressedInBytes;
+            compressedOutBytes = other.compressedOutBytes;
+            compressionNanos = other.compressionNanos;
+            System.arraycopy(other.latencyHistogram, 0, latencyHistogram, 0, latencyHistogram.length);
+            mFirstNotificationAt = other.mFirstNotificationAt;
+            mLastNotificationAt = other.mLastNotificationAt;
+        }
+
+        /**
+         * @return upper bound of the histogram bucket holding the given percentile (0-100),
+         * -1 if no write completed yet and {@link Long#MAX_VALUE} if it lies in the overflow bucket
+         */
+        public final long getLatencyPercentileMs(int percentile) {
+            long total = 0;
+            for (long count : latencyHistogram)
+                total += count;
+            if (total == 0) return -1;
+
+            long rank = (total * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < LATENCY_BUCKETS_MS.length; i++) {
+                seen += latencyHistogram[i];
+                if (seen >= rank)
+                    return LATENCY_BUCKETS_MS[i];
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * @return inbound notifications per second between the first and the last one
+         */
+        public final float getNotificationRate() {
+            long span = mLastNotificationAt - mFirstNotificationAt;
+            if (notifications < 2 || span <= 0) return 0;
+            return (notifications - 1) * 1000f / span;
+        }
+
+        private void recordLatency(long latencyMs) {
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS_MS.length && latencyMs > LATENCY_BUCKETS_MS[bucket])
+                bucket++;
+            latencyHistogram[bucket]++;
+        }
+
+        private void recordCallback(long waitMs, long runMs) {
+            callbacks++;
+            callbackWaitMs += waitMs;
+            callbackRunMs += runMs;
+            callbackMaxRunMs = Math.max(callbackMaxRunMs, runMs);
+        }
+
+        private void recordCompression(int inBytes, int outBytes, long nanos) {
+            compressed++;
+            compressedInBytes += inBytes;
+            compressedOutBytes += outBytes;
+            compressionNanos += nanos;
+        }
+
+        private void recordNotification(int length, long now) {
+            if (notifications == 0)
+                mFirstNotificationAt = now;
+            mLastNotificationAt = now;
+            notifications++;
+            notificationBytes += length;
+        }
+    }
+
+    private final HashMap<UUID, Counters> mByCharacteristic = new HashMap<>();
+    private final HashMap<UUID, Counters> mByService = new HashMap<>();
+    private final HashMap<UUID, UUID> mServiceOfCharacteristic = new HashMap<>();
+    private long mConnectTimeMs = -1;
+    private long mTimeToReadyMs = -1;
+    private long mTimeToSyncedMs = -1;
+    private boolean mLayoutCached = false;
+    private long mBatches = 0;
+    private long mBatchFailures = 0;
+    private long mBatchWrites = 0;
+    private long mBatchLatencyMs = 0;
+    private long mBatchMaxLatencyMs = 0;
+    private long mStreams = 0;
+    private long mStreamFailures = 0;
+    private long mStreamBytes = 0;
+    private long mStreamTimeMs = 0;
+
+    /**
+     * Attributes the traffic of a characteristic to the service that owns it.
+     */
+    final synchronized void bindCharacteristic(UUID characteristic, UUID service) {
+        mServiceOfCharacteristic.put(characteristic, service);
+    }
+
+    final synchronized void onEnqueued(UUID characteristic) {
+        characteristic(characteristic).queueDepth++;
+        Counters service = service(characteristic);
+        if (service != null) service.queueDepth++;
+    }
+
+    final synchronized void onCoalesced(UUID characteristic) {
+        characteristic(characteristic).coalesced++;
+        Counters service = service(characteristic);
+        if (service != null) service.coalesced++;
+    }
+
+    final synchronized void onDropped(UUID characteristic) {
+        Counters counters = characteristic(characteristic);
+        counters.dropped++;
+        counters.queueDepth--;
+        Counters service = service(characteristic);
+        if (service != null) {
+            service.dropped++;
+            service.queueDepth--;
+        }
+    }
+
+    final synchronized void onDispatched(UUID characteristic) {
+        characteristic(characteristic).queueDepth--;
+        Counters service = service(characteristic);
+        if (service != null) service.queueDepth--;
+    }
+
+    final synchronized void onWriteComplete(UUID characteristic, int length, long latencyMs, boolean success) {
+        Counters[] targets = {characteristic(characteristic), service(characteristic)};
+        for (Counters counters : targets) {
+            if (counters == null) continue;
+            if (success) {
+                counters.writes++;
+                counters.bytes += length;
+                counters.recordLatency(latencyMs);
+            } else {
+                counters.failures++;
+            }
+        }
+    }
+
+    final synchronized void onNotification(UUID characteristic, int length) {
+        long now = SystemClock.elapsedRealtime();
+        characteristic(characteristic).recordNotification(length, now);
+        Counters service = service(characteristic);
+        if (service != null) service.recordNotification(length, now);
+    }
+
+    /**
+     * @param outBytes size after compression, the same as inBytes if compressing did not pay off
+     * @param nanos CPU time spent compressing
+     */
+    final synchronized void onCompressed(UUID characteristic, int inBytes, int outBytes, long nanos) {
+        characteristic(characteristic).recordCompression(inBytes, outBytes, nanos);
+        Counters service = service(characteristic);
+        if (service != null) service.recordCompression(inBytes, outBytes, nanos);
+    }
+
+    /**
+     * @param waitMs time the callback of an inbound notification was queued
+     * @param runMs time the callback ran
+     */
+    final synchronized void onCallback(UUID characteristic, long waitMs, long runMs) {
+        characteristic(characteristic).recordCallback(waitMs, runMs);
+        Counters service = service(characteristic);
+        if (service != null) service.recordCallback(waitMs, runMs);
+    }
+
+    /**
+     * @param writes number of writes in the batch
+     * @param latencyMs time from committing the batch until all of its writes completed
+     */
+    final synchronized void onBatchComplete(int writes, long latencyMs, boolean success) {
+        if (!success) {
+            mBatchFailures++;
+            return;
+        }
+        mBatches++;
+        mBatchWrites += writes;
+        mBatchLatencyMs += latencyMs;
+        mBatchMaxLatencyMs = Math.max(mBatchMaxLatencyMs, latencyMs);
+    }
+
+    public final synchronized long getBatchCount() {
+        return mBatches;
+    }
+
+    /**
+     * @return average time batches took to reach the watch in full, -1 if none did yet
+     */
+    public final synchronized long getAverageBatchLatencyMs() {
+        return mBatches == 0 ? -1 : mBatchLatencyMs / mBatches;
+    }
+
+    public final synchronized long getMaxBatchLatencyMs() {
+        return mBatchMaxLatencyMs;
+    }
+
+    /**
+     * @param bytes payload size of a pipelined write
+     * @param durationMs time from its first packet until its last one left
+     */
+    final synchronized void onStreamComplete(int bytes, long durationMs, boolean success) {
+        if (!success) {
+            mStreamFailures++;
+            return;
+        }
+        mStreams++;
+        mStreamBytes += bytes;
+        mStreamTimeMs += durationMs;
+    }
+
+    /**
+     * @return bytes per second of the pipelined writes, -1 if there were none
+     */
+    public final synchronized long getStreamThroughput() {
+        if (mStreams == 0) return -1;
+        return mStreamBytes * 1000 / Math.max(1, mStreamTimeMs);
+    }
+
+    /**
+     * @param connectTimeMs time from connecting until the link came up, -1 if unknown
+     * @param timeToReadyMs time from the link coming up until all services were set up
+     * @param layoutCached whether the GATT layout of the watch was known already
+     */
+    final synchronized void onReady(long connectTimeMs, long timeToReadyMs, boolean layoutCached) {
+        mConnectTimeMs = connectTimeMs;
+        mTimeToReadyMs = timeToReadyMs;
+        mTimeToSyncedMs = -1;
+        mLayoutCached = layoutCached;
+    }
+
+    /**
+     * @param timeToSyncedMs time from the watch being ready until every service was synced
+     */
+    final synchronized void onSynced(long timeToSyncedMs) {
+        mTimeToSyncedMs = timeToSyncedMs;
+    }
+
+    /**
+     * @return time from connecting until the link came up on the last connection, -1 if unknown
+     */
+    public final synchronized long getConnectTimeMs() {
+        return mConnectTimeMs;
+    }
+
+    /**
+     * @return time to ready of the last connection, -1 if the watch has not been ready yet
+     */
+    public final synchronized long getTimeToReadyMs() {
+        return mTimeToReadyMs;
+    }
+
+    /**
+     * @return time to synced of the last connection, -1 if the services have not been synced yet
+     */
+    public final synchronized long getTimeToSyncedMs() {
+        return mTimeToSyncedMs;
+    }
+
+    /**
+     * Pending writes were discarded, e.g. because the connection went away.
+     */
+    final synchronized void onQueueCleared() {
+        for (Counters counters : mByCharacteristic.values())
+            counters.queueDepth = 0;
+        for (Counters counters : mByService.values())
+            counters.queueDepth = 0;
+    }
+
+    public final synchronized Map<UUID, Counters> getCharacteristicCounters() {
+        HashMap<UUID, Counters> copy = new HashMap<>();
+        mByCharacteristic.forEach((uuid, counters) -> copy.put(uuid, new Counters(counters)));
+        return copy;
+    }
+
+    public final synchronized Counters getCharacteristicCounters(UUID characteristic) {
+        return new Counters(characteristic(characteristic));
+    }
+
+    public final synchronized Map<UUID, Counters> getServiceCounters() {
+        HashMap<UUID, Counters> copy = new HashMap<>();
+        mByService.forEach((uuid, counters) -> copy.put(uuid, new Counters(counters)));
+        return copy;
+    }
+
+    /**
+     * @return a human readable summary, one line per service followed by its characteristics
+     */
+    @Override
+    public final synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        if (mTimeToReadyMs >= 0) {
+            if (mConnectTimeMs >= 0)
+                builder.append("connected after ").append(mConnectTimeMs).append(" ms, ");
+            builder.append("ready after ").append(mTimeToReadyMs).append(" ms");
+            if (mTimeToSyncedMs >= 0)
+                builder.append(", synced ").append(mTimeToSyncedMs).append(" ms later");
+            builder.append(mLayoutCached ? " (cached layout)\n" : "\n");
+        }
+        if (mBatches > 0 || mBatchFailures > 0)
+            builder.append(String.format(Locale.ROOT, "%d batches of %.1f writes, consistent after %d ms avg, %d ms max, %d failed\n",
+                    mBatches, mBatches == 0 ? 0f : (float) mBatchWrites / mBatches,
+                    mBatches == 0 ? 0 : mBatchLatencyMs / mBatches, mBatchMaxLatencyMs, mBatchFailures));
+        if (mStreams > 0 || mStreamFailures > 0)
+            builder.append(String.format(Locale.ROOT, "%d pipelined writes, %d B at %d B/s, %d failed\n",
+                    mStreams, mStreamBytes, mStreams == 0 ? 0 : mStreamBytes * 1000 / Math.max(1, mStreamTimeMs),
+                    mStreamFailures));
+        TreeMap<UUID, Counters> services = new TreeMap<>(mByService);
+        services.forEach((serviceUUID, serviceCounters) -> {
+            appendLine(builder, "", serviceUUID, serviceCounters);
+            new TreeMap<>(mByCharacteristic).forEach((uuid, counters) -> {
+                if (serviceUUID.equals(mServiceOfCharacteristic.get(uuid)))
+                    appendLine(builder, "  ", uuid, counters);
+            });
+        });
+        return builder.toString().trim();
+    }
+
+    private static void appendLine(StringBuilder builder, String indent, UUID uuid, Counters counters) {
+        // AsteroidOS UUIDs only differ in their first group, e.g. 00007001-...
+        builder.append(indent).append(uuid.toString().substring(4, 8)).append(": ");
+        if (counters.writes > 0 || counters.failures > 0 || counters.queueDepth > 0) {
+            builder.append(String.format(Locale.ROOT, "%d writes, %d B, %d failed, %d dropped, %d coalesced, queue %d, p50 %s, p95 %s",
+                    counters.writes, counters.bytes, counters.failures, counters.dropped, counters.coalesced,
+                    counters.queueDepth, formatLatency(counters.getLatencyPercentileMs(50)),
+                    formatLatency(counters.getLatencyPercentileMs(95))));
+            if (counters.compressed > 0)
+                builder.append(String.format(Locale.ROOT, ", deflated to %d%% in %d µs avg",
+                        counters.compressedOutBytes * 100 / Math.max(1, counters.compressedInBytes),
+                        counters.compressionNanos / counters.compressed / 1000));
+        }
+        if (counters.notifications > 0) {
+            if (counters.writes > 0 || counters.failures > 0 || counters.queueDepth > 0)
+                builder.append("; ");
+            builder.append(String.format(Locale.ROOT, "%d notified, %d B, %.1f/s",
+                    counters.notifications, counters.notificationBytes, counters.getNotificationRate()));
+            if (counters.callbacks > 0)
+                builder.append(String.format(Locale.ROOT, ", callbacks wait %d ms, run %d ms avg, %d ms max",
+                        counters.callbackWaitMs / counters.callbacks, counters.callbackRunMs / counters.callbacks,
+                        counters.callbackMaxRunMs));
+        }
+        builder.append('\n');
+    }
+
+    private static String formatLatency(long latencyMs) {
+        if (latencyMs < 0)
+            return "-";
+        else if (latencyMs == Long.MAX_VALUE)
+            return ">" + LATENCY_BUCKETS_MS[LATENCY_BUCKETS_MS.length - 1] + " ms";
+        return "≤" + latencyMs + " ms";
+    }
+
+    private Counters characteristic(UUID characteristic) {
+        Counters counters = mByCharacteristic.get(characteristic);
+        if (counters == null) {
+            counters = new Counters();
+            mByCharacteristic.put(characteristic, counters);
+        }
+        return counters;
+    }
+
+    private Counters service(UUID characteristic) {
+        UUID service = mServiceOfCharacteristic.get(characteristic);
+        if (service == null) return null;
+        Counters counters = mByService.get(service);
+        if (counters == null) {
+            counters = new Counters();
+            mByService.put(service, counters);
+        }
+        return counters;
+    }
+}
@@ -0,0 +1,70 @@
+package org.asteroidos.sync.asteroid;
+
+/**
+ * Protocol version and optional features of the sync daemon on the watch, as read from its
+ * capabilities characteristic. Watches without that characteristic, and watches that have not
+ * been connected yet, get {@link #NONE}: everything is sent in the formats every watch understands.
+ */
+public final class WatchCapabilities {
+    /* Notifications may be sent in the TLV wire format instead of XML */
+    public static final int TLV_NOTIFICATIONS = 1;
+    /* Payloads may be deflated with the preset dictionary of PayloadCompressor */
+    public static final int COMPRESSION = 2;
+
+    public static final WatchCapabilities NONE = new WatchCapabilities(0, 0);
+
+    private final int mProtocolVersion;
+    private final int mFlags;
+
+    public WatchCapabilities(int protocolVersion, int flags) {
+        mProtocolVersion = protocolVersion;
+        mFlags = flags;
+    }
+
+    public final int getProtocolVersion() {
+        return mProtocolVersion;
+    }
+
+    public final int getFlags() {
+        return mFlags;
+    }
+
+    public final boolean supportsTlvNotifications() {
+        return (mFlags & TLV_NOTIFICATIONS) != 0;
+    }
+
+    public final boolean supportsCompression() {
+        return (mFlags & COMPRESSION) != 0;
+    }
+
+    /**
+     * @return the capabilities both watches have, for values encoded once and written to both
+     */
+    public final WatchCapabilities intersect(WatchCapabilities other) {
+        return new WatchCapabilities(Math.min(mProtocolVersion, other.mProtocolVersion), mFlags & other.mFlags);
+    }
+
+    @Override
+    public final boolean equals(Object o) {
+        if (!(o instanceof WatchCapabilities)) return false;
+        WatchCapabilities other = (WatchCapabilities) o;
+        return other.mProtocolVersion == mProtocolVersion && other.mFlags == mFlags;
+    }
+
+    @Override
+    public final int hashCode() {
+        return mProtocolVersion * 31 + mFlags;
+    }
+
+    @Override
+    public final String toString() {
+        if (mProtocolVersion == 0 && mFlags == 0)
+            return "none";
+        StringBuilder builder = new StringBuilder("v").append(mProtocolVersion).append(' ');
+        if (supportsTlvNotifications())
+            builder.append("tlv-notifications ");
+        if (supportsCompression())
+            builder.append("compression ");
+        return builder.toString().trim();
+    }
+}
@@ -0,0 +1,209 @@
+package org.asteroidos.sync.asteroid;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams payloads spanning several packets as writes without response, without waiting for
+ * the watch to acknowledge every packet. The watch grants credits, one per packet it has room
+ * for, and never more packets are in flight than it granted.
+ * <p>
+ * Every packet starts with a flags byte. The first packet of a stream is marked with
+ * {@link #FLAG_START} and followed by the length of the payload as a 16 bit little endian
+ * integer, so the watch can reassemble it and drop what is left of a stream that was aborted.
+ * A stream is aborted as soon as one of its packets failed, and stalls if the watch hands back
+ * no credit for {@link #STALL_TIMEOUT_MS}.
+ */
+class WritePipeline {
+    public static final String TAG = WritePipeline.class.toString();
+
+    static final byte FLAG_START = 0x01;
+    static final int HEADER_SIZE = 1;
+    static final int START_HEADER_SIZE = HEADER_SIZE + 2;
+    static final int MAX_STREAM_SIZE = 0xFFFF;
+    static final long STALL_TIMEOUT_MS = 3000;
+
+    interface Completion {
+        void onComplete(boolean success);
+    }
+
+    interface PacketSender {
+        /**
+         * Hands packet to the radio, done is called once it left or could not be sent.
+         */
+        void send(byte[] packet, Completion done);
+    }
+
+    private static final class Stream {
+        final byte[] data;
+        final int packetSize;
+        final PacketSender sender;
+        final Completion completion;
+        final Runnable onStalled;
+        int offset = 0;
+        int inFlight = 0;
+        boolean failed = false;
+
+        Stream(byte[] data, int packetSize, PacketSender sender, Completion completion, Runnable onStalled) {
+            this.data = data;
+            this.packetSize = packetSize;
+            this.sender = sender;
+            this.completion = completion;
+            this.onStalled = onStalled;
+        }
+
+        boolean isSent() {
+            return failed || offset >= data.length;
+        }
+
+        byte[] nextPacket() {
+            boolean start = offset == 0;
+            int headerSize = start ? START_HEADER_SIZE : HEADER_SIZE;
+            int length = Math.min(data.length - offset, packetSize - headerSize);
+            byte[] packet = new byte[headerSize + length];
+            if (start) {
+                packet[0] = FLAG_START;
+                packet[1] = (byte) data.length;
+                packet[2] = (byte) (data.length >> 8);
+            }
+            System.arraycopy(data, offset, packet, headerSize, length);
+            offset += length;
+            return packet;
+        }
+    }
+
+    private final ArrayDeque<Stream> mStreams = new ArrayDeque<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /* Package-private so that tests can fire the stall timeout */
+    final Runnable mOnStall = this::onStall;
+    private int mCredits = 0;
+    private boolean mStalled = false;
+
+    /**
+     * @return whether data can be streamed in packets of packetSize at all
+     */
+    static boolean fits(byte[] data, int packetSize) {
+        return data.length <= MAX_STREAM_SIZE && packetSize > START_HEADER_SIZE;
+    }
+
+    /**
+     * Queues data behind the streams already in progress. completion is called once every
+     * packet went out, or with false as soon as one of them failed. If the pipeline stalls
+     * before the stream completed, onStalled is called instead and the payload has to be sent
+     * another way.
+     */
+    final void stream(byte[] data, int packetSize, PacketSender sender, Completion completion, Runnable onStalled) {
+        synchronized (this) {
+            mStreams.add(new Stream(data, packetSize, sender, completion, onStalled));
+            if (mStreams.size() == 1)
+                watchForStall();
+        }
+        pump();
+    }
+
+    /**
+     * The watch made room for another credits packets.
+     */
+    final void grant(int credits) {
+        synchronized (this) {
+            mCredits += credits;
+            mStalled = false;
+            watchForStall();
+        }
+        pump();
+    }
+
+    final synchronized int getCredits() {
+        return mCredits;
+    }
+
+    /**
+     * @return whether the watch stopped handing back credits, until it grants some again
+     */
+    final synchronized boolean isStalled() {
+        return mStalled;
+    }
+
+    /**
+     * Fails every stream and forgets the granted credits, the watch grants a new window on the
+     * next connection.
+     */
+    final void reset() {
+        List<Stream> discarded;
+        synchronized (this) {
+            discarded = new ArrayList<>(mStreams);
+            mStreams.clear();
+            mCredits = 0;
+            mStalled = false;
+            mHandler.removeCallbacks(mOnStall);
+        }
+        for (Stream stream : discarded)
+            stream.completion.onComplete(false);
+    }
+
+    private void pump() {
+        Stream stream;
+        List<byte[]> packets = new ArrayList<>();
+        synchronized (this) {
+            stream = mStreams.peek();
+            if (stream == null) return;
+            while (mCredits > 0 && !stream.isSent()) {
+                packets.add(stream.nextPacket());
+                stream.inFlight++;
+                mCredits--;
+            }
+        }
+        for (byte[] packet : packets)
+            stream.sender.send(packet, success -> onPacketSent(stream, success));
+    }
+
+    private void onPacketSent(Stream stream, boolean success) {
+        synchronized (this) {
+            stream.inFlight--;
+            // The rest of an aborted stream is not worth sending, the next one starts afresh
+            if (stream.failed) return;
+            if (!success) {
+                Log.w(TAG, "Packet of a " + stream.data.length + " B stream failed, aborting it");
+                stream.failed = true;
+            } else if (!stream.isSent() || stream.inFlight > 0) {
+                return;
+            }
+            if (mStreams.peek() != stream) return;
+            mStreams.poll();
+            watchForStall();
+        }
+        stream.completion.onComplete(!stream.failed);
+        pump();
+    }
+
+    /**
+     * Restarts the stall timeout while a stream is in progress, a credit handed back or a
+     * completed stream postpones it.
+     */
+    private void watchForStall() {
+        mHandler.removeCallbacks(mOnStall);
+        if (!mStreams.isEmpty())
+            mHandler.postDelayed(mOnStall, STALL_TIMEOUT_MS);
+    }
+
+    private void onStall() {
+        List<Stream> stalled;
+        synchronized (this) {
+            if (mStreams.isEmpty()) return;
+            Log.w(TAG, "No credit handed back for " + STALL_TIMEOUT_MS + " ms, " + mStreams.size() + " streams stalled");
+            stalled = new ArrayList<>(mStreams);
+            mStreams.clear();
+            mStalled = true;
+            // Packets still in flight must not complete their stream a second time
+            for (Stream stream : stalled)
+                stream.failed = true;
+        }
+        for (Stream stream : stalled)
+            stream.onStalled.run();
+    }
+}
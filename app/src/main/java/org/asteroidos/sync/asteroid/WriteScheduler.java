@@ -0,0 +1,313 @@
+package org.asteroidos.sync.asteroid;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.asteroidos.sync.asteroid.IAsteroidDevice.WritePriority;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sits in front of the GATT request queue and hands out one write at a time,
+ * always picking the oldest pending write of the most urgent {@link WritePriority}.
+ * Keeping a single write in flight is what allows a ringing call to overtake
+ * a backlog of media and weather updates.
+ */
+class WriteScheduler {
+    public static final String TAG = WriteScheduler.class.toString();
+
+    interface Sink {
+        void dispatch(PendingWrite write);
+    }
+
+    /**
+     * A pending write doubles as the future handed back to the writer.
+     */
+    static final class PendingWrite extends CompletableFuture<Void> {
+        final AsteroidChannel channel;
+        final String key;
+        byte[] data;
+        final WritePriority priority;
+        final long enqueuedAt;
+        /* The batch the write belongs to, null for a standalone write */
+        final Batch batch;
+
+        PendingWrite(AsteroidChannel channel, String key, byte[] data, WritePriority priority, Batch batch) {
+            this.channel = channel;
+            this.key = key;
+            this.data = data;
+            this.priority = priority;
+            this.batch = batch;
+            this.enqueuedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Writes that only make sense together, e.g. the title, album and artist of a song.
+     * They are queued and handed to the {@link Sink} as one unit, nothing gets in between.
+     */
+    static final class Batch {
+        final ArrayList<PendingWrite> writes = new ArrayList<>();
+        /* Nesting level of the writer building the batch */
+        int depth = 0;
+        long committedAt;
+    }
+
+    private final Sink mSink;
+    private final TransportMetrics mMetrics;
+    private final EnumMap<WritePriority, ArrayDeque<PendingWrite>> mQueues;
+    private PendingWrite mInFlight;
+
+    WriteScheduler(Sink sink, TransportMetrics metrics) {
+        mSink = sink;
+        mMetrics = metrics;
+        mQueues = new EnumMap<>(WritePriority.class);
+        for (WritePriority priority : WritePriority.values())
+            mQueues.put(priority, new ArrayDeque<>());
+    }
+
+    /**
+     * Maximum number of pending writes per priority class. When a class is full
+     * its oldest pending write is dropped in favour of the new one.
+     */
+    static int maxDepth(WritePriority priority) {
+        switch (priority) {
+            case CALL:
+                return 8;
+            case NOTIFICATION:
+                return 64;
+            case MEDIA:
+                return 16;
+            case TIME:
+                return 2;
+            case WEATHER:
+                return 8;
+            default:
+                return 32;
+        }
+    }
+
+    /**
+     * @param key if not null and a standalone write of the same channel with the same key is
+     *            still pending, its value is replaced by data instead of queueing another write.
+     *            Writes of a committed batch are left as they are.
+     * @return the future of the write that will carry data
+     */
+    final CompletableFuture<Void> enqueue(AsteroidChannel channel, String key, byte[] data, WritePriority priority) {
+        PendingWrite write;
+        PendingWrite dropped = null;
+        PendingWrite next;
+        synchronized (this) {
+            ArrayDeque<PendingWrite> queue = mQueues.get(priority);
+            if (key != null) {
+                for (PendingWrite pending : queue) {
+                    if (pending.batch == null && pending.channel == channel && key.equals(pending.key)) {
+                        pending.data = data;
+                        mMetrics.onCoalesced(channel.getCharacteristic());
+                        return pending;
+                    }
+                }
+            }
+            if (queue.size() >= maxDepth(priority)) {
+                dropped = queue.peek();
+                dropOldestLocked(queue);
+            }
+            write = new PendingWrite(channel, key, data, priority, null);
+            queue.add(write);
+            channel.pendingCount++;
+            mMetrics.onEnqueued(channel.getCharacteristic());
+            next = pollNextLocked();
+        }
+        if (dropped != null)
+            cancel(dropped);
+        if (next != null)
+            mSink.dispatch(next);
+        return write;
+    }
+
+    /**
+     * Adds a write to batch, it is only queued once the batch is {@link #commit(Batch) committed}.
+     * A write of the same channel with the same key already in batch gets its value replaced.
+     *
+     * @return the future of the write that will carry data
+     */
+    final CompletableFuture<Void> add(Batch batch, AsteroidChannel channel, String key, byte[] data, WritePriority priority) {
+        synchronized (this) {
+            if (key != null) {
+                for (PendingWrite pending : batch.writes) {
+                    if (pending.channel == channel && key.equals(pending.key)) {
+                        pending.data = data;
+                        mMetrics.onCoalesced(channel.getCharacteristic());
+                        return pending;
+                    }
+                }
+            }
+            PendingWrite write = new PendingWrite(channel, key, data, priority, batch);
+            batch.writes.add(write);
+            return write;
+        }
+    }
+
+    /**
+     * Queues the writes of batch back to back, at the most urgent priority among them.
+     * Batches are not coalesced with pending writes, and may exceed the depth of their class.
+     */
+    final void commit(Batch batch) {
+        if (batch.writes.isEmpty()) return;
+        PendingWrite next;
+        synchronized (this) {
+            WritePriority priority = batch.writes.get(0).priority;
+            for (PendingWrite write : batch.writes)
+                if (write.priority.ordinal() < priority.ordinal())
+                    priority = write.priority;
+            ArrayDeque<PendingWrite> queue = mQueues.get(priority);
+            batch.committedAt = SystemClock.elapsedRealtime();
+            for (PendingWrite write : batch.writes) {
+                queue.add(write);
+                write.channel.pendingCount++;
+                mMetrics.onEnqueued(write.channel.getCharacteristic());
+            }
+            next = pollNextLocked();
+        }
+        if (next != null)
+            mSink.dispatch(next);
+    }
+
+    /**
+     * Must be called once the GATT layer is done with the write handed to the {@link Sink},
+     * whether it succeeded or not.
+     */
+    final void onWriteComplete(PendingWrite write, boolean success) {
+        PendingWrite next;
+        synchronized (this) {
+            if (write != mInFlight) return;
+            mInFlight = null;
+            if (!success)
+                Log.w(TAG, "Write to " + write.channel.getCharacteristic() + " failed");
+            mMetrics.onWriteComplete(write.channel.getCharacteristic(), write.data.length,
+                    SystemClock.elapsedRealtime() - write.enqueuedAt, success);
+            next = pollNextLocked();
+        }
+        if (success)
+            write.complete(null);
+        else
+            write.completeExceptionally(new IOException("Write to " + write.channel.getCharacteristic() + " failed"));
+        if (next != null)
+            mSink.dispatch(next);
+    }
+
+    /**
+     * Must be called once the GATT layer is done with a batch handed to the {@link Sink}.
+     * The batch counts as consistent on the watch once all of its writes succeeded.
+     */
+    final void onBatchComplete(Batch batch, boolean success) {
+        PendingWrite next;
+        synchronized (this) {
+            if (batch.writes.isEmpty() || batch.writes.get(0) != mInFlight) return;
+            mInFlight = null;
+            long now = SystemClock.elapsedRealtime();
+            if (!success)
+                Log.w(TAG, "Batch of " + batch.writes.size() + " writes failed");
+            for (PendingWrite write : batch.writes)
+                mMetrics.onWriteComplete(write.channel.getCharacteristic(), write.data.length,
+                        now - write.enqueuedAt, success);
+            mMetrics.onBatchComplete(batch.writes.size(), now - batch.committedAt, success);
+            next = pollNextLocked();
+        }
+        for (PendingWrite write : batch.writes) {
+            if (success)
+                write.complete(null);
+            else
+                write.completeExceptionally(new IOException("Batched write to " + write.channel.getCharacteristic() + " failed"));
+        }
+        if (next != null)
+            mSink.dispatch(next);
+    }
+
+    /**
+     * Takes every pending write off the queues, along with the one in flight. Their futures
+     * are left to the caller, which either cancels or journals them.
+     *
+     * @return the discarded writes, the one in flight first
+     */
+    final List<PendingWrite> clear() {
+        List<PendingWrite> discarded = new ArrayList<>();
+        synchronized (this) {
+            if (mInFlight != null) {
+                if (mInFlight.batch != null)
+                    discarded.addAll(mInFlight.batch.writes);
+                else
+                    discarded.add(mInFlight);
+            }
+            mInFlight = null;
+            for (ArrayDeque<PendingWrite> queue : mQueues.values()) {
+                for (PendingWrite write : queue)
+                    write.channel.pendingCount--;
+                discarded.addAll(queue);
+                queue.clear();
+            }
+            mMetrics.onQueueCleared();
+        }
+        return discarded;
+    }
+
+    final synchronized int getPendingCount() {
+        int count = 0;
+        for (ArrayDeque<PendingWrite> queue : mQueues.values())
+            count += queue.size();
+        return count;
+    }
+
+    /**
+     * Removes the oldest write of a full queue, or the whole batch it belongs to.
+     */
+    private void dropOldestLocked(ArrayDeque<PendingWrite> queue) {
+        PendingWrite oldest = queue.peek();
+        int count = oldest.batch != null ? oldest.batch.writes.size() : 1;
+        for (int i = 0; i < count; i++) {
+            PendingWrite dropped = queue.poll();
+            dropped.channel.pendingCount--;
+            Log.w(TAG, dropped.priority + " queue full, dropping write to " + dropped.channel.getCharacteristic());
+            mMetrics.onDropped(dropped.channel.getCharacteristic());
+        }
+    }
+
+    private static void cancel(PendingWrite dropped) {
+        if (dropped.batch == null) {
+            dropped.cancel(false);
+            return;
+        }
+        for (PendingWrite write : dropped.batch.writes)
+            write.cancel(false);
+    }
+
+    /**
+     * @return the next write to dispatch; for a batch its first write, the rest of the batch
+     * is taken off the queue along with it
+     */
+    private PendingWrite pollNextLocked() {
+        if (mInFlight != null) return null;
+        for (WritePriority priority : WritePriority.values()) {
+            ArrayDeque<PendingWrite> queue = mQueues.get(priority);
+            PendingWrite write = queue.peek();
+            if (write == null) continue;
+            int count = write.batch != null ? write.batch.writes.size() : 1;
+            for (int i = 0; i < count; i++) {
+                PendingWrite member = queue.poll();
+                member.channel.pendingCount--;
+                mMetrics.onDispatched(member.channel.getCharacteristic());
+            }
+            mInFlight = write;
+            Log.d(TAG, priority + (count > 1 ? " batch of " + count + " writes to " : " write to ")
+                    + write.channel.getCharacteristic() + " waited "
+                    + (SystemClock.elapsedRealtime() - write.enqueuedAt) + " ms");
+            return write;
+        }
+        return null;
+    }
+}
@@ -1,6 +1,9 @@
 package org.asteroidos.sync.connectivity;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -10,10 +13,35 @@ import java.util.UUID;
 public interface IConnectivityService extends IService {
     enum Direction{
         FROM_WATCH,
-        TO_WATCH
+        TO_WATCH,
+        /**
+         * The characteristic carries state rather than events: a pending write that has
+         * not been sent yet is replaced by a newer value instead of being sent before it.
+         */
+        TO_WATCH_COALESCED;
+
+        public boolean isToWatch() {
+            return this != FROM_WATCH;
+        }
     }
 
     HashMap<UUID, Direction> getCharacteristicUUIDs();
 
+    /**
+     * @return characteristics whose large payloads may be compressed for watches supporting it.
+     * Only worth it for text, not for data that is compressed already.
+     */
+    default Set<UUID> getCompressibleCharacteristics() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * @return jobs scheduled from the registration of the service until it is unregistered,
+     * they stay scheduled while the service is unsynced.
+     */
+    default Collection<IPeriodicJob> getPeriodicJobs() {
+        return Collections.emptySet();
+    }
+
     UUID getServiceUUID();
 }
@@ -0,0 +1,26 @@
+package org.asteroidos.sync.connectivity;
+
+/**
+ * Periodic work of a service, scheduled for as long as the service is registered, see
+ * {@link IConnectivityService#getPeriodicJobs()}. Jobs share their wakeups, so a job may run
+ * up to a quarter of its interval early, and they only run while a watch is connected: a job
+ * that became due while none was runs once one is back. Runs on the sync looper.
+ */
+public interface IPeriodicJob {
+    long getIntervalMs();
+
+    /**
+     * @return what the outcome of the job depends on, the job is skipped while it equals the
+     * inputs of its last run that sent something; null if that cannot be known without running it
+     */
+    default Object getInputs() {
+        return null;
+    }
+
+    /**
+     * @param onSent to be called on the sync looper once the job sent its outcome to the watch,
+     *               possibly later on. Until then the job runs on every wakeup it is due,
+     *               whether its inputs changed or not.
+     */
+    void run(Runnable onSent);
+}
@@ -7,8 +7,21 @@ package org.asteroidos.sync.connectivity;
  * when the watch is disconnected,
  * ({@link IService#sync()}) is called when the watch is connected.
  * ({@link IService#unsync()}) is called when the watch is disconnected.
+ * Both are called on the sync looper of the SynchronizationService, never on the main thread.
+ * Receivers, observers and handlers of a service are bound to that looper, {@link android.os.Looper#myLooper()}.
  */
 public interface IService {
+    int SYNC_PRIORITY_DEFAULT = 10;
+
     public void sync();
     public void unsync();
+
+    /**
+     * Services are synced in ascending order of priority, those sharing one together, and
+     * unsynced in the opposite order. Services that write to the watch on sync() should come
+     * before the ones that do not.
+     */
+    default int getSyncPriority() {
+        return SYNC_PRIORITY_DEFAULT;
+    }
 }
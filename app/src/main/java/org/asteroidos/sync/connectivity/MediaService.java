@@ -20,7 +20,6 @@ package org.asteroidos.sync.connectivity;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.database.ContentObserver;
 import android.media.AudioManager;
 import android.media.MediaMetadata;
@@ -39,14 +38,17 @@ import com.maxmpz.poweramp.player.PowerampAPI;
 import com.maxmpz.poweramp.player.PowerampAPIHelper;
 
 import org.asteroidos.sync.asteroid.IAsteroidDevice;
+import org.asteroidos.sync.asteroid.IChannel;
 import org.asteroidos.sync.services.NLService;
 import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.PayloadUtils;
+import org.asteroidos.sync.utils.Settings;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public class MediaService implements IConnectivityService,  MediaSessionManager.OnActiveSessionsChangedListener {
 
@@ -61,24 +63,40 @@ public class MediaService implements IConnectivityService,  MediaSessionManager.
     public static final String PREFS_NAME = "MediaPreferences";
     public static final String PREFS_MEDIA_CONTROLLER_PACKAGE = "media_controller_package";
     public static final String PREFS_MEDIA_CONTROLLER_PACKAGE_DEFAULT = "default";
+    public static final Settings.Key<String> MEDIA_CONTROLLER_PACKAGE = Settings.Key.string(PREFS_NAME, PREFS_MEDIA_CONTROLLER_PACKAGE, PREFS_MEDIA_CONTROLLER_PACKAGE_DEFAULT);
 
     private final Context mCtx;
     private final IAsteroidDevice mDevice;
-    private SharedPreferences mSettings;
+    private final IChannel mTitleChannel;
+    private final IChannel mAlbumChannel;
+    private final IChannel mArtistChannel;
+    private final IChannel mPlayingChannel;
+    private final IChannel mVolumeChannel;
+    private Settings mSettings;
 
     private MediaController mMediaController = null;
     private MediaSessionManager mMediaSessionManager;
+    /* Bound to the sync looper while synced */
+    private Handler mHandler;
+    private VolumeChangeObserver mVolumeChangeObserver;
 
     private int mVolume;
+    /* Completes once the watch took the song sent last, songs changing meanwhile wait in mUnsentMetadata */
+    private CompletableFuture<Void> mMetadataWrite = null;
+    private MediaMetadata mUnsentMetadata = null;
 
     public MediaService(Context ctx, IAsteroidDevice device) {
         mDevice = device;
         mCtx = ctx;
+        mTitleChannel = device.openChannel(AsteroidUUIDS.MEDIA_TITLE_CHAR);
+        mAlbumChannel = device.openChannel(AsteroidUUIDS.MEDIA_ALBUM_CHAR);
+        mArtistChannel = device.openChannel(AsteroidUUIDS.MEDIA_ARTIST_CHAR);
+        mPlayingChannel = device.openChannel(AsteroidUUIDS.MEDIA_PLAYING_CHAR);
+        mVolumeChannel = device.openChannel(AsteroidUUIDS.MEDIA_VOLUME_CHAR);
         device.registerCallback(AsteroidUUIDS.MEDIA_COMMANDS_CHAR, (data) -> {
             if (data == null) return;
             if (mMediaController != null) {
-                boolean isPoweramp = mSettings.getString(PREFS_MEDIA_CONTROLLER_PACKAGE, PREFS_MEDIA_CONTROLLER_PACKAGE_DEFAULT)
-                        .equals(PowerampAPI.PACKAGE_NAME);
+                boolean isPoweramp = mSettings.get(MEDIA_CONTROLLER_PACKAGE).equals(PowerampAPI.PACKAGE_NAME);
 
                 switch (data[0]) {
                     case MEDIA_COMMAND_PREVIOUS:
@@ -150,19 +168,21 @@ public class MediaService implements IConnectivityService,  MediaSessionManager.
             }
         });
 
-        mSettings = mCtx.getSharedPreferences(PREFS_NAME, 0);
+        mSettings = Settings.get(mCtx);
     }
 
     @Override
     public void sync() {
+        mHandler = new Handler(Looper.myLooper());
+        mVolumeChangeObserver = new VolumeChangeObserver(mHandler);
         mCtx.getContentResolver().registerContentObserver(android.provider.Settings.System.CONTENT_URI, true, mVolumeChangeObserver);
         try {
             mMediaSessionManager = (MediaSessionManager) mCtx.getSystemService(Context.MEDIA_SESSION_SERVICE);
             List<MediaController> controllers = mMediaSessionManager.getActiveSessions(new ComponentName(mCtx, NLService.class));
-            Handler handler = new Handler(Looper.getMainLooper());
+            Handler handler = mHandler;
             handler.post(() -> {
                 onActiveSessionsChanged(controllers);
-                mMediaSessionManager.addOnActiveSessionsChangedListener(this, new ComponentName(mCtx, NLService.class));
+                mMediaSessionManager.addOnActiveSessionsChangedListener(this, new ComponentName(mCtx, NLService.class), handler);
             });
         } catch (SecurityException e) {
             Log.w(TAG, "No Notification Access");
@@ -171,7 +191,13 @@ public class MediaService implements IConnectivityService,  MediaSessionManager.
 
     @Override
     public final void unsync() {
-        mCtx.getContentResolver().unregisterContentObserver(mVolumeChangeObserver);
+        if (mVolumeChangeObserver != null)
+            mCtx.getContentResolver().unregisterContentObserver(mVolumeChangeObserver);
+        mVolumeChangeObserver = null;
+        if (mHandler != null)
+            mHandler.removeCallbacksAndMessages(null);
+        mMetadataWrite = null;
+        mUnsentMetadata = null;
 
         if(mMediaSessionManager != null)
             mMediaSessionManager.removeOnActiveSessionsChangedListener(this);
@@ -183,19 +209,28 @@ public class MediaService implements IConnectivityService,  MediaSessionManager.
         mMediaController = null;
     }
 
+    @Override
+    public final int getSyncPriority() {
+        return 2;
+    }
+
     private void sendVolume(int volume) {
         // Set real volume.
         mVolume = volume;
 
         byte[] data = new byte[1];
         data[0] = (byte) mVolume;
-        mDevice.send(AsteroidUUIDS.MEDIA_VOLUME_CHAR, data, MediaService.this);
+        mVolumeChannel.write(data);
     }
 
-    private final ContentObserver mVolumeChangeObserver = new ContentObserver(new Handler()) {
+    private final class VolumeChangeObserver extends ContentObserver {
         // The last value of volume send to the watch.
         private int reportedVolume;
 
+        VolumeChangeObserver(Handler handler) {
+            super(handler);
+        }
+
         @Override
         public void onChange(boolean selfChange) {
             super.onChange(selfChange);
@@ -208,7 +243,7 @@ public class MediaService implements IConnectivityService,  MediaSessionManager.
                 }
             }
         }
-    };
+    }
 
     /**
      * Callback for the MediaController.
@@ -224,7 +259,8 @@ public class MediaService implements IConnectivityService,  MediaSessionManager.
          * Helper method to safely get a text value from a {@link MediaMetadata} as a byte array
          * (UTF-8 encoded).
          *
-         * <p>If the field is null, a zero length byte array will be returned.</p>
+         * <p>If the field is null, a zero length byte array will be returned. Longer values are
+         * truncated to fit in a single write packet.</p>
          *
          * @param metadata the MediaMetadata (assumed to be non-null)
          * @param fieldName the field name
@@ -236,7 +272,7 @@ public class MediaService implements IConnectivityService,  MediaSessionManager.
             CharSequence text = metadata.getText(fieldName);
 
             if (text != null) {
-                result = text.toString().getBytes(StandardCharsets.UTF_8);
+                result = PayloadUtils.encodeUtf8(text.toString(), mDevice.getMaxPayloadSize());
             } else {
                 result = new byte[]{0};
             }
@@ -248,22 +284,32 @@ public class MediaService implements IConnectivityService,  MediaSessionManager.
         public void onMetadataChanged(MediaMetadata metadata) {
             super.onMetadataChanged(metadata);
 
-            if (metadata != null) {
-                mDevice.send(AsteroidUUIDS.MEDIA_ARTIST_CHAR,
-                        getTextAsBytes(metadata, MediaMetadata.METADATA_KEY_ARTIST),
-                        MediaService.this);
-
-                mDevice.send(AsteroidUUIDS.MEDIA_ALBUM_CHAR,
-                        getTextAsBytes(metadata, MediaMetadata.METADATA_KEY_ALBUM),
-                        MediaService.this);
-
-                mDevice.send(AsteroidUUIDS.MEDIA_TITLE_CHAR,
-                        getTextAsBytes(metadata, MediaMetadata.METADATA_KEY_TITLE),
-                        MediaService.this);
+            if (metadata == null) return;
+            if (mMetadataWrite != null && !mMetadataWrite.isDone()) {
+                // Skipping through songs, only the last one is sent once the watch took the previous one
+                mUnsentMetadata = metadata;
+                return;
+            }
+            mDevice.beginBatch();
+            try {
+                mArtistChannel.write(getTextAsBytes(metadata, MediaMetadata.METADATA_KEY_ARTIST));
+                mAlbumChannel.write(getTextAsBytes(metadata, MediaMetadata.METADATA_KEY_ALBUM));
+                mMetadataWrite = mTitleChannel.write(getTextAsBytes(metadata, MediaMetadata.METADATA_KEY_TITLE));
 
                 mVolume = (100 * mMediaController.getPlaybackInfo().getCurrentVolume()) / mMediaController.getPlaybackInfo().getMaxVolume();
                 sendVolume(mVolume);
+            } finally {
+                mDevice.commitBatch();
             }
+            Handler handler = mHandler;
+            CompletableFuture<Void> write = mMetadataWrite;
+            if (handler != null)
+                write.whenComplete((result, error) -> handler.post(() -> {
+                    MediaMetadata unsent = mUnsentMetadata;
+                    if (write != mMetadataWrite || unsent == null) return;
+                    mUnsentMetadata = null;
+                    onMetadataChanged(unsent);
+                }));
         }
 
         @Override
@@ -271,7 +317,7 @@ public class MediaService implements IConnectivityService,  MediaSessionManager.
             super.onPlaybackStateChanged(state);
             byte[] data = new byte[1];
             data[0] = (byte)(state.getState() == PlaybackState.STATE_PLAYING ?  1 : 0);
-            mDevice.send(AsteroidUUIDS.MEDIA_PLAYING_CHAR, data, MediaService.this);
+            mPlayingChannel.write(data);
         }
 
         @Override
@@ -297,32 +343,38 @@ public class MediaService implements IConnectivityService,  MediaSessionManager.
             if(mMediaController == null) {
                 // Attach new controller
                 mMediaController = controllers.get(0);
-                mMediaController.registerCallback(mMediaCallback);
+                mMediaController.registerCallback(mMediaCallback, mHandler);
                 mMediaCallback.onMetadataChanged(mMediaController.getMetadata());
                 if (mMediaController.getPlaybackState() != null)
                     mMediaCallback.onPlaybackStateChanged(mMediaController.getPlaybackState());
                 Log.d(TAG, "MediaController set: " + mMediaController.getPackageName());
-                SharedPreferences.Editor editor = mSettings.edit();
-                editor.putString(PREFS_MEDIA_CONTROLLER_PACKAGE, mMediaController.getPackageName());
-                editor.apply();
+                mSettings.set(MEDIA_CONTROLLER_PACKAGE, mMediaController.getPackageName());
             }
         } else {
+            // A song held back for the watch must not reach it after the clear
+            mUnsentMetadata = null;
+            mMetadataWrite = null;
             byte[] data = new byte[]{0};
-            mDevice.send(AsteroidUUIDS.MEDIA_ARTIST_CHAR, data, MediaService.this);
-            mDevice.send(AsteroidUUIDS.MEDIA_ALBUM_CHAR, data, MediaService.this);
-            mDevice.send(AsteroidUUIDS.MEDIA_TITLE_CHAR, data, MediaService.this);
+            mDevice.beginBatch();
+            try {
+                mArtistChannel.write(data);
+                mAlbumChannel.write(data);
+                mTitleChannel.write(data);
+            } finally {
+                mDevice.commitBatch();
+            }
         }
     }
 
     @Override
     public HashMap<UUID, Direction> getCharacteristicUUIDs() {
         HashMap<UUID, Direction> chars = new HashMap<>();
-        chars.put(AsteroidUUIDS.MEDIA_TITLE_CHAR, Direction.TO_WATCH);
-        chars.put(AsteroidUUIDS.MEDIA_ALBUM_CHAR, Direction.TO_WATCH);
-        chars.put(AsteroidUUIDS.MEDIA_ARTIST_CHAR, Direction.TO_WATCH);
-        chars.put(AsteroidUUIDS.MEDIA_PLAYING_CHAR, Direction.TO_WATCH);
+        chars.put(AsteroidUUIDS.MEDIA_TITLE_CHAR, Direction.TO_WATCH_COALESCED);
+        chars.put(AsteroidUUIDS.MEDIA_ALBUM_CHAR, Direction.TO_WATCH_COALESCED);
+        chars.put(AsteroidUUIDS.MEDIA_ARTIST_CHAR, Direction.TO_WATCH_COALESCED);
+        chars.put(AsteroidUUIDS.MEDIA_PLAYING_CHAR, Direction.TO_WATCH_COALESCED);
         chars.put(AsteroidUUIDS.MEDIA_COMMANDS_CHAR, Direction.FROM_WATCH);
-        chars.put(AsteroidUUIDS.MEDIA_VOLUME_CHAR, Direction.TO_WATCH);
+        chars.put(AsteroidUUIDS.MEDIA_VOLUME_CHAR, Direction.TO_WATCH_COALESCED);
         return chars;
     }
 
@@ -21,26 +21,42 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
 
 import org.asteroidos.sync.NotificationPreferences;
 import org.asteroidos.sync.asteroid.IAsteroidDevice;
+import org.asteroidos.sync.asteroid.IChannel;
 import org.asteroidos.sync.dataobjects.Notification;
 import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.TlvWriter;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 
 public class NotificationService implements IConnectivityService {
 
     public static final String TAG = NotificationService.class.toString();
+    /* Incoming calls are forwarded by PhoneStateReceiver under this package name */
+    private static final String DIALER_PACKAGE_NAME = "org.asteroidos.generic.dialer";
+    /* Longer notifications get their body shortened rather than spilling over more packets */
+    private static final int MAX_NOTIFICATION_PACKETS = 8;
     private Context mCtx;
     private IAsteroidDevice mDevice;
+    private final IChannel mUpdateChannel;
     private NotificationReceiver mNReceiver;
+    private final HashSet<Integer> mCallIds = new HashSet<>();
+    /* Reused for every notification, broadcasts are received on the sync looper only */
+    private final TlvWriter mTlvWriter = new TlvWriter();
 
     public NotificationService(Context ctx, IAsteroidDevice device) {
         this.mDevice = device;
         this.mCtx = ctx;
+        mUpdateChannel = device.openChannel(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR);
         mNReceiver = new NotificationReceiver();
     }
 
@@ -48,7 +64,7 @@ public class NotificationService implements IConnectivityService {
     public void sync() {
         IntentFilter filter = new IntentFilter();
         filter.addAction("org.asteroidos.sync.NOTIFICATION_LISTENER");
-        mCtx.registerReceiver(mNReceiver, filter);
+        mCtx.registerReceiver(mNReceiver, filter, null, new Handler(Looper.myLooper()));
 
         Intent i = new Intent("org.asteroidos.sync.NOTIFICATION_LISTENER_SERVICE");
         i.putExtra("command", "refresh");
@@ -62,6 +78,11 @@ public class NotificationService implements IConnectivityService {
         } catch (IllegalArgumentException ignored) {}
     }
 
+    @Override
+    public final int getSyncPriority() {
+        return 1;
+    }
+
     @Override
     public final HashMap<UUID, Direction> getCharacteristicUUIDs() {
         HashMap<UUID, Direction> chars = new HashMap<>();
@@ -70,6 +91,11 @@ public class NotificationService implements IConnectivityService {
         return chars;
     }
 
+    @Override
+    public final Set<UUID> getCompressibleCharacteristics() {
+        return Collections.singleton(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR);
+    }
+
     @Override
     public final UUID getServiceUUID() {
         return AsteroidUUIDS.NOTIFICATION_SERVICE_UUID;
@@ -119,11 +145,25 @@ public class NotificationService implements IConnectivityService {
                         body,
                         vibration);
 
-                mDevice.send(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR, notification.toBytes(), NotificationService.this);
+                IAsteroidDevice.WritePriority priority = IAsteroidDevice.WritePriority.NOTIFICATION;
+                if (DIALER_PACKAGE_NAME.equals(packageName)) {
+                    mCallIds.add(id);
+                    priority = IAsteroidDevice.WritePriority.CALL;
+                }
+
+                int maxLength = mDevice.getMaxPayloadSize() * MAX_NOTIFICATION_PACKETS;
+                byte[] payload = mDevice.getCapabilities().supportsTlvNotifications()
+                        ? notification.toTlv(mTlvWriter, maxLength) : notification.toBytes(maxLength);
+                mUpdateChannel.write(payload, priority, String.valueOf(id));
             } else if (Objects.equals(event, "removed")) {
                 int id = intent.getIntExtra("id", 0);
+                IAsteroidDevice.WritePriority priority = mCallIds.remove(id)
+                        ? IAsteroidDevice.WritePriority.CALL : IAsteroidDevice.WritePriority.NOTIFICATION;
 
-                mDevice.send(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR, new Notification(Notification.MsgType.REMOVED, id).toBytes(), NotificationService.this);
+                Notification removed = new Notification(Notification.MsgType.REMOVED, id);
+                byte[] payload = mDevice.getCapabilities().supportsTlvNotifications()
+                        ? removed.toTlv(mTlvWriter) : removed.toBytes();
+                mUpdateChannel.write(payload, priority, String.valueOf(id));
             }
         }
     }
@@ -32,6 +32,8 @@ import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.MediaStore;
 import android.util.Log;
 
@@ -40,6 +42,7 @@ import androidx.core.content.FileProvider;
 
 import org.asteroidos.sync.R;
 import org.asteroidos.sync.asteroid.IAsteroidDevice;
+import org.asteroidos.sync.asteroid.IChannel;
 import org.asteroidos.sync.utils.AsteroidUUIDS;
 
 import java.io.File;
@@ -61,11 +64,12 @@ public class ScreenshotService implements IConnectivityService {
 
     private Context mCtx;
     private IAsteroidDevice mDevice;
+    private final IChannel mRequestChannel;
 
     private ScreenshotReqReceiver mSReceiver;
 
     private boolean mFirstNotify = true;
-    private boolean mDownloading = false;
+    private volatile boolean mDownloading = false;
     private int progress = 0;
     private int size = 0;
     private byte[] totalData;
@@ -76,6 +80,7 @@ public class ScreenshotService implements IConnectivityService {
     public ScreenshotService(Context ctx, IAsteroidDevice device) {
         mDevice = device;
         mCtx = ctx;
+        mRequestChannel = device.openPrimaryChannel(AsteroidUUIDS.SCREENSHOT_REQUEST);
 
         mNM = (NotificationManager) mCtx.getSystemService(Context.NOTIFICATION_SERVICE);
 
@@ -116,6 +121,7 @@ public class ScreenshotService implements IConnectivityService {
 
                 if (size == progress) {
                     processUpdate.shutdown();
+                    mDevice.endBulkTransfer();
                     NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(mCtx, NOTIFICATION_CHANNEL_ID)
                             .setContentTitle(mCtx.getText(R.string.screenshot))
                             .setLocalOnly(true);
@@ -156,7 +162,7 @@ public class ScreenshotService implements IConnectivityService {
         mSReceiver = new ScreenshotReqReceiver();
         IntentFilter filter = new IntentFilter();
         filter.addAction("org.asteroidos.sync.SCREENSHOT_REQUEST_LISTENER");
-        mCtx.registerReceiver(mSReceiver, filter);
+        mCtx.registerReceiver(mSReceiver, filter, null, new Handler(Looper.myLooper()));
 
         mDownloading = false;
     }
@@ -166,6 +172,10 @@ public class ScreenshotService implements IConnectivityService {
         try {
             mCtx.unregisterReceiver(mSReceiver);
         } catch (IllegalArgumentException ignored) {}
+        if (mDownloading) {
+            mDownloading = false;
+            mDevice.endBulkTransfer();
+        }
     }
 
     private static int bytesToInt(byte[] b) {
@@ -252,7 +262,8 @@ public class ScreenshotService implements IConnectivityService {
                 mDownloading = true;
                 byte[] data = new byte[1];
                 data[0] = 0x0;
-                mDevice.send(AsteroidUUIDS.SCREENSHOT_REQUEST, data, ScreenshotService.this);
+                mDevice.beginBulkTransfer();
+                mRequestChannel.write(data);
             }
         }
     }
@@ -17,57 +17,61 @@
 
 package org.asteroidos.sync.connectivity;
 
-import android.app.Activity;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.media.AudioManager;
 
-public class SilentModeService implements SharedPreferences.OnSharedPreferenceChangeListener, IService {
+import org.asteroidos.sync.utils.Settings;
+
+public class SilentModeService implements Settings.OnChangeListener, IService {
 
     public static final String PREFS_NAME = "AppPreferences";
     public static final String PREF_RINGER = "PhoneRingModeOnConnection";
     private static final String PREF_ORIG_RINGER = "OriginalRingMode";
-    private SharedPreferences prefs;
+    public static final Settings.Key<Boolean> RINGER = Settings.Key.bool(PREFS_NAME, PREF_RINGER, false);
+    private static final Settings.Key<Integer> ORIG_RINGER = Settings.Key.integer(PREFS_NAME, PREF_ORIG_RINGER, -1);
+    private Settings settings;
     private Boolean notificationPref;
     private Context context;
     private AudioManager am;
 
     public SilentModeService(Context con) {
-        prefs = con.getSharedPreferences(PREFS_NAME, Activity.MODE_PRIVATE);
+        settings = Settings.get(con);
         context = con;
-        prefs.registerOnSharedPreferenceChangeListener(this);
+        settings.registerListener(PREFS_NAME, this);
         am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
 
     }
 
     @Override
     public final void sync() {
-        notificationPref = prefs.getBoolean(PREF_RINGER, false);
+        notificationPref = settings.get(RINGER);
 
         if (notificationPref){
-            SharedPreferences.Editor editor = prefs.edit();
-            editor.putInt(PREF_ORIG_RINGER, am.getRingerMode());
-            editor.apply();
+            settings.set(ORIG_RINGER, am.getRingerMode());
             am.setRingerMode(AudioManager.RINGER_MODE_SILENT);
         }
     }
 
     @Override
     public final void unsync() {
-        notificationPref = prefs.getBoolean(PREF_RINGER, false);
+        notificationPref = settings.get(RINGER);
         if (notificationPref) {
-            int origRingerMode = prefs.getInt(PREF_ORIG_RINGER, AudioManager.RINGER_MODE_NORMAL);
-            am.setRingerMode(origRingerMode);
+            int origRingerMode = settings.get(ORIG_RINGER);
+            am.setRingerMode(origRingerMode == -1 ? AudioManager.RINGER_MODE_NORMAL : origRingerMode);
         }
     }
 
     @Override
-    public final void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        notificationPref = prefs.getBoolean(PREF_RINGER, false);
+    public final void onSettingChanged(String file, String name) {
+        // The original mode is written by sync() itself
+        if (!PREF_RINGER.equals(name)) return;
+        notificationPref = settings.get(RINGER);
         if (notificationPref) {
             am.setRingerMode(AudioManager.RINGER_MODE_SILENT);
         } else {
-            am.setRingerMode(prefs.getInt(PREF_ORIG_RINGER, am.getRingerMode()));
+            int origRingerMode = settings.get(ORIG_RINGER);
+            if (origRingerMode != -1)
+                am.setRingerMode(origRingerMode);
         }
     }
 }
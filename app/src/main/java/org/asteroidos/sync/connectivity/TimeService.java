@@ -18,48 +18,66 @@
 package org.asteroidos.sync.connectivity;
 
 import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.os.Handler;
-import android.os.SystemClock;
+import android.os.Looper;
 
 import org.asteroidos.sync.asteroid.IAsteroidDevice;
+import org.asteroidos.sync.asteroid.IChannel;
 import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.Settings;
 
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.UUID;
 
-public class TimeService implements IConnectivityService, SharedPreferences.OnSharedPreferenceChangeListener {
+public class TimeService implements IConnectivityService, Settings.OnChangeListener {
 
     public static final String PREFS_NAME = "TimePreference";
     public static final String PREFS_SYNC_TIME = "syncTime";
     public static final boolean PREFS_SYNC_TIME_DEFAULT = true;
-    public static final String TIME_SYNC_INTENT = "org.asteroidos.sync.TIME_SYNC_REQUEST_LISTENER";
+    public static final Settings.Key<Boolean> SYNC_TIME = Settings.Key.bool(PREFS_NAME, PREFS_SYNC_TIME, PREFS_SYNC_TIME_DEFAULT);
 
     private IAsteroidDevice mDevice;
+    private final IChannel mTimeSetChannel;
     private Context mCtx;
 
-    private SharedPreferences mTimeSyncSettings;
+    private final Settings mSettings;
 
     private TimeSyncReqReceiver mSReceiver;
-    private PendingIntent alarmPendingIntent;
-    private AlarmManager alarmMgr;
+    /* Handler of the sync looper while synced, null otherwise */
+    private volatile Handler mHandler;
+    /* Corrects the drift of the watch clock once a day */
+    private final IPeriodicJob mDailySync = new IPeriodicJob() {
+        @Override
+        public long getIntervalMs() {
+            return AlarmManager.INTERVAL_DAY;
+        }
+
+        @Override
+        public void run(Runnable onSent) {
+            if (updateTime())
+                onSent.run();
+        }
+    };
 
     public TimeService(Context ctx, IAsteroidDevice device) {
         mDevice = device;
         mCtx = ctx;
-        mTimeSyncSettings = ctx.getSharedPreferences(PREFS_NAME, 0);
-        mTimeSyncSettings.registerOnSharedPreferenceChangeListener(this);
+        mTimeSetChannel = device.openChannel(AsteroidUUIDS.TIME_SET_CHAR);
+        mSettings = Settings.get(ctx);
+        mSettings.registerListener(PREFS_NAME, this);
     }
 
     @Override
     public final void sync() {
-        Handler handler = new Handler();
+        Handler handler = new Handler(Looper.myLooper());
+        mHandler = handler;
         handler.postDelayed(new Runnable() {
             @Override
             public void run() {
@@ -67,31 +85,31 @@ public class TimeService implements IConnectivityService, SharedPreferences.OnSh
             }
         }, 500);
 
-        // Register a broadcast handler to use for the alarm Intent
-        // Also listen for TIME_CHANGED and TIMEZONE_CHANGED events
+        // Listen for TIME_CHANGED and TIMEZONE_CHANGED events
         mSReceiver = new TimeSyncReqReceiver();
         IntentFilter filter = new IntentFilter();
-        filter.addAction(TIME_SYNC_INTENT);
         filter.addAction(Intent.ACTION_TIME_CHANGED);
         filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
-        mCtx.registerReceiver(mSReceiver, filter);
-
-        // register an alarm to sync the time once a day
-        Intent alarmIntent = new Intent(TIME_SYNC_INTENT);
-        alarmPendingIntent = PendingIntent.getBroadcast(mCtx, 0, alarmIntent, PendingIntent.FLAG_IMMUTABLE);
-        alarmMgr = (AlarmManager) mCtx.getSystemService(Context.ALARM_SERVICE);
-        alarmMgr.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_DAY,
-                AlarmManager.INTERVAL_DAY, alarmPendingIntent);
+        mCtx.registerReceiver(mSReceiver, filter, null, handler);
     }
 
+    /**
+     * Called on the main thread, the time is sent from the sync looper, and only while synced.
+     */
     @Override
-    public final void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        updateTime();
+    public final void onSettingChanged(String file, String name) {
+        Handler handler = mHandler;
+        if (handler != null)
+            handler.post(this::updateTime);
     }
 
-    private void updateTime() {
-        if(mTimeSyncSettings.getBoolean(PREFS_SYNC_TIME, PREFS_SYNC_TIME_DEFAULT)) {
+    /**
+     * @return whether the time was sent
+     */
+    private boolean updateTime() {
+        // Journaled for later, the time would be stale once sent. sync() sends a fresh one.
+        if (mDevice.getConnectionState() != IAsteroidDevice.ConnectionState.STATUS_CONNECTED) return false;
+        if(mSettings.get(SYNC_TIME)) {
             byte[] data = new byte[6];
             Calendar c =  Calendar.getInstance();
             data[0] = (byte)(c.get(Calendar.YEAR) - 1900);
@@ -101,17 +119,32 @@ public class TimeService implements IConnectivityService, SharedPreferences.OnSh
             data[4] = (byte)(c.get(Calendar.MINUTE));
             data[5] = (byte)(c.get(Calendar.SECOND));
 
-            mDevice.send(AsteroidUUIDS.TIME_SET_CHAR, data, TimeService.this);
+            mTimeSetChannel.write(data);
+            return true;
         }
+        return false;
     }
 
     public final void unsync() {
         try {
             mCtx.unregisterReceiver(mSReceiver);
         } catch (IllegalArgumentException ignored) {}
-        if (alarmMgr!= null) {
-            alarmMgr.cancel(alarmPendingIntent);
-        }
+        Handler handler = mHandler;
+        mHandler = null;
+        if (handler != null)
+            handler.removeCallbacksAndMessages(null);
+    }
+
+    /* A watch that was off for a while has the wrong time, everything else can wait */
+    @Override
+    public final int getSyncPriority() {
+        return 0;
+    }
+
+    /* Stays scheduled while unsynced, a correction that fell due meanwhile is sent on reconnect */
+    @Override
+    public final Collection<IPeriodicJob> getPeriodicJobs() {
+        return Collections.singleton(mDailySync);
     }
 
     @Override
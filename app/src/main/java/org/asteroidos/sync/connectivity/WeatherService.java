@@ -18,26 +18,28 @@
 package org.asteroidos.sync.connectivity;
 
 import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.os.Handler;
-import android.os.SystemClock;
-import android.preference.PreferenceManager;
+import android.os.Looper;
 import android.util.Log;
 
 
 import org.asteroidos.sync.asteroid.IAsteroidDevice;
+import org.asteroidos.sync.asteroid.IChannel;
 import org.asteroidos.sync.services.GPSTracker;
 import org.asteroidos.sync.utils.AsteroidUUIDS;
-import org.osmdroid.config.Configuration;
+import org.asteroidos.sync.utils.PayloadUtils;
+import org.asteroidos.sync.utils.Settings;
 
-import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.TimeZone;
 import java.util.UUID;
 
 import github.vatsal.easyweather.Helper.ForecastCallback;
@@ -59,15 +61,59 @@ public class WeatherService implements IConnectivityService {
     public static final float PREFS_ZOOM_DEFAULT = (float) 7.0;
     public static final String PREFS_SYNC_WEATHER = "syncWeather";
     public static final boolean PREFS_SYNC_WEATHER_DEFAULT = false;
+    public static final Settings.Key<String> OWM_API_KEY = Settings.Key.string(PREFS_NAME, PREFS_OWM_API_KEY, PREFS_OWM_API_KEY_DEFAULT);
+    public static final Settings.Key<Float> LATITUDE = Settings.Key.decimal(PREFS_NAME, PREFS_LATITUDE, PREFS_LATITUDE_DEFAULT);
+    public static final Settings.Key<Float> LONGITUDE = Settings.Key.decimal(PREFS_NAME, PREFS_LONGITUDE, PREFS_LONGITUDE_DEFAULT);
+    public static final Settings.Key<Float> ZOOM = Settings.Key.decimal(PREFS_NAME, PREFS_ZOOM, PREFS_ZOOM_DEFAULT);
+    public static final Settings.Key<Boolean> SYNC_WEATHER = Settings.Key.bool(PREFS_NAME, PREFS_SYNC_WEATHER, PREFS_SYNC_WEATHER_DEFAULT);
     public static final String WEATHER_SYNC_INTENT = "org.asteroidos.sync.WEATHER_SYNC_REQUEST_LISTENER";
 
     private IAsteroidDevice mDevice;
+    private final IChannel mCityChannel;
+    private final IChannel mIdsChannel;
+    private final IChannel mMaxTempsChannel;
+    private final IChannel mMinTempsChannel;
     private Context mCtx;
-    private SharedPreferences mSettings;
+    private Settings mSettings;
+
+    /* The forecast comes in steps of 3 hours */
+    private static final long FORECAST_STEP_MS = 3 * AlarmManager.INTERVAL_HOUR;
 
     private WeatherSyncReqReceiver mSReceiver;
-    private PendingIntent mAlarmPendingIntent;
-    private AlarmManager mAlarmMgr;
+    /* Bound to the sync looper while synced */
+    private Handler mHandler;
+    /* Checks for a new forecast, or a new position, and only then fetches and sends it */
+    private final IPeriodicJob mPeriodicUpdate = new IPeriodicJob() {
+        @Override
+        public long getIntervalMs() {
+            // A fixed location only changes through the settings, which request an update themselves
+            return followsLocation() ? AlarmManager.INTERVAL_HALF_HOUR : AlarmManager.INTERVAL_HOUR;
+        }
+
+        @Override
+        public Object getInputs() {
+            float latitude = mSettings.get(LATITUDE);
+            float longitude = mSettings.get(LONGITUDE);
+            if (followsLocation()) {
+                if (mGPS == null) return null;
+                // Like updateWeather(), use the last fix and ask for the next one
+                mGPS.updateLocation();
+                latitude = (float) mGPS.getLatitude();
+                longitude = (float) mGPS.getLongitude();
+            }
+            long now = System.currentTimeMillis();
+            // Local steps, so that a new day always starts a new one
+            long step = (now + TimeZone.getDefault().getOffset(now)) / FORECAST_STEP_MS;
+            // Positions about a kilometer apart share their forecast
+            return Arrays.asList(Math.round(latitude * 100), Math.round(longitude * 100),
+                    mSettings.get(OWM_API_KEY), step);
+        }
+
+        @Override
+        public void run(Runnable onSent) {
+            updateWeather(onSent);
+        }
+    };
 
     private GPSTracker mGPS;
     private Float mLatitude;
@@ -78,32 +124,27 @@ public class WeatherService implements IConnectivityService {
     public WeatherService(Context ctx, IAsteroidDevice device) {
         mDevice = device;
         mCtx = ctx;
-
-        Configuration.getInstance().load(ctx, PreferenceManager.getDefaultSharedPreferences(ctx));
-
-        mSettings = mCtx.getSharedPreferences(PREFS_NAME, 0);
-        mLatitude = mSettings.getFloat(PREFS_LATITUDE, PREFS_LATITUDE_DEFAULT);
-        mLongitude = mSettings.getFloat(PREFS_LONGITUDE, PREFS_LONGITUDE_DEFAULT);
-        mOwmKey = mSettings.getString(PREFS_OWM_API_KEY, PREFS_OWM_API_KEY_DEFAULT);
+        mCityChannel = device.openChannel(AsteroidUUIDS.WEATHER_CITY_CHAR);
+        mIdsChannel = device.openChannel(AsteroidUUIDS.WEATHER_IDS_CHAR);
+        mMaxTempsChannel = device.openChannel(AsteroidUUIDS.WEATHER_MAX_TEMPS_CHAR);
+        mMinTempsChannel = device.openChannel(AsteroidUUIDS.WEATHER_MIN_TEMPS_CHAR);
+
+        mSettings = Settings.get(mCtx);
+        mLatitude = mSettings.get(LATITUDE);
+        mLongitude = mSettings.get(LONGITUDE);
+        mOwmKey = mSettings.get(OWM_API_KEY);
     }
 
     @Override
     public void sync() {
+        mHandler = new Handler(Looper.myLooper());
         updateWeather();
 
-        // Register a broadcast handler to use for the alarm Intent
+        // Register a broadcast handler for the updates requested by the weather settings
         mSReceiver = new WeatherSyncReqReceiver();
         IntentFilter filter = new IntentFilter();
         filter.addAction(WEATHER_SYNC_INTENT);
-        mCtx.registerReceiver(mSReceiver, filter);
-
-        // Fire update intent every 30 Minutes to update Weather
-        Intent alarmIntent = new Intent(WEATHER_SYNC_INTENT);
-        mAlarmPendingIntent = PendingIntent.getBroadcast(mCtx, 0, alarmIntent, PendingIntent.FLAG_IMMUTABLE);
-        mAlarmMgr = (AlarmManager) mCtx.getSystemService(Context.ALARM_SERVICE);
-        mAlarmMgr.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HALF_HOUR,
-                AlarmManager.INTERVAL_HALF_HOUR, mAlarmPendingIntent);
+        mCtx.registerReceiver(mSReceiver, filter, null, mHandler);
     }
 
     @Override
@@ -112,13 +153,30 @@ public class WeatherService implements IConnectivityService {
             mCtx.unregisterReceiver(mSReceiver);
         } catch (IllegalArgumentException ignored) {}
 
-        if (mAlarmMgr != null) {
-            mAlarmMgr.cancel(mAlarmPendingIntent);
+        if (mHandler != null) {
+            mHandler.removeCallbacksAndMessages(null);
+            mHandler = null;
         }
     }
 
+    @Override
+    public final int getSyncPriority() {
+        return 3;
+    }
+
+    private boolean followsLocation() {
+        return mSettings.get(SYNC_WEATHER);
+    }
+
     private void updateWeather() {
-        if (mSettings.getBoolean(PREFS_SYNC_WEATHER, PREFS_SYNC_WEATHER_DEFAULT)) {
+        updateWeather(() -> {});
+    }
+
+    /**
+     * @param onSent called on the sync looper once the forecast was sent, not if it was skipped
+     */
+    private void updateWeather(Runnable onSent) {
+        if (followsLocation()) {
             if (mGPS == null) {
                 mGPS = new GPSTracker(mCtx);
             }
@@ -131,11 +189,12 @@ public class WeatherService implements IConnectivityService {
                 if(isNearNull(mLatitude) && isNearNull(mLongitude) ) {
                     // We don't have a valid Location yet
                     // Use the old location until we have a new one, recheck in 2 Minutes
-                    Handler handler = new Handler();
+                    Handler handler = mHandler;
+                    if (handler == null) return;
                     handler.postDelayed(new Runnable() {
                         @Override
                         public void run() {
-                            updateWeather();
+                            updateWeather(onSent);
                         }
                     }, 1000 * 60 * 2);
                     return;
@@ -150,71 +209,38 @@ public class WeatherService implements IConnectivityService {
                 mGPS.stopUsingGPS();
                 mGPS = null;
             }
-            mLatitude = mSettings.getFloat(PREFS_LATITUDE, PREFS_LATITUDE_DEFAULT);
-            mLongitude = mSettings.getFloat(PREFS_LONGITUDE, PREFS_LONGITUDE_DEFAULT);
+            mLatitude = mSettings.get(LATITUDE);
+            mLongitude = mSettings.get(LONGITUDE);
         }
-        updateWeather(mLatitude, mLongitude);
+        updateWeather(mLatitude, mLongitude, onSent);
 
-        SharedPreferences.Editor editor = mSettings.edit();
-        editor.putFloat(WeatherService.PREFS_LATITUDE, mLatitude);
-        editor.putFloat(WeatherService.PREFS_LONGITUDE, mLongitude);
-        editor.apply();
+        mSettings.set(LATITUDE, mLatitude);
+        mSettings.set(LONGITUDE, mLongitude);
     }
 
     private boolean isNearNull(float coord) {
         return -0.000001f < coord && coord < 0.000001f;
     }
 
-    private void updateWeather(float latitude, float longitude) {
-        mOwmKey = mSettings.getString(PREFS_OWM_API_KEY, PREFS_OWM_API_KEY_DEFAULT);
+    private void updateWeather(float latitude, float longitude, Runnable onSent) {
+        // No forecast is fetched for a watch without weather, or while the last one is still queued for it
+        if (!mCityChannel.isResolved() || mCityChannel.getPendingCount() > 0) {
+            Log.d("WeatherService", "Skipping the forecast, the watch cannot take it now");
+            return;
+        }
+        mOwmKey = mSettings.get(OWM_API_KEY);
 
         WeatherMap weatherMap = new WeatherMap(mCtx, mOwmKey);
         weatherMap.getLocationForecast(String.valueOf(latitude), String.valueOf(longitude), new ForecastCallback() {
             @Override
             public void success(ForecastResponseModel response) {
-                List[] l = response.getList();
-                String cityName = response.getCity().getName();
-                byte[] city = {};
-                if(cityName != null)
-                    city = cityName.getBytes(StandardCharsets.UTF_8);
-                final byte[] ids = new byte[10];
-                final byte[] maxTemps = new byte[10];
-                final byte[] minTemps = new byte[10];
-
-                int currentDay, i=0;
-
-                try {
-                    for (int j = 0; j < 5; j++) { // For each day of forecast
-                        currentDay = dayOfTimestamp(Long.parseLong(l[i].getDt()));
-                        short min = Short.MAX_VALUE;
-                        short max = Short.MIN_VALUE;
-                        int id = 0;
-                        while (i < l.length && dayOfTimestamp(Long.parseLong(l[i].getDt())) == currentDay) { // For each data point of the day
-                            // TODO is there a better way to select the most significant ID than the first of the afternoon ?
-                            if (hourOfTimestamp(Long.parseLong(l[i].getDt())) >= 12 && id == 0)
-                                id = Short.parseShort(l[i].getWeather()[0].getId());
-
-                            short currentTemp = (short) Math.round(Float.parseFloat(l[i].getMain().getTemp()));
-                            if (currentTemp > max) max = currentTemp;
-                            if (currentTemp < min) min = currentTemp;
-
-                            currentDay = dayOfTimestamp(Long.parseLong(l[i].getDt()));
-                            i = i + 1;
-                        }
-
-                        ids[2 * j] = (byte) (id >> 8);
-                        ids[2 * j + 1] = (byte) id;
-                        maxTemps[2 * j] = (byte) (max >> 8);
-                        maxTemps[2 * j + 1] = (byte) max;
-                        minTemps[2 * j] = (byte) (min >> 8);
-                        minTemps[2 * j + 1] = (byte) min;
-                    }
-                } catch(java.lang.ArrayIndexOutOfBoundsException ignored) {}
-
-                mDevice.send(AsteroidUUIDS.WEATHER_CITY_CHAR, city, WeatherService.this);
-                mDevice.send(AsteroidUUIDS.WEATHER_IDS_CHAR, ids, WeatherService.this);
-                mDevice.send(AsteroidUUIDS.WEATHER_MAX_TEMPS_CHAR, maxTemps, WeatherService.this);
-                mDevice.send(AsteroidUUIDS.WEATHER_MIN_TEMPS_CHAR, minTemps, WeatherService.this);
+                // Retrofit calls back on the main thread, the forecast is written from the sync looper
+                Handler handler = mHandler;
+                if (handler != null)
+                    handler.post(() -> {
+                        sendForecast(response);
+                        onSent.run();
+                    });
             }
 
             @Override public void failure(String message) {
@@ -223,6 +249,57 @@ public class WeatherService implements IConnectivityService {
         });
     }
 
+    private void sendForecast(ForecastResponseModel response) {
+        List[] l = response.getList();
+        String cityName = response.getCity().getName();
+        byte[] city = {};
+        if(cityName != null)
+            city = PayloadUtils.encodeUtf8(cityName, mDevice.getMaxPayloadSize());
+        final byte[] ids = new byte[10];
+        final byte[] maxTemps = new byte[10];
+        final byte[] minTemps = new byte[10];
+
+        int currentDay, i=0;
+
+        try {
+            for (int j = 0; j < 5; j++) { // For each day of forecast
+                currentDay = dayOfTimestamp(Long.parseLong(l[i].getDt()));
+                short min = Short.MAX_VALUE;
+                short max = Short.MIN_VALUE;
+                int id = 0;
+                while (i < l.length && dayOfTimestamp(Long.parseLong(l[i].getDt())) == currentDay) { // For each data point of the day
+                    // TODO is there a better way to select the most significant ID than the first of the afternoon ?
+                    if (hourOfTimestamp(Long.parseLong(l[i].getDt())) >= 12 && id == 0)
+                        id = Short.parseShort(l[i].getWeather()[0].getId());
+
+                    short currentTemp = (short) Math.round(Float.parseFloat(l[i].getMain().getTemp()));
+                    if (currentTemp > max) max = currentTemp;
+                    if (currentTemp < min) min = currentTemp;
+
+                    currentDay = dayOfTimestamp(Long.parseLong(l[i].getDt()));
+                    i = i + 1;
+                }
+
+                ids[2 * j] = (byte) (id >> 8);
+                ids[2 * j + 1] = (byte) id;
+                maxTemps[2 * j] = (byte) (max >> 8);
+                maxTemps[2 * j + 1] = (byte) max;
+                minTemps[2 * j] = (byte) (min >> 8);
+                minTemps[2 * j + 1] = (byte) min;
+            }
+        } catch(java.lang.ArrayIndexOutOfBoundsException ignored) {}
+
+        mDevice.beginBatch();
+        try {
+            mCityChannel.write(city);
+            mIdsChannel.write(ids);
+            mMaxTempsChannel.write(maxTemps);
+            mMinTempsChannel.write(minTemps);
+        } finally {
+            mDevice.commitBatch();
+        }
+    }
+
     private int dayOfTimestamp(long timestamp) {
         Calendar cal = Calendar.getInstance();
         cal.setTimeInMillis(timestamp*1000);
@@ -235,13 +312,19 @@ public class WeatherService implements IConnectivityService {
         return cal.get(Calendar.HOUR_OF_DAY);
     }
 
+    /* Stays scheduled while unsynced, a forecast that fell due meanwhile is fetched on reconnect */
+    @Override
+    public Collection<IPeriodicJob> getPeriodicJobs() {
+        return Collections.singleton(mPeriodicUpdate);
+    }
+
     @Override
     public HashMap<UUID, Direction> getCharacteristicUUIDs() {
         HashMap<UUID, Direction> chars = new HashMap<>();
-        chars.put(AsteroidUUIDS.WEATHER_CITY_CHAR, Direction.TO_WATCH);
-        chars.put(AsteroidUUIDS.WEATHER_IDS_CHAR, Direction.TO_WATCH);
-        chars.put(AsteroidUUIDS.WEATHER_MIN_TEMPS_CHAR, Direction.TO_WATCH);
-        chars.put(AsteroidUUIDS.WEATHER_MAX_TEMPS_CHAR, Direction.TO_WATCH);
+        chars.put(AsteroidUUIDS.WEATHER_CITY_CHAR, Direction.TO_WATCH_COALESCED);
+        chars.put(AsteroidUUIDS.WEATHER_IDS_CHAR, Direction.TO_WATCH_COALESCED);
+        chars.put(AsteroidUUIDS.WEATHER_MIN_TEMPS_CHAR, Direction.TO_WATCH_COALESCED);
+        chars.put(AsteroidUUIDS.WEATHER_MAX_TEMPS_CHAR, Direction.TO_WATCH_COALESCED);
         return chars;
     }
 
@@ -1,8 +1,22 @@
 package org.asteroidos.sync.dataobjects;
 
+import org.asteroidos.sync.utils.PayloadUtils;
+import org.asteroidos.sync.utils.TlvWriter;
+
 import java.nio.charset.StandardCharsets;
 
 public class Notification {
+    /* TLV wire format: a message type byte followed by the fields, see TlvWriter */
+    public static final int TLV_POSTED = 0x01;
+    public static final int TLV_REMOVED = 0x02;
+    public static final int TLV_ID = 0x01;
+    public static final int TLV_PACKAGE_NAME = 0x02;
+    public static final int TLV_VIBRATION = 0x03;
+    public static final int TLV_APP_NAME = 0x04;
+    public static final int TLV_APP_ICON = 0x05;
+    public static final int TLV_SUMMARY = 0x06;
+    public static final int TLV_BODY = 0x07;
+
     String packageName, appName, appIcon, summary, body, vibration = "";
     MsgType msgType = null;
     int id = 0;
@@ -27,30 +41,48 @@ public class Notification {
      * @return XML serialized {@link Notification}
      */
     public final String toXML() {
-        String xmlRequest = "";
+        return toXML(summary, body);
+    }
+
+    private String toXML(String summary, String body) {
+        StringBuilder xmlRequest = new StringBuilder();
 
         if (msgType == MsgType.POSTED) {
-            xmlRequest = "<insert><id>" + id + "</id>";
-            if (!packageName.isEmpty())
-                xmlRequest += "<pn>" + packageName + "</pn>";
-            if (!vibration.isEmpty())
-                xmlRequest += "<vb>" + vibration + "</vb>";
-            if (!appName.isEmpty())
-                xmlRequest += "<an>" + appName + "</an>";
-            if (!appIcon.isEmpty())
-                xmlRequest += "<ai>" + appIcon + "</ai>";
-            if (!summary.isEmpty())
-                xmlRequest += "<su>" + summary + "</su>";
-            if (!body.isEmpty())
-                xmlRequest += "<bo>" + body + "</bo>";
-            xmlRequest += "</insert>";
+            xmlRequest.append("<insert><id>").append(id).append("</id>");
+            appendElement(xmlRequest, "pn", packageName);
+            appendElement(xmlRequest, "vb", vibration);
+            appendElement(xmlRequest, "an", appName);
+            appendElement(xmlRequest, "ai", appIcon);
+            appendElement(xmlRequest, "su", summary);
+            appendElement(xmlRequest, "bo", body);
+            xmlRequest.append("</insert>");
         } else if (msgType == MsgType.REMOVED) {
-            xmlRequest = "<removed>" +
-                    "<id>" + id + "</id>" +
-                    "</removed>";
+            xmlRequest.append("<removed><id>").append(id).append("</id></removed>");
         }
 
-        return xmlRequest;
+        return xmlRequest.toString();
+    }
+
+    private static void appendElement(StringBuilder xml, String tag, String value) {
+        if (value == null || value.isEmpty()) return;
+        xml.append('<').append(tag).append('>');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '>':
+                    xml.append("&gt;");
+                    break;
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                default:
+                    xml.append(c);
+            }
+        }
+        xml.append("</").append(tag).append('>');
     }
 
     /***
@@ -60,6 +92,77 @@ public class Notification {
         return this.toXML().getBytes(StandardCharsets.UTF_8);
     }
 
+    /***
+     * @param maxLength payload budget in bytes
+     * @return Returns {@link Notification#toBytes()}, with the body and then the summary
+     * shortened as needed so that the result fits in maxLength bytes
+     */
+    public final byte[] toBytes(int maxLength) {
+        return fit(maxLength, (summary, body) -> toXML(summary, body).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /***
+     * @param writer buffer the message is encoded in, reused across notifications
+     * @return the {@link Notification} in the TLV wire format, see {@link #TLV_POSTED}
+     */
+    public final byte[] toTlv(TlvWriter writer) {
+        return toTlv(writer, summary, body);
+    }
+
+    /***
+     * @param maxLength payload budget in bytes
+     * @return Returns {@link Notification#toTlv(TlvWriter)}, shortened like {@link #toBytes(int)}
+     */
+    public final byte[] toTlv(TlvWriter writer, int maxLength) {
+        return fit(maxLength, (summary, body) -> toTlv(writer, summary, body));
+    }
+
+    private byte[] toTlv(TlvWriter writer, String summary, String body) {
+        writer.reset();
+        if (msgType == MsgType.POSTED) {
+            writer.putByte(TLV_POSTED)
+                    .putInt(TLV_ID, id)
+                    .putString(TLV_PACKAGE_NAME, packageName)
+                    .putString(TLV_VIBRATION, vibration)
+                    .putString(TLV_APP_NAME, appName)
+                    .putString(TLV_APP_ICON, appIcon)
+                    .putString(TLV_SUMMARY, summary)
+                    .putString(TLV_BODY, body);
+        } else if (msgType == MsgType.REMOVED) {
+            writer.putByte(TLV_REMOVED)
+                    .putInt(TLV_ID, id);
+        }
+        return writer.toByteArray();
+    }
+
+    private interface Encoder {
+        byte[] encode(String summary, String body);
+    }
+
+    /**
+     * Shortens the body, and once it is gone the summary, until the encoded notification
+     * fits in maxLength bytes. Escaping may grow the text, hence the loop.
+     */
+    private byte[] fit(int maxLength, Encoder encoder) {
+        String summary = this.summary == null ? "" : this.summary;
+        String body = this.body == null ? "" : this.body;
+        byte[] bytes = encoder.encode(summary, body);
+        while (bytes.length > maxLength && msgType == MsgType.POSTED) {
+            int excess = bytes.length - maxLength;
+            int bodyLength = PayloadUtils.utf8Length(body);
+            int summaryLength = PayloadUtils.utf8Length(summary);
+            if (bodyLength > 0) {
+                body = PayloadUtils.truncateUtf8(body, Math.max(0, bodyLength - excess));
+            } else if (summaryLength > 0) {
+                summary = PayloadUtils.truncateUtf8(summary, Math.max(0, summaryLength - excess));
+            } else {
+                break;
+            }
+            bytes = encoder.encode(summary, body);
+        }
+        return bytes;
+    }
+
     public enum MsgType {
         POSTED, REMOVED
     }
@@ -21,7 +21,6 @@ package org.asteroidos.sync.fragments;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -44,17 +43,23 @@ import org.asteroidos.sync.asteroid.IAsteroidDevice;
 import org.asteroidos.sync.connectivity.SilentModeService;
 import org.asteroidos.sync.connectivity.TimeService;
 import org.asteroidos.sync.services.PhoneStateReceiver;
+import org.asteroidos.sync.services.ISyncStateListener;
+import org.asteroidos.sync.services.SyncState;
+import org.asteroidos.sync.utils.Settings;
 
-public class DeviceDetailFragment extends Fragment {
+import java.util.List;
+
+public class DeviceDetailFragment extends Fragment implements ISyncStateListener {
     private TextView mDisconnectedText;
     private TextView mBatteryText;
+    private TextView mDiagnosticsText;
+    private TextView mWatchesText;
+    private CardView mWatchesCard;
 
     private LinearLayout mDisconnectedPlaceholder;
     private LinearLayout mConnectedContent;
 
-    private SharedPreferences mTimeSyncSettings;
-    private SharedPreferences mSilenceModeSettings;
-    private SharedPreferences mCallStateSettings;
+    private Settings mSettings;
 
     private CheckBox mTimeSyncCheckBox;
     private CheckBox mSilenceModeCheckBox;
@@ -70,7 +75,7 @@ public class DeviceDetailFragment extends Fragment {
     private DeviceDetailFragment.OnConnectRequestedListener mConnectListener;
     private DeviceDetailFragment.OnAppSettingsClickedListener mAppSettingsListener;
     private DeviceDetailFragment.OnWeatherSettingsClickedListener mWeatherSettingsListener;
-    private DeviceDetailFragment.OnUpdateListener mUpdateListener;
+    private DeviceDetailFragment.SyncStateSource mStateSource;
 
 
     @Override
@@ -82,7 +87,25 @@ public class DeviceDetailFragment extends Fragment {
     public void onResume() {
         super.onResume();
 
-        mUpdateListener.onUpdateRequested();
+        mStateSource.subscribe(this);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+
+        mStateSource.unsubscribe(this);
+    }
+
+    @Override
+    public void onSyncStateChanged(SyncState state) {
+        if (getView() == null) return;
+        if (!state.name.isEmpty())
+            setLocalName(state.name);
+        setStatus(state.state);
+        setBatteryPercentage(state.batteryPercentage);
+        setMetrics(state.metrics);
+        setWatches(state.watches);
     }
 
     @Override
@@ -136,33 +159,26 @@ public class DeviceDetailFragment extends Fragment {
         CardView notifSettCard = view.findViewById(R.id.card_view4);
         notifSettCard.setOnClickListener(notifSettCardView -> mAppSettingsListener.onAppSettingsClicked());
 
-        mTimeSyncSettings = getActivity().getSharedPreferences(TimeService.PREFS_NAME, 0);
+        mWatchesCard = view.findViewById(R.id.card_view_watches);
+        mWatchesText = view.findViewById(R.id.info_watches);
+
+        mDiagnosticsText = view.findViewById(R.id.info_diagnostics);
+        CardView diagnosticsCard = view.findViewById(R.id.card_view_diagnostics);
+        diagnosticsCard.setOnClickListener(diagnosticsCardView -> mStateSource.onUpdateRequested());
+
+        mSettings = Settings.get(getActivity());
 
         mTimeSyncCheckBox = view.findViewById(R.id.timeSyncCheckBox);
-        mTimeSyncCheckBox.setChecked(mTimeSyncSettings.getBoolean(TimeService.PREFS_SYNC_TIME, TimeService.PREFS_SYNC_TIME_DEFAULT));
-        mTimeSyncCheckBox.setOnCheckedChangeListener((ignored, checked) -> {
-            SharedPreferences.Editor editor = mTimeSyncSettings.edit();
-            editor.putBoolean(TimeService.PREFS_SYNC_TIME, checked);
-            editor.apply();
-        });
+        mTimeSyncCheckBox.setChecked(mSettings.get(TimeService.SYNC_TIME));
+        mTimeSyncCheckBox.setOnCheckedChangeListener((ignored, checked) -> mSettings.set(TimeService.SYNC_TIME, checked));
 
-        mSilenceModeSettings = getActivity().getSharedPreferences(SilentModeService.PREFS_NAME, Context.MODE_PRIVATE);
         mSilenceModeCheckBox = view.findViewById(R.id.SilentModeCheckBox);
-        mSilenceModeCheckBox.setChecked(mSilenceModeSettings.getBoolean(SilentModeService.PREF_RINGER, false));
-        mSilenceModeCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
-            SharedPreferences.Editor editor = mSilenceModeSettings.edit();
-            editor.putBoolean(SilentModeService.PREF_RINGER, isChecked);
-            editor.apply();
-        });
+        mSilenceModeCheckBox.setChecked(mSettings.get(SilentModeService.RINGER));
+        mSilenceModeCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> mSettings.set(SilentModeService.RINGER, isChecked));
 
-        mCallStateSettings = getActivity().getSharedPreferences(PhoneStateReceiver.PREFS_NAME, Context.MODE_PRIVATE);
         mCallStateServiceCheckBox = view.findViewById(R.id.CallStateServiceCheckBox);
-        mCallStateServiceCheckBox.setChecked(mCallStateSettings.getBoolean(PhoneStateReceiver.PREF_SEND_CALL_STATE, true));
-        mCallStateServiceCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
-            SharedPreferences.Editor editor = mCallStateSettings.edit();
-            editor.putBoolean(PhoneStateReceiver.PREF_SEND_CALL_STATE, isChecked);
-            editor.apply();
-        });
+        mCallStateServiceCheckBox.setChecked(mSettings.get(PhoneStateReceiver.SEND_CALL_STATE));
+        mCallStateServiceCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> mSettings.set(PhoneStateReceiver.SEND_CALL_STATE, isChecked));
 
         setStatus(mStatus);
     }
@@ -177,15 +193,17 @@ public class DeviceDetailFragment extends Fragment {
     public boolean onOptionsItemSelected(MenuItem menuItem) {
         if (menuItem.getItemId() == R.id.unpairButton)
             mDeviceListener.onDefaultDeviceUnselected();
+        else if (menuItem.getItemId() == R.id.addWatchButton)
+            mDeviceListener.onAddDeviceRequested();
 
         return (super.onOptionsItemSelected(menuItem));
     }
 
-    public void setLocalName(String name) {
+    private void setLocalName(String name) {
         getActivity().setTitle(name);
     }
 
-    public void setStatus(IAsteroidDevice.ConnectionState status) {
+    private void setStatus(IAsteroidDevice.ConnectionState status) {
         mStatus = status;
         if (status == IAsteroidDevice.ConnectionState.STATUS_CONNECTED){
             mDisconnectedPlaceholder.setVisibility(View.GONE);
@@ -211,12 +229,37 @@ public class DeviceDetailFragment extends Fragment {
     }
 
     @SuppressLint("SetTextI18n")
-    public void setBatteryPercentage(int percentage) {
-        try {
-            mBatteryText.setText(mBatteryPercentage + " %");
-            mBatteryPercentage = percentage;
-        } catch (IllegalStateException ignore) {
+    private void setBatteryPercentage(int percentage) {
+        mBatteryPercentage = percentage;
+        mBatteryText.setText(mBatteryPercentage + " %");
+    }
+
+    private void setMetrics(String metrics) {
+        if (mDiagnosticsText == null) return;
+        if (metrics.isEmpty())
+            mDiagnosticsText.setText(R.string.diagnostics_empty);
+        else
+            mDiagnosticsText.setText(metrics);
+    }
+
+    /**
+     * Lists every paired watch, only shown when there is more than one.
+     */
+    private void setWatches(List<SyncState.WatchStatus> watches) {
+        if (mWatchesText == null) return;
+        mWatchesCard.setVisibility(watches.size() > 1 ? View.VISIBLE : View.GONE);
+        StringBuilder text = new StringBuilder();
+        for (SyncState.WatchStatus watch : watches) {
+            int state = R.string.disconnected;
+            if (watch.state == IAsteroidDevice.ConnectionState.STATUS_CONNECTED)
+                state = R.string.connected;
+            else if (watch.state == IAsteroidDevice.ConnectionState.STATUS_CONNECTING)
+                state = R.string.connecting;
+            if (text.length() > 0)
+                text.append('\n');
+            text.append(getString(R.string.watch_status_formatted, watch.name, getString(state), watch.batteryPercentage));
         }
+        mWatchesText.setText(text);
     }
 
     public void scanningStarted() {
@@ -256,16 +299,17 @@ public class DeviceDetailFragment extends Fragment {
             throw new ClassCastException(context.toString()
                     + " does not implement DeviceDetailFragment.OnWeatherSettingsClickedListener");
 
-        if (context instanceof DeviceDetailFragment.OnUpdateListener)
-            mUpdateListener = (DeviceDetailFragment.OnUpdateListener) context;
+        if (context instanceof DeviceDetailFragment.SyncStateSource)
+            mStateSource = (DeviceDetailFragment.SyncStateSource) context;
         else
             throw new ClassCastException(context.toString()
-                    + " does not implement DeviceDetailFragment.onUpdateListener");
+                    + " does not implement DeviceDetailFragment.SyncStateSource");
     }
 
-    /* Notifies MainActivity when a device unpairing is requested */
+    /* Notifies MainActivity when a device unpairing, or pairing another one, is requested */
     public interface OnDefaultDeviceUnselectedListener {
         void onDefaultDeviceUnselected();
+        void onAddDeviceRequested();
     }
 
     public interface OnAppSettingsClickedListener {
@@ -281,7 +325,11 @@ public class DeviceDetailFragment extends Fragment {
         void onDisconnectRequested();
     }
 
-    public interface OnUpdateListener {
+    /* Hands the state of the SynchronizationService to the fragment while it is shown */
+    public interface SyncStateSource {
+        void subscribe(ISyncStateListener listener);
+        void unsubscribe(ISyncStateListener listener);
+        /* Asks for the transport metrics to be published again */
         void onUpdateRequested();
     }
 
@@ -3,12 +3,12 @@ package org.asteroidos.sync.fragments;
 import android.Manifest;
 import android.app.AlertDialog;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 import androidx.fragment.app.Fragment;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 import android.view.LayoutInflater;
@@ -24,7 +24,9 @@ import android.widget.EditText;
 
 import org.asteroidos.sync.R;
 import org.asteroidos.sync.connectivity.WeatherService;
+import org.asteroidos.sync.utils.Settings;
 import org.osmdroid.api.IGeoPoint;
+import org.osmdroid.config.Configuration;
 import org.osmdroid.tileprovider.tilesource.TileSourceFactory;
 import org.osmdroid.util.GeoPoint;
 import org.osmdroid.views.MapView;
@@ -33,10 +35,9 @@ import org.osmdroid.views.overlay.mylocation.MyLocationNewOverlay;
 
 public class WeatherSettingsFragment extends Fragment {
     private MapView mMapView;
-    private SharedPreferences mSettings;
+    private Settings mSettings;
     private Button mButton;
 
-    private SharedPreferences mWeatherSyncSettings;
     private CheckBox mWeatherSyncCheckBox;
 
     private String mOwmKey;
@@ -46,18 +47,20 @@ public class WeatherSettingsFragment extends Fragment {
 
     @Override
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup parent, @Nullable Bundle savedInstanceState) {
-        mSettings = getContext().getSharedPreferences(WeatherService.PREFS_NAME, 0);
+        mSettings = Settings.get(getContext());
         setHasOptionsMenu(true);
+        // Only the map needs osmdroid, it is configured before the MapView is inflated
+        Configuration.getInstance().load(getContext(), PreferenceManager.getDefaultSharedPreferences(getContext()));
 
         return inflater.inflate(R.layout.fragment_position_picker, parent, false);
     }
 
     @Override
     public void onViewCreated(View view, Bundle savedInstanceState) {
-        float latitude = mSettings.getFloat(WeatherService.PREFS_LATITUDE, WeatherService.PREFS_LATITUDE_DEFAULT);
-        float longitude = mSettings.getFloat(WeatherService.PREFS_LONGITUDE, WeatherService.PREFS_LONGITUDE_DEFAULT);
-        float zoom = mSettings.getFloat(WeatherService.PREFS_ZOOM, WeatherService.PREFS_ZOOM_DEFAULT);
-        mOwmKey = mSettings.getString(WeatherService.PREFS_OWM_API_KEY, WeatherService.PREFS_OWM_API_KEY_DEFAULT);
+        float latitude = mSettings.get(WeatherService.LATITUDE);
+        float longitude = mSettings.get(WeatherService.LONGITUDE);
+        float zoom = mSettings.get(WeatherService.ZOOM);
+        mOwmKey = mSettings.get(WeatherService.OWM_API_KEY);
 
         mMapView = view.findViewById(R.id.map);
         mMapView.setTileSource(TileSourceFactory.MAPNIK);
@@ -91,11 +94,9 @@ public class WeatherSettingsFragment extends Fragment {
                 float longitude = (float) center.getLongitude();
                 float zoom = (float) mMapView.getZoomLevelDouble();
 
-                SharedPreferences.Editor editor = mSettings.edit();
-                editor.putFloat(WeatherService.PREFS_LATITUDE, latitude);
-                editor.putFloat(WeatherService.PREFS_LONGITUDE, longitude);
-                editor.putFloat(WeatherService.PREFS_ZOOM, zoom);
-                editor.apply();
+                mSettings.set(WeatherService.LATITUDE, latitude);
+                mSettings.set(WeatherService.LONGITUDE, longitude);
+                mSettings.set(WeatherService.ZOOM, zoom);
 
                 // Update the Weather after changing it
                 getActivity().sendBroadcast(new Intent(WeatherService.WEATHER_SYNC_INTENT));
@@ -104,10 +105,8 @@ public class WeatherSettingsFragment extends Fragment {
             }
         });
 
-        mWeatherSyncSettings = getActivity().getSharedPreferences(WeatherService.PREFS_NAME, 0);
-
         mWeatherSyncCheckBox = view.findViewById(R.id.autoLocationPickerButton);
-        mWeatherSyncCheckBox.setChecked(mWeatherSyncSettings.getBoolean(WeatherService.PREFS_SYNC_WEATHER, WeatherService.PREFS_SYNC_WEATHER_DEFAULT));
+        mWeatherSyncCheckBox.setChecked(mSettings.get(WeatherService.SYNC_WEATHER));
         mWeatherSyncCheckBox.setOnCheckedChangeListener(new CheckBox.OnCheckedChangeListener() {
             @Override
             public void onCheckedChanged(CompoundButton ignored, boolean checked) {
@@ -157,9 +156,7 @@ public class WeatherSettingsFragment extends Fragment {
                 if (apiKey.equals(""))
                     apiKey = WeatherService.PREFS_OWM_API_KEY_DEFAULT;
 
-                SharedPreferences.Editor editor = mWeatherSyncSettings.edit();
-                editor.putString(WeatherService.PREFS_OWM_API_KEY, apiKey);
-                editor.apply();
+                mSettings.set(WeatherService.OWM_API_KEY, apiKey);
                 mOwmKey = apiKey;
             });
             builder.setNegativeButton(R.string.cancel, ((dialog, which) -> dialog.cancel()));
@@ -173,9 +170,7 @@ public class WeatherSettingsFragment extends Fragment {
     }
 
     private void handleLocationToggle(boolean enable) {
-        SharedPreferences.Editor editor = mWeatherSyncSettings.edit();
-        editor.putBoolean(WeatherService.PREFS_SYNC_WEATHER, enable);
-        editor.apply();
+        mSettings.set(WeatherService.SYNC_WEATHER, enable);
         mButton.setVisibility(enable ? View.INVISIBLE : View.VISIBLE);
         getActivity().sendBroadcast(new  Intent(WeatherService.WEATHER_SYNC_INTENT));
     }
@@ -0,0 +1,98 @@
+package org.asteroidos.sync.services;
+
+import org.asteroidos.sync.asteroid.IAsteroidDevice;
+import org.asteroidos.sync.asteroid.IChannel;
+import org.asteroidos.sync.asteroid.TransportMetrics;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link IChannel} handed to the connectivity services by the {@link SynchronizationService}.
+ * A value is encoded once by the service and written to the same characteristic of every
+ * paired watch, each through its own write queue.
+ */
+final class FanOutChannel implements IChannel {
+    private final UUID mUuid;
+    private final boolean mPrimaryOnly;
+    /* The channels of the paired watches, the primary watch first */
+    private volatile IChannel[] mTargets = new IChannel[0];
+
+    /**
+     * @param primaryOnly only write to the watch shown in the app
+     */
+    FanOutChannel(UUID uuid, boolean primaryOnly) {
+        mUuid = uuid;
+        mPrimaryOnly = primaryOnly;
+    }
+
+    final boolean isPrimaryOnly() {
+        return mPrimaryOnly;
+    }
+
+    final void setTargets(IChannel[] targets) {
+        mTargets = targets;
+    }
+
+    @Override
+    public final UUID getCharacteristic() {
+        return mUuid;
+    }
+
+    @Override
+    public final CompletableFuture<Void> write(byte[] data) {
+        IChannel[] targets = mTargets;
+        if (targets.length == 1)
+            return targets[0].write(data);
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[targets.length];
+        for (int i = 0; i < targets.length; i++)
+            futures[i] = targets[i].write(data);
+        return complete(futures);
+    }
+
+    @Override
+    public final CompletableFuture<Void> write(byte[] data, IAsteroidDevice.WritePriority priority, String key) {
+        IChannel[] targets = mTargets;
+        if (targets.length == 1)
+            return targets[0].write(data, priority, key);
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[targets.length];
+        for (int i = 0; i < targets.length; i++)
+            futures[i] = targets[i].write(data, priority, key);
+        return complete(futures);
+    }
+
+    @Override
+    public final int getPendingCount() {
+        int pending = 0;
+        for (IChannel target : mTargets)
+            pending = Math.max(pending, target.getPendingCount());
+        return pending;
+    }
+
+    @Override
+    public final boolean isResolved() {
+        for (IChannel target : mTargets)
+            if (target.isResolved())
+                return true;
+        return false;
+    }
+
+    /**
+     * @return the counters of the primary watch
+     */
+    @Override
+    public final TransportMetrics.Counters getMetrics() {
+        IChannel[] targets = mTargets;
+        return targets.length == 0 ? null : targets[0].getMetrics();
+    }
+
+    private static CompletableFuture<Void> complete(CompletableFuture<?>[] futures) {
+        if (futures.length == 0) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("No watch paired"));
+            return failed;
+        }
+        return CompletableFuture.allOf(futures);
+    }
+}
@@ -0,0 +1,9 @@
+package org.asteroidos.sync.services;
+
+/**
+ * Subscriber of the {@link SynchronizationService.LocalBinder}. Called on the main thread with
+ * the current state right after subscribing, then only when the state changed.
+ */
+public interface ISyncStateListener {
+    void onSyncStateChanged(SyncState state);
+}
@@ -0,0 +1,137 @@
+package org.asteroidos.sync.services;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.core.app.NotificationCompat;
+
+import org.asteroidos.sync.MainActivity;
+import org.asteroidos.sync.R;
+
+import java.util.Locale;
+
+/**
+ * The foreground notification of the {@link SynchronizationService}. Every post is a call into
+ * the system server, so a status is only posted when it differs from the one shown, and at most
+ * once per {@link #MIN_INTERVAL_MS}: while a watch keeps reconnecting, only the last status of
+ * an interval is posted, at its end. The builder and its content intent are made once.
+ * Statuses are posted on the main thread.
+ */
+final class NotificationPresenter {
+    public static final String TAG = NotificationPresenter.class.toString();
+
+    static final long MIN_INTERVAL_MS = 1000;
+
+    private final Service mService;
+    private final NotificationManager mNM;
+    private final int mId;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final NotificationCompat.Builder mBuilder;
+    private final Runnable mPostPending = this::postPending;
+    /* Everything below is only touched on the main thread, except the counters */
+    private CharSequence mShown = null;
+    private CharSequence mPending = null;
+    private boolean mForeground = false;
+    private boolean mPostScheduled = false;
+    private long mPostedAt = 0;
+    private long mPosts = 0;
+    private long mUnchanged = 0;
+    private long mCoalesced = 0;
+
+    NotificationPresenter(Service service, NotificationManager nm, String channelId, int id) {
+        mService = service;
+        mNM = nm;
+        mId = id;
+        Intent intent = new Intent(service, MainActivity.class);
+        PendingIntent contentIntent = PendingIntent.getActivity(service, 0,
+                intent, PendingIntent.FLAG_UPDATE_CURRENT + PendingIntent.FLAG_IMMUTABLE);
+        mBuilder = new NotificationCompat.Builder(service, channelId)
+                .setSmallIcon(R.drawable.ic_stat_name)
+                .setContentTitle(service.getText(R.string.app_name))
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .setPriority(Notification.PRIORITY_MIN)
+                .setShowWhen(false);
+    }
+
+    /**
+     * Shows status, the first one right away as the service has to be in the foreground.
+     */
+    final void show(CharSequence status) {
+        run(() -> {
+            if (mPending != null) {
+                synchronized (this) {
+                    mCoalesced++;
+                }
+            }
+            mPending = status;
+            if (mPostScheduled) return;
+            long wait = mPostedAt + MIN_INTERVAL_MS - SystemClock.uptimeMillis();
+            // An unchanged status is dropped right away, there is nothing to wait for
+            if (!mForeground || wait <= 0 || status.equals(mShown)) {
+                postPending();
+            } else {
+                mPostScheduled = true;
+                mHandler.postDelayed(mPostPending, wait);
+            }
+        });
+    }
+
+    final void cancel() {
+        run(() -> {
+            mHandler.removeCallbacks(mPostPending);
+            mPostScheduled = false;
+            mPending = null;
+            mNM.cancel(mId);
+        });
+    }
+
+    /**
+     * @return how many statuses were posted, and how many were not as nothing changed or a
+     * later one replaced them
+     */
+    @Override
+    public final synchronized String toString() {
+        return String.format(Locale.ROOT, "%d notification posts, %d unchanged, %d coalesced",
+                mPosts, mUnchanged, mCoalesced);
+    }
+
+    private void postPending() {
+        mPostScheduled = false;
+        CharSequence status = mPending;
+        mPending = null;
+        if (status == null) return;
+        if (status.equals(mShown)) {
+            synchronized (this) {
+                mUnchanged++;
+            }
+            return;
+        }
+        mShown = status;
+        mPostedAt = SystemClock.uptimeMillis();
+        synchronized (this) {
+            mPosts++;
+        }
+        Notification notification = mBuilder.setContentText(status).build();
+        if (mForeground) {
+            // Updates the foreground notification in place
+            mNM.notify(mId, notification);
+        } else {
+            mService.startForeground(mId, notification);
+            mForeground = true;
+        }
+    }
+
+    private void run(Runnable work) {
+        if (Looper.myLooper() == mHandler.getLooper())
+            work.run();
+        else
+            mHandler.post(work);
+    }
+}
@@ -1,11 +1,9 @@
 package org.asteroidos.sync.services;
 
-import android.app.Activity;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import android.provider.ContactsContract;
@@ -13,6 +11,8 @@ import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 
 import org.asteroidos.sync.R;
+import org.asteroidos.sync.utils.Settings;
+
 import java.util.Objects;
 
 import static android.telephony.TelephonyManager.ACTION_PHONE_STATE_CHANGED;
@@ -22,6 +22,7 @@ public class PhoneStateReceiver extends BroadcastReceiver {
     TelephonyManager telephony;
     public static final String PREFS_NAME = "PhoneStatePreference";
     public static final String PREF_SEND_CALL_STATE = "PhoneCallNotificationForwarding";
+    public static final Settings.Key<Boolean> SEND_CALL_STATE = Settings.Key.bool(PREFS_NAME, PREF_SEND_CALL_STATE, true);
 
     public void onReceive(Context context, Intent intent) {
         if (Objects.equals(intent.getAction(), ACTION_PHONE_STATE_CHANGED)){
@@ -35,11 +36,11 @@ public class PhoneStateReceiver extends BroadcastReceiver {
 
     static class CallStateService extends PhoneStateListener {
         private Context context;
-        private SharedPreferences prefs;
+        private Settings settings;
 
         CallStateService(Context con) {
             context = con;
-            prefs = con.getSharedPreferences(PREFS_NAME, Activity.MODE_PRIVATE);
+            settings = Settings.get(con);
         }
 
         @Override
@@ -74,7 +75,7 @@ public class PhoneStateReceiver extends BroadcastReceiver {
         }
 
         private void startRinging(String number) {
-            boolean notificationPref = prefs.getBoolean(PREF_SEND_CALL_STATE, true);
+            boolean notificationPref = settings.get(SEND_CALL_STATE);
             if (notificationPref) {
                 String contact = getContact(number);
                 if (contact == null) {
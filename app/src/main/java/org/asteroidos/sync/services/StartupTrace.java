@@ -0,0 +1,58 @@
+package org.asteroidos.sync.services;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Spans of the cold start of the {@link SynchronizationService}, e.g. after a reboot through
+ * the AutostartService. Every span is a section of the system trace as well, so that it shows
+ * up in Perfetto, and all of them are logged in one line once the start is over.
+ */
+final class StartupTrace {
+    public static final String TAG = StartupTrace.class.toString();
+
+    private final long mStartedAt = SystemClock.elapsedRealtime();
+    private final StringBuilder mSpans = new StringBuilder();
+
+    /**
+     * Ends with close(), on the thread that began it.
+     */
+    final class Span implements AutoCloseable {
+        private final String mName;
+        private final long mStart = SystemClock.elapsedRealtimeNanos();
+
+        private Span(String name) {
+            mName = name;
+            Trace.beginSection(name);
+        }
+
+        @Override
+        public void close() {
+            Trace.endSection();
+            record(mName, (SystemClock.elapsedRealtimeNanos() - mStart) / 1000);
+        }
+    }
+
+    final Span span(String name) {
+        return new Span(name);
+    }
+
+    /**
+     * Logs the spans, with the time since the process and since the service were created.
+     */
+    final synchronized void finish() {
+        long now = SystemClock.elapsedRealtime();
+        Log.i(TAG, String.format(Locale.ROOT, "Started %d ms after the process, in %d ms: %s",
+                mStartedAt - Process.getStartElapsedRealtime(), now - mStartedAt, mSpans));
+    }
+
+    private synchronized void record(String name, long micros) {
+        if (mSpans.length() > 0)
+            mSpans.append(", ");
+        mSpans.append(String.format(Locale.ROOT, "%s %.1f ms", name, micros / 1000f));
+    }
+}
@@ -0,0 +1,161 @@
+package org.asteroidos.sync.services;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.asteroidos.sync.connectivity.IService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Syncs and unsyncs the services of the {@link SynchronizationService} on its sync looper.
+ * Every service is synced exactly once per watch connection: when the first watch is ready,
+ * and once more for every further watch that becomes ready, unsynced right before so that its
+ * receivers are never registered twice. Services are synced in ascending order of
+ * {@link IService#getSyncPriority()}, one priority {@link #STAGGER_MS} after the other, so that
+ * the initial writes of a service have mostly left before the next one queues its own.
+ */
+final class SyncOrchestrator {
+    public static final String TAG = SyncOrchestrator.class.toString();
+
+    static final long STAGGER_MS = 150;
+
+    private final Handler mHandler;
+    private final Supplier<Collection<IService>> mServices;
+    /* Token of the staggered steps, to cancel them when the last watch goes away */
+    private final Object mToken = new Object();
+    /* Everything below is only touched on the sync looper */
+    private final HashSet<String> mReadyWatches = new HashSet<>();
+    /* Watches waiting for the services still pending */
+    private final ArrayList<WatchConnection> mSyncingWatches = new ArrayList<>();
+    /* Services whose sync() ran and whose unsync() did not yet */
+    private final LinkedHashSet<IService> mSynced = new LinkedHashSet<>();
+    /* Services to sync, or to sync again, in the next steps */
+    private final HashSet<IService> mPending = new HashSet<>();
+    private boolean mStepScheduled = false;
+    private long mStartedAt = 0;
+
+    SyncOrchestrator(Handler syncHandler, Supplier<Collection<IService>> services) {
+        mHandler = syncHandler;
+        mServices = services;
+    }
+
+    /**
+     * Syncs every service to watch, unless that already happened on this connection.
+     */
+    final void onWatchReady(WatchConnection watch) {
+        run(() -> {
+            if (!mReadyWatches.add(watch.macAddress)) {
+                Log.d(TAG, "Services already synced to " + watch.getName());
+                return;
+            }
+            mSyncingWatches.add(watch);
+            schedule(mServices.get());
+        });
+    }
+
+    /**
+     * Unsyncs every service once the last watch went away.
+     */
+    final void onWatchDisconnected(WatchConnection watch) {
+        run(() -> {
+            mReadyWatches.remove(watch.macAddress);
+            mSyncingWatches.remove(watch);
+            if (mReadyWatches.isEmpty())
+                unsyncAll();
+        });
+    }
+
+    /**
+     * A service registered while watches are connected is synced with the next step.
+     */
+    final void onServiceRegistered(IService service) {
+        run(() -> {
+            if (!mReadyWatches.isEmpty())
+                schedule(Collections.singletonList(service));
+        });
+    }
+
+    final void onServiceUnregistered(IService service) {
+        run(() -> {
+            mPending.remove(service);
+            if (mSynced.remove(service))
+                service.unsync();
+        });
+    }
+
+    /**
+     * Unsyncs every service, whether watches are connected or not.
+     */
+    final void stop() {
+        run(() -> {
+            mReadyWatches.clear();
+            mSyncingWatches.clear();
+            unsyncAll();
+        });
+    }
+
+    private void schedule(Collection<IService> services) {
+        if (mPending.isEmpty())
+            mStartedAt = SystemClock.elapsedRealtime();
+        mPending.addAll(services);
+        // A step already waiting will pick the most urgent of them
+        if (!mStepScheduled)
+            step();
+    }
+
+    /**
+     * Syncs the pending services of the most urgent priority, then waits for the next ones.
+     */
+    private void step() {
+        mStepScheduled = false;
+        if (mPending.isEmpty()) return;
+        int priority = Collections.min(mPending, Comparator.comparingInt(IService::getSyncPriority)).getSyncPriority();
+        List<IService> group = new ArrayList<>();
+        for (IService service : mPending)
+            if (service.getSyncPriority() == priority)
+                group.add(service);
+        mPending.removeAll(group);
+        for (IService service : group) {
+            if (mSynced.remove(service))
+                service.unsync();
+            service.sync();
+            mSynced.add(service);
+        }
+        if (!mPending.isEmpty()) {
+            mStepScheduled = true;
+            mHandler.postAtTime(this::step, mToken, SystemClock.uptimeMillis() + STAGGER_MS);
+            return;
+        }
+        Log.i(TAG, "Services synced in " + (SystemClock.elapsedRealtime() - mStartedAt) + " ms");
+        for (WatchConnection watch : mSyncingWatches)
+            watch.manager.onServicesSynced();
+        mSyncingWatches.clear();
+    }
+
+    private void unsyncAll() {
+        mHandler.removeCallbacksAndMessages(mToken);
+        mStepScheduled = false;
+        mPending.clear();
+        List<IService> synced = new ArrayList<>(mSynced);
+        mSynced.clear();
+        synced.sort(Comparator.comparingInt(IService::getSyncPriority).reversed());
+        synced.forEach(IService::unsync);
+    }
+
+    private void run(Runnable work) {
+        if (Looper.myLooper() == mHandler.getLooper())
+            work.run();
+        else
+            mHandler.post(work);
+    }
+}
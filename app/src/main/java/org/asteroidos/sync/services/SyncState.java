@@ -0,0 +1,80 @@
+package org.asteroidos.sync.services;
+
+import org.asteroidos.sync.asteroid.IAsteroidDevice.ConnectionState;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * What the app shows of the {@link SynchronizationService}: the watch shown in the app, its
+ * battery and the transport metrics, and every paired watch. Immutable, a new snapshot is
+ * published to the {@link ISyncStateListener}s whenever any of it changes.
+ */
+public final class SyncState {
+    public static final SyncState EMPTY = new SyncState("", "", ConnectionState.STATUS_DISCONNECTED,
+            0, "", Collections.emptyList());
+
+    public final String macAddress;
+    public final String name;
+    public final ConnectionState state;
+    public final int batteryPercentage;
+    public final String metrics;
+    public final List<WatchStatus> watches;
+
+    SyncState(String macAddress, String name, ConnectionState state, int batteryPercentage,
+              String metrics, List<WatchStatus> watches) {
+        this.macAddress = macAddress;
+        this.name = name;
+        this.state = state;
+        this.batteryPercentage = batteryPercentage;
+        this.metrics = metrics;
+        this.watches = Collections.unmodifiableList(watches);
+    }
+
+    /**
+     * Per watch status, the primary one is also the one described by the snapshot itself.
+     */
+    public static final class WatchStatus {
+        public final String macAddress;
+        public final String name;
+        public final ConnectionState state;
+        public final int batteryPercentage;
+        public final boolean primary;
+
+        WatchStatus(WatchConnection watch, boolean primary) {
+            macAddress = watch.macAddress;
+            name = watch.getName();
+            state = watch.state;
+            batteryPercentage = watch.batteryPercentage;
+            this.primary = primary;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof WatchStatus)) return false;
+            WatchStatus other = (WatchStatus) o;
+            return macAddress.equals(other.macAddress) && name.equals(other.name) && state == other.state
+                    && batteryPercentage == other.batteryPercentage && primary == other.primary;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(macAddress, name, state, batteryPercentage, primary);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SyncState)) return false;
+        SyncState other = (SyncState) o;
+        return macAddress.equals(other.macAddress) && name.equals(other.name) && state == other.state
+                && batteryPercentage == other.batteryPercentage && metrics.equals(other.metrics)
+                && watches.equals(other.watches);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(macAddress, name, state, batteryPercentage, metrics, watches);
+    }
+}
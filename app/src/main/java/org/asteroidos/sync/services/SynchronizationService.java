@@ -17,32 +17,33 @@
 
 package org.asteroidos.sync.services;
 
-import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.os.Message;
-import android.os.Messenger;
-import android.os.RemoteException;
+import android.os.Looper;
+import android.os.Process;
+import android.os.StrictMode;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-import androidx.core.app.NotificationCompat;
-
 import org.asteroidos.sync.MainActivity;
 import org.asteroidos.sync.R;
 import org.asteroidos.sync.asteroid.AsteroidBleManager;
 import org.asteroidos.sync.asteroid.IAsteroidDevice;
+import org.asteroidos.sync.asteroid.IChannel;
+import org.asteroidos.sync.asteroid.TransportMetrics;
+import org.asteroidos.sync.asteroid.WatchCapabilities;
 import org.asteroidos.sync.connectivity.IConnectivityService;
+import org.asteroidos.sync.connectivity.IPeriodicJob;
 import org.asteroidos.sync.connectivity.IService;
 import org.asteroidos.sync.connectivity.IServiceCallback;
 import org.asteroidos.sync.connectivity.MediaService;
@@ -51,237 +52,430 @@ import org.asteroidos.sync.connectivity.ScreenshotService;
 import org.asteroidos.sync.connectivity.SilentModeService;
 import org.asteroidos.sync.connectivity.TimeService;
 import org.asteroidos.sync.connectivity.WeatherService;
+import org.asteroidos.sync.utils.PayloadUtils;
+import org.asteroidos.sync.utils.Settings;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicBoolean;
-
-import no.nordicsemi.android.ble.observer.ConnectionObserver;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
 
-public class SynchronizationService extends Service implements IAsteroidDevice, ConnectionObserver {
+public class SynchronizationService extends Service implements IAsteroidDevice {
     public static final String TAG = SynchronizationService.class.toString();
-    public static final int MSG_CONNECT = 1;
-    public static final int MSG_DISCONNECT = 2;
-    public static final int MSG_SET_LOCAL_NAME = 3;
-    public static final int MSG_SET_STATUS = 4;
-    public static final int MSG_SET_BATTERY_PERCENTAGE = 5;
-    public static final int MSG_REQUEST_BATTERY_LIFE = 6;
-    public static final int MSG_SET_DEVICE = 7;
-    public static final int MSG_UPDATE = 8;
-    public static final int MSG_UNSET_DEVICE = 9;
 
     private static final String NOTIFICATION_CHANNEL_ID = "synchronizationservice_channel_id_01";
-    final Messenger mMessenger = new Messenger(new SynchronizationHandler(this));
+    private final LocalBinder mBinder = new LocalBinder();
     private final int NOTIFICATION = 2725;
-    public BluetoothDevice mDevice;
-    public int batteryPercentage = 0;
     HashMap<UUID, IConnectivityService> bleServices;
     List<IService> nonBleServices;
-    private NotificationManager mNM;
-    private ConnectionState mState = ConnectionState.STATUS_DISCONNECTED;
-    private Messenger replyTo;
-    private SharedPreferences mPrefs;
-    private AsteroidBleManager mBleMngr;
+    private NotificationPresenter mNotification;
+    /* Last state published to the app, and who to publish the next one to */
+    private SyncState mState = SyncState.EMPTY;
+    private final CopyOnWriteArrayList<ISyncStateListener> mStateListeners = new CopyOnWriteArrayList<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Settings mSettings;
+    /* Paired watches by MAC address, the primary one is shown in the app */
+    private final LinkedHashMap<String, WatchConnection> mWatches = new LinkedHashMap<>();
+    private String mPrimaryMacAddress = "";
+    /* Runs the sync() and unsync() of all services, and their receivers, observers and handlers */
+    private HandlerThread mSyncThread;
+    private Handler mSyncHandler;
+    private final HashMap<UUID, FanOutChannel> mChannels = new HashMap<>();
+    private final HashMap<UUID, IServiceCallback> mCallbacks = new HashMap<>();
+    private final TransportMetrics mNoMetrics = new TransportMetrics();
+    private SyncOrchestrator mOrchestrator;
+    private WakeupScheduler mScheduler;
+
+    /**
+     * In-process binder of the app. Every subscriber gets the {@link SyncState} on the main
+     * thread, once when subscribing and then whenever it changed.
+     */
+    public final class LocalBinder extends Binder {
+        public final void subscribe(ISyncStateListener listener) {
+            publishState();
+            if (!mStateListeners.addIfAbsent(listener)) return;
+            SyncState state = getState();
+            mMainHandler.post(() -> {
+                if (mStateListeners.contains(listener))
+                    listener.onSyncStateChanged(state);
+            });
+        }
 
-    final void handleConnect() {
-        if (mBleMngr == null) {
-            mBleMngr = new AsteroidBleManager(getApplicationContext(), SynchronizationService.this);
-            mBleMngr.setConnectionObserver(this);
+        public final void unsubscribe(ISyncStateListener listener) {
+            mStateListeners.remove(listener);
+        }
+
+        public final SyncState getState() {
+            synchronized (SynchronizationService.this) {
+                return mState;
+            }
+        }
+
+        /**
+         * Publishes the state again if it changed, the transport metrics change with every write
+         * and are only picked up when something else changed or on request.
+         */
+        public final void refresh() {
+            publishState();
         }
-        if (mState == ConnectionState.STATUS_CONNECTED || mState == ConnectionState.STATUS_CONNECTING) return;
-
-        mPrefs = getSharedPreferences(MainActivity.PREFS_NAME, Context.MODE_PRIVATE);
-        String defaultDevMacAddr = mPrefs.getString(MainActivity.PREFS_DEFAULT_MAC_ADDR, "");
-        if (defaultDevMacAddr.equals("")) return;
-        String defaultLocalName = mPrefs.getString(MainActivity.PREFS_DEFAULT_LOC_NAME, "");
-        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(defaultDevMacAddr);
-        try {
-            device.createBond();
-            mBleMngr.connect(device)
-                    .useAutoConnect(true)
-                    .timeout(100000)
-                    .retry(3, 200)
-                    .done(device1 -> Log.d(TAG, "Connected to " + device1.getName()))
-                    .fail((device2, error) -> Log.e(TAG, "Failed to connect to " + device.getName() +
-                            " with error code: " + error))
-                    .enqueue();
-        } catch (SecurityException e) {
-            e.printStackTrace();
+
+        public final void connect() {
+            handleConnect();
+        }
+
+        public final void disconnect() {
+            handleDisconnect();
+        }
+
+        public final void setDevice(BluetoothDevice device) {
+            handleSetDevice(device);
+        }
+
+        public final void unsetDevice() {
+            handleUnSetDevice();
         }
     }
 
-    final void handleDisconnect() {
-        if (mBleMngr == null) return;
-        if (mState == ConnectionState.STATUS_DISCONNECTED) return;
+    final void handleConnect() {
+        for (WatchConnection watch : watches())
+            watch.connect();
+    }
 
-        bleServices.values().forEach(IService::unsync);
-        mBleMngr.abort();
-        mBleMngr.disconnect().enqueue();
+    final void handleDisconnect() {
+        for (WatchConnection watch : watches())
+            watch.disconnect();
     }
 
+    /**
+     * Pairs device next to the already paired watches and shows it in the app.
+     */
     final void handleSetDevice(BluetoothDevice device) {
-        SharedPreferences.Editor editor = mPrefs.edit();
         Log.d(TAG, "handleSetDevice: " + device.toString());
-        editor.putString(MainActivity.PREFS_DEFAULT_MAC_ADDR, device.getAddress());
-        mDevice = device;
-        try {
-            String name = mDevice.getName();
-            Message answer = Message.obtain(null, MSG_SET_LOCAL_NAME);
-            answer.obj = name;
-            replyTo.send(answer);
-            replyTo.send(Message.obtain(null, MSG_SET_STATUS, mState));
-        } catch (RemoteException | SecurityException | NullPointerException ignored) {
-        }
-        editor.putString(MainActivity.PREFS_DEFAULT_LOC_NAME, name);
-        editor.apply();
+        WatchConnection watch = addWatch(device);
+        mPrimaryMacAddress = watch.macAddress;
+        rebindChannels();
+        String name = watch.getName();
+        mSettings.set(MainActivity.DEFAULT_MAC_ADDR, watch.macAddress);
+        mSettings.set(MainActivity.DEFAULT_LOC_NAME, name);
+        mSettings.set(MainActivity.WATCH_MAC_ADDRS, macAddresses());
+        publishState();
     }
 
-    final void handleUpdateConnectionStatus() {
-        if (mDevice != null) {
-            try {
-                replyTo.send(Message.obtain(null, MSG_SET_STATUS, mState));
-            } catch (RemoteException | NullPointerException ignored) {
-            }
+    /**
+     * Takes a new snapshot of the state and hands it to the subscribers on the main thread,
+     * unless nothing changed since the last one.
+     */
+    private void publishState() {
+        SyncState state;
+        synchronized (this) {
+            WatchConnection primary = mWatches.get(mPrimaryMacAddress);
+            ArrayList<SyncState.WatchStatus> statuses = new ArrayList<>();
+            for (WatchConnection watch : mWatches.values())
+                statuses.add(new SyncState.WatchStatus(watch, watch == primary));
+            if (primary == null)
+                state = new SyncState("", "", ConnectionState.STATUS_DISCONNECTED, 0, "", statuses);
+            else
+                state = new SyncState(primary.macAddress, primary.getName(), primary.state,
+                        primary.batteryPercentage, metrics(primary), statuses);
+            if (state.equals(mState)) return;
+            mState = state;
         }
+        mMainHandler.post(() -> {
+            for (ISyncStateListener listener : mStateListeners)
+                listener.onSyncStateChanged(state);
+        });
     }
 
-    final public void unsyncServices() {
-        bleServices.values().forEach(IService::unsync);
-        nonBleServices.forEach(IService::unsync);
+    private String metrics(WatchConnection primary) {
+        String wakeups = mScheduler.toString();
+        String metrics = primary.manager.getMetrics().toString() + "\n" + mNotification;
+        return wakeups.isEmpty() ? metrics : metrics + "\n" + wakeups;
     }
 
-    final public void syncServices() {
-        bleServices.values().forEach(IService::sync);
-        nonBleServices.forEach(IService::sync);
+    /**
+     * @return the looper every {@link IService} does its work on, never the main one
+     */
+    public final Looper getSyncLooper() {
+        return mSyncThread.getLooper();
     }
 
+    /**
+     * @return connected if any watch is, connecting if any watch is, disconnected otherwise
+     */
     @Override
     public final ConnectionState getConnectionState() {
-        return mState;
+        ConnectionState state = ConnectionState.STATUS_DISCONNECTED;
+        for (WatchConnection watch : watches()) {
+            if (watch.state == ConnectionState.STATUS_CONNECTED)
+                return ConnectionState.STATUS_CONNECTED;
+            if (watch.state == ConnectionState.STATUS_CONNECTING)
+                state = ConnectionState.STATUS_CONNECTING;
+        }
+        return state;
     }
 
+    /**
+     * @return the smallest MTU of the connected watches, so that a value encoded once fits all of them
+     */
     @Override
-    public final void send(UUID characteristic, byte[] data, IConnectivityService service) {
-        mBleMngr.send(characteristic, data);
-        Log.d(TAG, characteristic.toString() + " " + Arrays.toString(data));
+    public final int getMtu() {
+        int mtu = Integer.MAX_VALUE;
+        int anyMtu = Integer.MAX_VALUE;
+        for (WatchConnection watch : watches()) {
+            int watchMtu = watch.manager.getNegotiatedMtu();
+            anyMtu = Math.min(anyMtu, watchMtu);
+            if (watch.state == ConnectionState.STATUS_CONNECTED)
+                mtu = Math.min(mtu, watchMtu);
+        }
+        if (mtu == Integer.MAX_VALUE)
+            mtu = anyMtu;
+        return mtu == Integer.MAX_VALUE ? PayloadUtils.DEFAULT_MTU : mtu;
     }
 
     @Override
-    public final void registerBleService(IConnectivityService service) {
-        bleServices.put(service.getServiceUUID(), service);
-        Log.d(TAG, "BLE Service registered: " + service.getServiceUUID());
+    public final int getMaxPayloadSize() {
+        return PayloadUtils.maxPayloadSize(getMtu());
     }
 
+    /**
+     * @return the capabilities all paired watches share, writes are encoded once for all of them
+     */
     @Override
-    public final void unregisterBleService(UUID serviceUUID) {
-        bleServices.remove(getServiceByUUID(serviceUUID));
-        Log.d(TAG, "BLE Service unregistered: " + serviceUUID);
+    public final WatchCapabilities getCapabilities() {
+        WatchCapabilities capabilities = null;
+        for (WatchConnection watch : watches())
+            capabilities = capabilities == null ? watch.manager.getCapabilities()
+                    : capabilities.intersect(watch.manager.getCapabilities());
+        return capabilities == null ? WatchCapabilities.NONE : capabilities;
     }
 
+    /**
+     * @return the metrics of the primary watch
+     */
     @Override
-    public final void registerCallback(UUID characteristicUUID, IServiceCallback callback) {
-        mBleMngr.recvCallbacks.putIfAbsent(characteristicUUID, callback);
+    public final TransportMetrics getTransportMetrics() {
+        WatchConnection primary = primaryWatch();
+        return primary == null ? mNoMetrics : primary.manager.getMetrics();
     }
 
     @Override
-    public final void unregisterCallback(UUID characteristicUUID) {
-        mBleMngr.recvCallbacks.remove(characteristicUUID);
+    public final IChannel openChannel(UUID characteristic) {
+        return channel(characteristic, false);
     }
 
     @Override
-    public final IConnectivityService getServiceByUUID(UUID uuid) {
-        return bleServices.get(uuid);
+    public final IChannel openPrimaryChannel(UUID characteristic) {
+        return channel(characteristic, true);
     }
 
     @Override
-    public final HashMap<UUID, IConnectivityService> getServices() {
-        return bleServices;
+    public final void beginBulkTransfer() {
+        for (WatchConnection watch : watches())
+            watch.manager.beginBulkTransfer();
     }
 
     @Override
-    public final void onDeviceConnected(@NonNull BluetoothDevice device) {
-        mState = ConnectionState.STATUS_CONNECTED;
-        updateNotification();
+    public final void endBulkTransfer() {
+        for (WatchConnection watch : watches())
+            watch.manager.endBulkTransfer();
+    }
+
+    @Override
+    public final void beginBatch() {
+        for (WatchConnection watch : watches())
+            watch.manager.beginBatch();
     }
 
     @Override
-    public void onDeviceFailedToConnect(@NonNull BluetoothDevice device, int reason) {
-        try {
-            Log.d(TAG, "Failed to connect to " + device.getName() + ": " + reason);
-        } catch (SecurityException e) {
-            e.printStackTrace();
+    public final void commitBatch() {
+        for (WatchConnection watch : watches())
+            watch.manager.commitBatch();
+    }
+
+    /**
+     * Services can come and go while watches are connected: their characteristics are resolved
+     * and their notifications enabled on the live connections, and they are synced as soon as
+     * a watch is ready. Their periodic jobs are scheduled until they are unregistered. A service
+     * registered under the UUID of another one replaces it.
+     */
+    @Override
+    public final void registerBleService(IConnectivityService service) {
+        if (getServiceByUUID(service.getServiceUUID()) != null)
+            unregisterBleService(service.getServiceUUID());
+        synchronized (this) {
+            bleServices.put(service.getServiceUUID(), service);
         }
+        for (WatchConnection watch : watches())
+            watch.manager.onServiceRegistered(service);
+        for (IPeriodicJob job : service.getPeriodicJobs())
+            mScheduler.schedule(job);
+        mOrchestrator.onServiceRegistered(service);
+        Log.d(TAG, "BLE Service registered: " + service.getServiceUUID());
     }
 
     @Override
-    public final void onDeviceReady(@NonNull BluetoothDevice device) {
-        mState = ConnectionState.STATUS_CONNECTED;
-        updateNotification();
-        syncServices();
-        AsteroidBleManager.BatteryLevelEvent bevent = new AsteroidBleManager.BatteryLevelEvent();
-        bevent.battery = batteryPercentage;
-        handleUpdateBatteryPercentage(bevent);
+    public final void unregisterBleService(UUID serviceUUID) {
+        IConnectivityService service;
+        synchronized (this) {
+            service = bleServices.remove(serviceUUID);
+        }
+        if (service == null) return;
+        for (IPeriodicJob job : service.getPeriodicJobs())
+            mScheduler.cancel(job);
+        mOrchestrator.onServiceUnregistered(service);
+        for (WatchConnection watch : watches())
+            watch.manager.onServiceUnregistered(service);
+        Log.d(TAG, "BLE Service unregistered: " + serviceUUID);
     }
 
     @Override
-    public final void onDeviceDisconnecting(@NonNull BluetoothDevice device) {
-        mState = ConnectionState.STATUS_CONNECTED;
-        updateNotification();
+    public final synchronized void registerCallback(UUID characteristicUUID, IServiceCallback callback) {
+        mCallbacks.putIfAbsent(characteristicUUID, callback);
+        for (WatchConnection watch : mWatches.values())
+            watch.manager.recvCallbacks.putIfAbsent(characteristicUUID, callback);
+    }
+
+    @Override
+    public final synchronized void unregisterCallback(UUID characteristicUUID) {
+        mCallbacks.remove(characteristicUUID);
+        for (WatchConnection watch : mWatches.values())
+            watch.manager.recvCallbacks.remove(characteristicUUID);
+    }
+
+    @Override
+    public final synchronized IConnectivityService getServiceByUUID(UUID uuid) {
+        return bleServices.get(uuid);
     }
 
+    /**
+     * @return a snapshot of the registered services, they may change while it is iterated
+     */
     @Override
-    public final void onDeviceDisconnected(@NonNull BluetoothDevice device, int reason) {
-        mState = ConnectionState.STATUS_DISCONNECTED;
+    public final synchronized HashMap<UUID, IConnectivityService> getServices() {
+        return new HashMap<>(bleServices);
+    }
+
+    final void onWatchStateChanged(WatchConnection watch) {
+        updateNotification();
+    }
+
+    /**
+     * Services are synced once the first watch is ready. A watch joining later gets them
+     * synced again, so that it receives the current state as well.
+     */
+    final void onWatchReady(WatchConnection watch) {
         updateNotification();
-        unsyncServices();
+        mOrchestrator.onWatchReady(watch);
+        mScheduler.setConnected(true);
+        AsteroidBleManager.BatteryLevelEvent bevent = new AsteroidBleManager.BatteryLevelEvent();
+        bevent.battery = watch.batteryPercentage;
+        handleUpdateBatteryPercentage(watch.macAddress, bevent);
+    }
+
+    /**
+     * Services are unsynced once the last watch went away.
+     */
+    final void onWatchDisconnected(WatchConnection watch) {
+        updateNotification();
+        mOrchestrator.onWatchDisconnected(watch);
+        mScheduler.setConnected(getConnectionState() == ConnectionState.STATUS_CONNECTED);
     }
 
     @Override
     public void onCreate() {
+        StartupTrace trace = new StartupTrace();
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            // Flags disk and network access on the main thread, where no service work belongs
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectAll()
+                    .penaltyLog()
+                    .build());
+        }
+        mSyncThread = new HandlerThread("sync", Process.THREAD_PRIORITY_BACKGROUND);
+        mSyncThread.start();
+        mSyncHandler = new Handler(mSyncThread.getLooper());
+        mOrchestrator = new SyncOrchestrator(mSyncHandler, () -> {
+            ArrayList<IService> services = new ArrayList<>(getServices().values());
+            services.addAll(nonBleServices);
+            return services;
+        });
+        mScheduler = new WakeupScheduler(getApplicationContext(), mSyncHandler);
+
         bleServices = new HashMap<>();
         nonBleServices = new ArrayList<>();
 
-        mNM = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel notificationChannel = new NotificationChannel(NOTIFICATION_CHANNEL_ID, "Synchronization Service", NotificationManager.IMPORTANCE_LOW);
             notificationChannel.setDescription("Connection status");
             notificationChannel.setVibrationPattern(new long[]{0L});
             notificationChannel.setShowBadge(false);
-            mNM.createNotificationChannel(notificationChannel);
+            nm.createNotificationChannel(notificationChannel);
         }
-
-
-        mPrefs = getSharedPreferences(MainActivity.PREFS_NAME, Context.MODE_PRIVATE);
-        String defaultDevMacAddr = mPrefs.getString(MainActivity.PREFS_DEFAULT_MAC_ADDR, "");
-        String defaultLocalName = mPrefs.getString(MainActivity.PREFS_DEFAULT_LOC_NAME, "");
-
-        if (mBleMngr == null) {
-            mBleMngr = new AsteroidBleManager(getApplicationContext(), SynchronizationService.this);
-            mBleMngr.setConnectionObserver(this);
+        mNotification = new NotificationPresenter(this, nm, NOTIFICATION_CHANNEL_ID, NOTIFICATION);
+
+
+        try (StartupTrace.Span ignored = trace.span("watches")) {
+            mSettings = Settings.get(this);
+            mPrimaryMacAddress = mSettings.get(MainActivity.DEFAULT_MAC_ADDR);
+            Set<String> macAddresses = mSettings.get(MainActivity.WATCH_MAC_ADDRS);
+            // Before several watches could be paired only the default one was stored
+            if (!mPrimaryMacAddress.isEmpty())
+                macAddresses.add(mPrimaryMacAddress);
+
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            if (!mPrimaryMacAddress.isEmpty())
+                addWatch(adapter.getRemoteDevice(mPrimaryMacAddress));
+            for (String macAddress : macAddresses)
+                addWatch(adapter.getRemoteDevice(macAddress));
         }
 
-        if (!(defaultDevMacAddr.equals(""))) {
-            mDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(defaultDevMacAddr);
+        try (StartupTrace.Span ignored = trace.span("updateNotification")) {
+            updateNotification();
+        }
+        try (StartupTrace.Span ignored = trace.span("handleConnect")) {
+            handleConnect();
         }
 
-        if (nonBleServices.isEmpty())
-            nonBleServices.add(new SilentModeService(getApplicationContext()));
+        // The watches pick the services up whenever they are registered, connected or not
+        mSyncHandler.post(() -> {
+            createServices(trace);
+            trace.finish();
+        });
+    }
 
-        if (bleServices.isEmpty()) {
-            // Register Services
-            registerBleService(new MediaService(getApplicationContext(), this));
-            registerBleService(new NotificationService(getApplicationContext(), this));
-            registerBleService(new WeatherService(getApplicationContext(), this));
-            registerBleService(new ScreenshotService(getApplicationContext(), this));
-            registerBleService(new TimeService(getApplicationContext(), this));
+    /**
+     * Builds the services on the sync looper, so that the main thread puts the service in the
+     * foreground and starts connecting first.
+     */
+    private void createServices(StartupTrace trace) {
+        Context context = getApplicationContext();
+        IService silentMode;
+        try (StartupTrace.Span ignored = trace.span("SilentModeService")) {
+            silentMode = new SilentModeService(context);
         }
+        nonBleServices.add(silentMode);
+        mOrchestrator.onServiceRegistered(silentMode);
+
+        createBleService(trace, "MediaService", () -> new MediaService(context, this));
+        createBleService(trace, "NotificationService", () -> new NotificationService(context, this));
+        createBleService(trace, "WeatherService", () -> new WeatherService(context, this));
+        createBleService(trace, "ScreenshotService", () -> new ScreenshotService(context, this));
+        createBleService(trace, "TimeService", () -> new TimeService(context, this));
+    }
 
-        handleConnect();
-        updateNotification();
+    private void createBleService(StartupTrace trace, String name, Supplier<IConnectivityService> constructor) {
+        IConnectivityService service;
+        try (StartupTrace.Span ignored = trace.span(name)) {
+            service = constructor.get();
+        }
+        registerBleService(service);
     }
 
     @Override
@@ -290,114 +484,135 @@ public class SynchronizationService extends Service implements IAsteroidDevice,
     }
 
     private void updateNotification() {
-        handleUpdateConnectionStatus();
-        String status = getString(R.string.disconnected);
-        if (mDevice != null) {
-            try {
-                if (mState == ConnectionState.STATUS_CONNECTING)
-                    status = getString(R.string.connecting_formatted, mDevice.getName());
-                else if (mState == ConnectionState.STATUS_CONNECTED)
-                    status = getString(R.string.connected_formatted, mDevice.getName());
-            } catch (SecurityException e) {
-                e.printStackTrace();
-            }
-        }
+        publishState();
+        List<WatchConnection> watches = watches();
+        if (watches.isEmpty()) return;
 
-        if (mDevice != null) {
-            Intent intent = new Intent(this, MainActivity.class);
-            PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
-                    intent, PendingIntent.FLAG_UPDATE_CURRENT + PendingIntent.FLAG_IMMUTABLE);
-
-            Notification notification = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
-                    .setSmallIcon(R.drawable.ic_stat_name)
-                    .setContentTitle(getText(R.string.app_name))
-                    .setContentText(status)
-                    .setContentIntent(contentIntent)
-                    .setOngoing(true)
-                    .setPriority(Notification.PRIORITY_MIN)
-                    .setShowWhen(false)
-                    .build();
-
-            mNM.notify(NOTIFICATION, notification);
-            startForeground(NOTIFICATION, notification);
+        String status = getString(R.string.disconnected);
+        if (watches.size() == 1) {
+            WatchConnection watch = watches.get(0);
+            if (watch.state == ConnectionState.STATUS_CONNECTING)
+                status = getString(R.string.connecting_formatted, watch.getName());
+            else if (watch.state == ConnectionState.STATUS_CONNECTED)
+                status = getString(R.string.connected_formatted, watch.getName());
+        } else {
+            int connected = 0;
+            for (WatchConnection watch : watches)
+                if (watch.state == ConnectionState.STATUS_CONNECTED)
+                    connected++;
+            if (connected > 0)
+                status = getString(R.string.connected_watches_formatted, connected, watches.size());
         }
+        mNotification.show(status);
     }
 
     @Override
     public void onDestroy() {
-        mBleMngr.disconnect();
-        mNM.cancel(NOTIFICATION);
+        for (WatchConnection watch : watches()) {
+            watch.manager.disconnect();
+            watch.manager.release();
+        }
+        mOrchestrator.stop();
+        mScheduler.stop();
+        mSyncThread.quitSafely();
+        mNotification.cancel();
+        mSettings.flush();
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        return mMessenger.getBinder();
+        return mBinder;
     }
 
-    @Override
-    public void onDeviceConnecting(@NonNull BluetoothDevice device) {
-        mState = ConnectionState.STATUS_CONNECTING;
+    /**
+     * Unpairs the watch shown in the app, the next paired watch, if any, takes its place.
+     */
+    private void handleUnSetDevice() {
+        WatchConnection watch;
+        synchronized (this) {
+            watch = mWatches.remove(mPrimaryMacAddress);
+            mPrimaryMacAddress = mWatches.isEmpty() ? "" : mWatches.keySet().iterator().next();
+        }
+        if (watch != null) {
+            watch.disconnect();
+            watch.manager.release();
+        }
+        rebindChannels();
+
+        WatchConnection primary = primaryWatch();
+        mSettings.set(MainActivity.DEFAULT_LOC_NAME, primary == null ? "" : primary.getName());
+        mSettings.set(MainActivity.DEFAULT_MAC_ADDR, mPrimaryMacAddress);
+        mSettings.set(MainActivity.WATCH_MAC_ADDRS, macAddresses());
         updateNotification();
     }
 
-    private void handleUnSetDevice() {
-        SharedPreferences.Editor editor = mPrefs.edit();
-        if (mState != ConnectionState.STATUS_DISCONNECTED) {
-            mBleMngr.disconnect().enqueue();
+    public void handleUpdateBatteryPercentage(String macAddress, AsteroidBleManager.BatteryLevelEvent battery) {
+        Log.d(TAG, "handleBattery: " + macAddress + " " + battery.battery + "%");
+        WatchConnection watch;
+        synchronized (this) {
+            watch = mWatches.get(macAddress);
         }
-        mDevice = null;
-        editor.putString(MainActivity.PREFS_DEFAULT_LOC_NAME, "");
-        editor.putString(MainActivity.PREFS_DEFAULT_MAC_ADDR, "");
-        editor.putString(MainActivity.PREFS_NAME, "");
-        editor.apply();
-    }
-
-    public void handleUpdateBatteryPercentage(AsteroidBleManager.BatteryLevelEvent battery) {
-        Log.d(TAG, "handleBattery: " + battery.battery + "%");
-        batteryPercentage = battery.battery;
-        try {
-            if (replyTo != null)
-                replyTo.send(Message.obtain(null, MSG_SET_BATTERY_PERCENTAGE, batteryPercentage, 0));
-        } catch (RemoteException e) {
-            e.printStackTrace();
+        if (watch == null) return;
+        watch.batteryPercentage = battery.battery;
+        publishState();
+    }
+
+    private WatchConnection addWatch(BluetoothDevice device) {
+        WatchConnection watch;
+        synchronized (this) {
+            watch = mWatches.get(device.getAddress());
+            if (watch != null) return watch;
+            watch = new WatchConnection(this, device);
+            mWatches.put(watch.macAddress, watch);
+            mCallbacks.forEach(watch.manager.recvCallbacks::putIfAbsent);
         }
+        if (bleServices != null)
+            for (IConnectivityService service : getServices().values())
+                watch.manager.onServiceRegistered(service);
+        rebindChannels();
+        return watch;
+    }
+
+    private synchronized List<WatchConnection> watches() {
+        return new ArrayList<>(mWatches.values());
     }
 
-    static private class SynchronizationHandler extends Handler {
-        private final SynchronizationService mService;
+    private synchronized WatchConnection primaryWatch() {
+        return mWatches.get(mPrimaryMacAddress);
+    }
 
-        SynchronizationHandler(SynchronizationService service) {
-            mService = service;
+    private synchronized Set<String> macAddresses() {
+        return new HashSet<>(mWatches.keySet());
+    }
+
+    private synchronized FanOutChannel channel(UUID characteristic, boolean primaryOnly) {
+        FanOutChannel channel = mChannels.get(characteristic);
+        if (channel == null) {
+            channel = new FanOutChannel(characteristic, primaryOnly);
+            mChannels.put(characteristic, channel);
+            bind(channel);
         }
+        return channel;
+    }
 
-        @Override
-        public void handleMessage(Message msg) {
-            mService.replyTo = msg.replyTo;
-
-            switch (msg.what) {
-                case MSG_CONNECT:
-                    mService.handleConnect();
-                    break;
-                case MSG_DISCONNECT:
-                    mService.handleDisconnect();
-                    break;
-                case MSG_REQUEST_BATTERY_LIFE:
-                    AsteroidBleManager.BatteryLevelEvent batteryLevelEvent = new AsteroidBleManager.BatteryLevelEvent();
-                    batteryLevelEvent.battery = mService.batteryPercentage;
-                    mService.handleUpdateBatteryPercentage(batteryLevelEvent);
-                    break;
-                case MSG_SET_DEVICE:
-                    mService.handleSetDevice((BluetoothDevice) msg.obj);
-                    break;
-                case MSG_UNSET_DEVICE:
-                    mService.handleUnSetDevice();
-                    break;
-                case MSG_UPDATE:
-                    mService.handleUpdateConnectionStatus();
-                    break;
-                default:
-                    super.handleMessage(msg);
-            }
+    /**
+     * Points every channel at the channels of the currently paired watches.
+     */
+    private synchronized void rebindChannels() {
+        for (FanOutChannel channel : mChannels.values())
+            bind(channel);
+    }
+
+    private void bind(FanOutChannel channel) {
+        ArrayList<IChannel> targets = new ArrayList<>();
+        WatchConnection primary = mWatches.get(mPrimaryMacAddress);
+        if (primary != null)
+            targets.add(primary.manager.openChannel(channel.getCharacteristic()));
+        if (!channel.isPrimaryOnly()) {
+            for (WatchConnection watch : mWatches.values())
+                if (watch != primary)
+                    targets.add(watch.manager.openChannel(channel.getCharacteristic()));
         }
+        channel.setTargets(targets.toArray(new IChannel[0]));
     }
 }
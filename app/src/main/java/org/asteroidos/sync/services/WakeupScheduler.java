@@ -0,0 +1,182 @@
+package org.asteroidos.sync.services;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.asteroidos.sync.connectivity.IPeriodicJob;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * The one alarm of the {@link SynchronizationService}, shared by the periodic jobs of all
+ * services. A wakeup runs every job due within a quarter of its interval, so jobs of different
+ * periods end up sharing wakeups, and the alarm window lets the system batch it with the
+ * wakeups of other apps. Jobs whose inputs did not change since the last run that sent
+ * something are skipped. While no watch is connected the alarm is not armed, jobs that became
+ * due meanwhile run as soon as a watch is back. Jobs are only touched on the sync looper.
+ */
+final class WakeupScheduler {
+    public static final String TAG = WakeupScheduler.class.toString();
+
+    static final String ACTION_WAKEUP = "org.asteroidos.sync.WAKEUP";
+    private static final int FLEX_DIVISOR = 4;
+
+    private static final class Entry {
+        final IPeriodicJob job;
+        long dueAt;
+        /* Inputs of the last run that sent something */
+        Object lastInputs = null;
+
+        Entry(IPeriodicJob job, long dueAt) {
+            this.job = job;
+            this.dueAt = dueAt;
+        }
+    }
+
+    private final Context mCtx;
+    private final Handler mHandler;
+    private final AlarmManager mAlarmMgr;
+    private final PendingIntent mAlarmPendingIntent;
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onWakeup();
+        }
+    };
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+    private boolean mConnected = false;
+    private boolean mReceiverRegistered = false;
+    private final long mCreatedAt = SystemClock.elapsedRealtime();
+    private long mWakeups = 0;
+    private long mRuns = 0;
+    private long mSkips = 0;
+
+    WakeupScheduler(Context ctx, Handler syncHandler) {
+        mCtx = ctx;
+        mHandler = syncHandler;
+        mAlarmMgr = (AlarmManager) ctx.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(ACTION_WAKEUP).setPackage(ctx.getPackageName());
+        mAlarmPendingIntent = PendingIntent.getBroadcast(ctx, 0, intent, PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    /**
+     * The job first runs one interval from now, services do their initial work in sync().
+     */
+    final void schedule(IPeriodicJob job) {
+        run(() -> {
+            for (Entry entry : mEntries)
+                if (entry.job == job) return;
+            mEntries.add(new Entry(job, SystemClock.elapsedRealtime() + job.getIntervalMs()));
+            rearm();
+        });
+    }
+
+    final void cancel(IPeriodicJob job) {
+        run(() -> {
+            mEntries.removeIf(entry -> entry.job == job);
+            rearm();
+        });
+    }
+
+    /**
+     * Jobs only run while a watch is connected, on reconnecting the overdue ones run right away.
+     */
+    final void setConnected(boolean connected) {
+        run(() -> {
+            if (mConnected == connected) return;
+            mConnected = connected;
+            runDueJobs();
+            rearm();
+        });
+    }
+
+    final void stop() {
+        run(() -> {
+            mEntries.clear();
+            rearm();
+        });
+    }
+
+    /**
+     * @return wakeups per day since the service started, and how many jobs ran or were skipped
+     */
+    @Override
+    public final synchronized String toString() {
+        if (mWakeups == 0) return "";
+        float days = Math.max(1, SystemClock.elapsedRealtime() - mCreatedAt) / (float) AlarmManager.INTERVAL_DAY;
+        return String.format(Locale.ROOT, "%d wakeups, %.1f/day, %d jobs run, %d skipped as unchanged",
+                mWakeups, mWakeups / days, mRuns, mSkips);
+    }
+
+    private void onWakeup() {
+        synchronized (this) {
+            mWakeups++;
+        }
+        runDueJobs();
+        rearm();
+    }
+
+    private void runDueJobs() {
+        if (!mConnected) return;
+        long now = SystemClock.elapsedRealtime();
+        // A job may cancel itself, or another one, while it runs
+        for (Entry entry : new ArrayList<>(mEntries)) {
+            long interval = entry.job.getIntervalMs();
+            if (entry.dueAt - interval / FLEX_DIVISOR > now) continue;
+            entry.dueAt = now + interval;
+            Object inputs = entry.job.getInputs();
+            if (inputs != null && inputs.equals(entry.lastInputs)) {
+                synchronized (this) {
+                    mSkips++;
+                }
+                continue;
+            }
+            synchronized (this) {
+                mRuns++;
+            }
+            entry.job.run(() -> entry.lastInputs = inputs);
+        }
+    }
+
+    /**
+     * Arms the alarm for the job due first, or disarms it if no job can run.
+     */
+    private void rearm() {
+        if (!mConnected || mEntries.isEmpty()) {
+            mAlarmMgr.cancel(mAlarmPendingIntent);
+            if (mReceiverRegistered) {
+                mCtx.unregisterReceiver(mReceiver);
+                mReceiverRegistered = false;
+            }
+            return;
+        }
+        if (!mReceiverRegistered) {
+            mCtx.registerReceiver(mReceiver, new IntentFilter(ACTION_WAKEUP), null, mHandler);
+            mReceiverRegistered = true;
+        }
+        Entry next = mEntries.get(0);
+        for (Entry entry : mEntries)
+            if (entry.dueAt < next.dueAt)
+                next = entry;
+        long window = next.job.getIntervalMs() / FLEX_DIVISOR;
+        // Replaces the previous alarm, it has the same PendingIntent
+        mAlarmMgr.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, next.dueAt, window, mAlarmPendingIntent);
+        Log.d(TAG, "Next wakeup in " + (next.dueAt - SystemClock.elapsedRealtime()) / 1000 + " s");
+    }
+
+    private void run(Runnable work) {
+        if (Looper.myLooper() == mHandler.getLooper())
+            work.run();
+        else
+            mHandler.post(work);
+    }
+}
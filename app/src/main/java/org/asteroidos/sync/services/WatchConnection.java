@@ -0,0 +1,106 @@
+package org.asteroidos.sync.services;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.asteroidos.sync.asteroid.AsteroidBleManager;
+import org.asteroidos.sync.asteroid.IAsteroidDevice.ConnectionState;
+
+import no.nordicsemi.android.ble.observer.ConnectionObserver;
+
+/**
+ * A paired watch of the {@link SynchronizationService}. Every watch has its own
+ * {@link AsteroidBleManager}, and with it its own routing table, write queue and journal.
+ */
+final class WatchConnection implements ConnectionObserver {
+    public static final String TAG = WatchConnection.class.toString();
+
+    final String macAddress;
+    final BluetoothDevice device;
+    final AsteroidBleManager manager;
+    private final SynchronizationService mService;
+    volatile ConnectionState state = ConnectionState.STATUS_DISCONNECTED;
+    volatile int batteryPercentage = 0;
+
+    WatchConnection(SynchronizationService service, BluetoothDevice device) {
+        mService = service;
+        this.device = device;
+        macAddress = device.getAddress();
+        manager = new AsteroidBleManager(service.getApplicationContext(), service, macAddress);
+        manager.setConnectionObserver(this);
+    }
+
+    final String getName() {
+        try {
+            String name = device.getName();
+            if (name != null)
+                return name;
+        } catch (SecurityException e) {
+            e.printStackTrace();
+        }
+        return macAddress;
+    }
+
+    final void connect() {
+        if (state == ConnectionState.STATUS_CONNECTED || state == ConnectionState.STATUS_CONNECTING) return;
+        try {
+            device.createBond();
+            manager.connect(device)
+                    .useAutoConnect(true)
+                    .timeout(100000)
+                    .retry(3, 200)
+                    .done(device1 -> Log.d(TAG, "Connected to " + getName()))
+                    .fail((device2, error) -> Log.e(TAG, "Failed to connect to " + getName() +
+                            " with error code: " + error))
+                    .enqueue();
+        } catch (SecurityException e) {
+            e.printStackTrace();
+        }
+    }
+
+    final void disconnect() {
+        if (state == ConnectionState.STATUS_DISCONNECTED) return;
+        manager.abort();
+        manager.disconnect().enqueue();
+    }
+
+    @Override
+    public final void onDeviceConnecting(@NonNull BluetoothDevice device) {
+        state = ConnectionState.STATUS_CONNECTING;
+        manager.onLinkConnecting();
+        mService.onWatchStateChanged(this);
+    }
+
+    @Override
+    public final void onDeviceConnected(@NonNull BluetoothDevice device) {
+        state = ConnectionState.STATUS_CONNECTED;
+        manager.onLinkConnected();
+        mService.onWatchStateChanged(this);
+    }
+
+    @Override
+    public final void onDeviceFailedToConnect(@NonNull BluetoothDevice device, int reason) {
+        Log.d(TAG, "Failed to connect to " + getName() + ": " + reason);
+    }
+
+    @Override
+    public final void onDeviceReady(@NonNull BluetoothDevice device) {
+        state = ConnectionState.STATUS_CONNECTED;
+        manager.onLinkReady();
+        mService.onWatchReady(this);
+    }
+
+    @Override
+    public final void onDeviceDisconnecting(@NonNull BluetoothDevice device) {
+        state = ConnectionState.STATUS_CONNECTED;
+        mService.onWatchStateChanged(this);
+    }
+
+    @Override
+    public final void onDeviceDisconnected(@NonNull BluetoothDevice device, int reason) {
+        state = ConnectionState.STATUS_DISCONNECTED;
+        mService.onWatchDisconnected(this);
+    }
+}
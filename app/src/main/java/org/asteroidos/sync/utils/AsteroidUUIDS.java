@@ -40,4 +40,12 @@ public class AsteroidUUIDS {
     public static final UUID NOTIFICATION_SERVICE_UUID  = UUID.fromString("00009071-0000-0000-0000-00A57E401D05");
     public static final UUID NOTIFICATION_UPDATE_CHAR   = UUID.fromString("00009001-0000-0000-0000-00A57E401D05");
     public static final UUID NOTIFICATION_FEEDBACK_CHAR = UUID.fromString("00009002-0000-0000-0000-00A57E401D05");
+
+    // Protocol, capabilities of the watch (uint16 little endian version, uint32 little endian feature bitmap)
+    public static final UUID PROTOCOL_SERVICE_UUID      = UUID.fromString("0000B071-0000-0000-0000-00A57E401D05");
+    public static final UUID CAPABILITIES_CHAR          = UUID.fromString("0000B001-0000-0000-0000-00A57E401D05");
+
+    // Flow control, credits for pipelined writes (uint16 little endian packet count)
+    public static final UUID FLOW_CONTROL_SERVICE_UUID  = UUID.fromString("0000A071-0000-0000-0000-00A57E401D05");
+    public static final UUID FLOW_CONTROL_CREDITS_CHAR  = UUID.fromString("0000A001-0000-0000-0000-00A57E401D05");
 }
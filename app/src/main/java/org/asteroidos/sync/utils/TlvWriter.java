@@ -0,0 +1,109 @@
+package org.asteroidos.sync.utils;
+
+import java.util.Arrays;
+
+/**
+ * Tag-length-value encoder writing into a buffer that is reused from one message to the next.
+ * Every field is a one byte tag, its length as an unsigned LEB128 varint and its value. Strings
+ * are encoded as UTF-8 straight into the buffer, integers as unsigned LEB128 varints.
+ */
+public class TlvWriter {
+    private byte[] mBuffer;
+    private int mSize = 0;
+
+    public TlvWriter() {
+        this(256);
+    }
+
+    public TlvWriter(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * Starts a new message, keeping the buffer.
+     */
+    public final TlvWriter reset() {
+        mSize = 0;
+        return this;
+    }
+
+    public final TlvWriter putByte(int value) {
+        ensureCapacity(1);
+        mBuffer[mSize++] = (byte) value;
+        return this;
+    }
+
+    public final TlvWriter putInt(int tag, int value) {
+        putByte(tag);
+        putByte(varintLength(value));
+        putVarint(value);
+        return this;
+    }
+
+    /**
+     * Empty strings are left out, the reader treats a missing field as empty.
+     */
+    public final TlvWriter putString(int tag, String value) {
+        if (value == null || value.isEmpty()) return this;
+        int length = PayloadUtils.utf8Length(value);
+        putByte(tag);
+        putVarint(length);
+        ensureCapacity(length);
+        for (int i = 0; i < value.length(); i++) {
+            int c = value.charAt(i);
+            if (c < 0x80) {
+                mBuffer[mSize++] = (byte) c;
+            } else if (c < 0x800) {
+                mBuffer[mSize++] = (byte) (0xC0 | c >> 6);
+                mBuffer[mSize++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate((char) c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint((char) c, value.charAt(++i));
+                mBuffer[mSize++] = (byte) (0xF0 | codePoint >> 18);
+                mBuffer[mSize++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                mBuffer[mSize++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                mBuffer[mSize++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate((char) c)) {
+                // Unpaired surrogates become '?', like String.getBytes() does
+                mBuffer[mSize++] = '?';
+            } else {
+                mBuffer[mSize++] = (byte) (0xE0 | c >> 12);
+                mBuffer[mSize++] = (byte) (0x80 | c >> 6 & 0x3F);
+                mBuffer[mSize++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return this;
+    }
+
+    public final int size() {
+        return mSize;
+    }
+
+    /**
+     * @return a copy of the message written since the last {@link #reset()}
+     */
+    public final byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mSize);
+    }
+
+    public static int varintLength(int value) {
+        int length = 1;
+        while ((value >>>= 7) != 0)
+            length++;
+        return length;
+    }
+
+    private void putVarint(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            mBuffer[mSize++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mSize++] = (byte) value;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mSize + extra > mBuffer.length)
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + extra));
+    }
+}
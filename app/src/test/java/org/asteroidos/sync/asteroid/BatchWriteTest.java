@@ -0,0 +1,130 @@
+package org.asteroidos.sync.asteroid;
+
+import org.asteroidos.sync.asteroid.IAsteroidDevice.ConnectionState;
+import org.asteroidos.sync.asteroid.IAsteroidDevice.WritePriority;
+import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchWriteTest {
+    private static final UUID CITY = AsteroidUUIDS.WEATHER_CITY_CHAR;
+    private static final UUID IDS = AsteroidUUIDS.WEATHER_IDS_CHAR;
+    private static final UUID MAX = AsteroidUUIDS.WEATHER_MAX_TEMPS_CHAR;
+    private static final UUID MIN = AsteroidUUIDS.WEATHER_MIN_TEMPS_CHAR;
+    private static final UUID NOTIFICATION = AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR;
+
+    private FakeAsteroidDevice mDevice;
+
+    @Before
+    public void setUp() {
+        mDevice = new FakeAsteroidDevice();
+        mDevice.setPacketLatencyMs(10);
+    }
+
+    @After
+    public void tearDown() {
+        mDevice.shutdown();
+    }
+
+    @Test
+    public void nothingGetsBetweenTheWritesOfABatch() throws InterruptedException {
+        writeForecast();
+        // A call is more urgent than the forecast, yet the batch is on the air already
+        write(NOTIFICATION, WritePriority.CALL);
+        assertTrue(mDevice.awaitIdle(2000));
+
+        assertEquals(Arrays.asList(CITY, IDS, MAX, MIN, NOTIFICATION), mDevice.getDeliveryOrder());
+    }
+
+    @Test
+    public void aQueuedBatchIsOvertakenAsAWhole() throws InterruptedException {
+        write(NOTIFICATION, WritePriority.NOTIFICATION);
+        writeForecast();
+        write(NOTIFICATION, WritePriority.CALL);
+        assertTrue(mDevice.awaitIdle(2000));
+
+        assertEquals(Arrays.asList(NOTIFICATION, NOTIFICATION, CITY, IDS, MAX, MIN), mDevice.getDeliveryOrder());
+    }
+
+    @Test
+    public void aBatchGoesAtItsMostUrgentPriority() throws InterruptedException {
+        write(NOTIFICATION, WritePriority.BULK);
+        write(NOTIFICATION, WritePriority.NOTIFICATION);
+        mDevice.beginBatch();
+        write(CITY, WritePriority.WEATHER);
+        write(IDS, WritePriority.CALL);
+        mDevice.commitBatch();
+        assertTrue(mDevice.awaitIdle(2000));
+
+        assertEquals(Arrays.asList(NOTIFICATION, CITY, IDS, NOTIFICATION), mDevice.getDeliveryOrder());
+    }
+
+    @Test
+    public void onlyTheOutermostCommitSends() throws InterruptedException {
+        mDevice.beginBatch();
+        CompletableFuture<Void> city = write(CITY, WritePriority.WEATHER);
+        mDevice.beginBatch();
+        write(IDS, WritePriority.WEATHER);
+        mDevice.commitBatch();
+        assertTrue(mDevice.awaitIdle(100));
+        assertTrue(mDevice.getDeliveryOrder().isEmpty());
+        assertFalse(city.isDone());
+
+        mDevice.commitBatch();
+        assertTrue(mDevice.awaitIdle(2000));
+        assertEquals(Arrays.asList(CITY, IDS), mDevice.getDeliveryOrder());
+        assertTrue(city.isDone());
+        assertEquals(1, mDevice.getTransportMetrics().getBatchCount());
+    }
+
+    @Test
+    public void aLostWriteFailsTheWholeBatch() throws InterruptedException {
+        mDevice.setPacketLoss(1);
+        mDevice.beginBatch();
+        List<CompletableFuture<Void>> futures = Arrays.asList(
+                write(CITY, WritePriority.WEATHER), write(IDS, WritePriority.WEATHER));
+        mDevice.commitBatch();
+        assertTrue(mDevice.awaitIdle(2000));
+
+        for (CompletableFuture<Void> future : futures)
+            assertTrue(future.isCompletedExceptionally());
+        assertEquals(0, mDevice.getTransportMetrics().getBatchCount());
+    }
+
+    @Test
+    public void aBatchIssuedWhileDisconnectedIsAccepted() throws InterruptedException {
+        mDevice.setConnectionState(ConnectionState.STATUS_DISCONNECTED);
+        mDevice.beginBatch();
+        CompletableFuture<Void> city = write(CITY, WritePriority.WEATHER);
+        mDevice.commitBatch();
+        assertTrue(mDevice.awaitIdle(100));
+
+        assertTrue(city.isDone());
+        assertFalse(city.isCompletedExceptionally());
+        assertTrue(mDevice.getDeliveryOrder().isEmpty());
+    }
+
+    private void writeForecast() {
+        mDevice.beginBatch();
+        try {
+            for (UUID characteristic : new UUID[]{CITY, IDS, MAX, MIN})
+                write(characteristic, WritePriority.WEATHER);
+        } finally {
+            mDevice.commitBatch();
+        }
+    }
+
+    private CompletableFuture<Void> write(UUID characteristic, WritePriority priority) {
+        return mDevice.openChannel(characteristic).write(new byte[]{1, 2, 3}, priority, null);
+    }
+}
@@ -0,0 +1,72 @@
+package org.asteroidos.sync.asteroid;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import no.nordicsemi.android.ble.ConnectionPriorityRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionPriorityControllerTest {
+    private static final int HIGH = ConnectionPriorityRequest.CONNECTION_PRIORITY_HIGH;
+    private static final int BALANCED = ConnectionPriorityRequest.CONNECTION_PRIORITY_BALANCED;
+
+    private final List<Integer> mRequested = new ArrayList<>();
+    private ConnectionPriorityController mController;
+
+    @Before
+    public void setUp() {
+        mController = new ConnectionPriorityController(mRequested::add);
+        mController.onConnected();
+    }
+
+    @Test
+    public void goesHighWhileBusy() {
+        mController.beginBulkTransfer();
+        mController.onBacklog(ConnectionPriorityController.BACKLOG_THRESHOLD);
+        mController.endBulkTransfer();
+        assertEquals(1, mRequested.size());
+        assertEquals(HIGH, (int) mRequested.get(0));
+    }
+
+    @Test
+    public void trafficStepsUpFromLowPower() {
+        goLowPower();
+        mRequested.clear();
+
+        mController.onTraffic();
+        mController.onTraffic();
+        assertEquals(1, mRequested.size());
+        assertEquals(BALANCED, (int) mRequested.get(0));
+    }
+
+    @Test
+    public void trafficDoesNotLowerABusyLink() {
+        goLowPower();
+        mController.beginBulkTransfer();
+        mRequested.clear();
+
+        mController.onTraffic();
+        assertTrue(mRequested.isEmpty());
+    }
+
+    @Test
+    public void trafficIsIgnoredWhileDisconnected() {
+        goLowPower();
+        mController.onDisconnected();
+        mRequested.clear();
+
+        mController.onTraffic();
+        assertTrue(mRequested.isEmpty());
+    }
+
+    /* Handler callbacks do not run on the JVM, so the idle fallback is triggered by hand */
+    private void goLowPower() {
+        mController.onConnected();
+        mController.mToLowPower.run();
+    }
+}
@@ -0,0 +1,590 @@
+package org.asteroidos.sync.asteroid;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.asteroidos.sync.connectivity.IConnectivityService;
+import org.asteroidos.sync.connectivity.IPeriodicJob;
+import org.asteroidos.sync.connectivity.IServiceCallback;
+import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.PayloadUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loopback {@link IAsteroidDevice} simulating the GATT characteristics of an AsteroidOS watch,
+ * so that connectivity services can be driven from plain JUnit without a watch or radio.
+ * <p>
+ * Channels are the ones of the real device: writes go through a {@link WriteScheduler}, so
+ * priorities, coalescing and batches behave as they do against a watch. The write handed out
+ * by the scheduler is delivered on a single simulated radio thread, one packet per
+ * {@link #setPacketLatencyMs(long) packet latency}, and gets lost with the configured
+ * {@link #setPacketLoss(double) probability}, in which case its future fails like a real
+ * GATT error. Everything the watch received is kept per characteristic. Notifications of the
+ * watch, such as media commands or screenshot content, are injected with the inject methods.
+ * The random source is seeded, so runs are reproducible.
+ * <p>
+ * With a {@link #setCreditWindow(int) credit window} the fake watch supports pipelined writes:
+ * payloads spanning several packets are streamed through a {@link WritePipeline} without
+ * waiting for a {@link #setResponseLatencyMs(long) response} per packet, and the watch hands
+ * back a credit for every packet it consumed. A watch that {@link #setWithholdCredits(boolean)
+ * withholds credits} stalls the pipeline once the {@link #fireStallTimeout() stall timeout} fires.
+ */
+public class FakeAsteroidDevice implements IAsteroidDevice {
+    /* Characteristics the watch accepts writes on */
+    public static final Set<UUID> WRITABLE = new HashSet<>(Arrays.asList(
+            AsteroidUUIDS.TIME_SET_CHAR,
+            AsteroidUUIDS.SCREENSHOT_REQUEST,
+            AsteroidUUIDS.MEDIA_TITLE_CHAR,
+            AsteroidUUIDS.MEDIA_ALBUM_CHAR,
+            AsteroidUUIDS.MEDIA_ARTIST_CHAR,
+            AsteroidUUIDS.MEDIA_PLAYING_CHAR,
+            AsteroidUUIDS.MEDIA_VOLUME_CHAR,
+            AsteroidUUIDS.WEATHER_CITY_CHAR,
+            AsteroidUUIDS.WEATHER_IDS_CHAR,
+            AsteroidUUIDS.WEATHER_MIN_TEMPS_CHAR,
+            AsteroidUUIDS.WEATHER_MAX_TEMPS_CHAR,
+            AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR));
+    /* Characteristics the watch notifies on */
+    public static final Set<UUID> NOTIFYING = new HashSet<>(Arrays.asList(
+            AsteroidUUIDS.BATTERY_UUID,
+            AsteroidUUIDS.SCREENSHOT_CONTENT,
+            AsteroidUUIDS.MEDIA_COMMANDS_CHAR,
+            AsteroidUUIDS.NOTIFICATION_FEEDBACK_CHAR));
+
+    private final ScheduledExecutorService mRadio = Executors.newSingleThreadScheduledExecutor();
+    private final TransportMetrics mMetrics = new TransportMetrics();
+    private final HashMap<UUID, IConnectivityService> mServices = new HashMap<>();
+    private final ConcurrentHashMap<UUID, IServiceCallback> mCallbacks = new ConcurrentHashMap<>();
+    private final HashMap<UUID, AsteroidChannel> mChannels = new HashMap<>();
+    private final HashMap<UUID, List<byte[]>> mReceived = new HashMap<>();
+    /* Pipelined payloads being reassembled, by characteristic */
+    private final HashMap<UUID, ByteBuffer> mReassembly = new HashMap<>();
+    private final ArrayList<UUID> mDeliveryOrder = new ArrayList<>();
+    private final ArrayList<IPeriodicJob> mPeriodicJobs = new ArrayList<>();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final WritePipeline mPipeline = new WritePipeline();
+    private final WriteScheduler mScheduler = new WriteScheduler(this::dispatch, mMetrics);
+    /* Batch opened by beginBatch() on the calling thread */
+    private final ThreadLocal<WriteScheduler.Batch> mBatch = new ThreadLocal<>();
+    private final Random mRandom;
+
+    private volatile ConnectionState mState = ConnectionState.STATUS_CONNECTED;
+    private volatile int mMtu = 256;
+    private volatile long mPacketLatencyMs = 0;
+    private volatile double mPacketLoss = 0;
+    private volatile long mResponseLatencyMs = 0;
+    private volatile long mRadioFreeAt = 0;
+    private volatile int mCreditWindow = 0;
+    private volatile boolean mWithholdCredits = false;
+    private volatile WatchCapabilities mCapabilities = WatchCapabilities.NONE;
+    private int mUnacknowledgedPackets = 0;
+    private int mMaxUnacknowledgedPackets = 0;
+    private int mStalledStreams = 0;
+    private int mJournaledWrites = 0;
+    private int mBulkTransfers = 0;
+
+    public FakeAsteroidDevice() {
+        this(0);
+    }
+
+    public FakeAsteroidDevice(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    public final void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    /**
+     * @param latencyMs time the simulated radio needs for every packet of a write
+     */
+    public final void setPacketLatencyMs(long latencyMs) {
+        mPacketLatencyMs = latencyMs;
+    }
+
+    /**
+     * @param latencyMs time the watch needs to acknowledge every packet of a write with response,
+     *                  and to hand back the credit of a pipelined packet
+     */
+    public final void setResponseLatencyMs(long latencyMs) {
+        mResponseLatencyMs = latencyMs;
+    }
+
+    /**
+     * @param packets credits the watch grants for pipelined writes, 0 if it does not support them
+     */
+    public final void setCreditWindow(int packets) {
+        mCreditWindow = packets;
+        mPipeline.reset();
+        synchronized (this) {
+            mUnacknowledgedPackets = 0;
+            mMaxUnacknowledgedPackets = 0;
+        }
+        mPipeline.grant(packets);
+    }
+
+    /**
+     * @return the most pipelined packets that were in flight without their credit handed back,
+     * never more than the credit window
+     */
+    public final synchronized int getMaxUnacknowledgedPackets() {
+        return mMaxUnacknowledgedPackets;
+    }
+
+    public final int getPipelineCredits() {
+        return mPipeline.getCredits();
+    }
+
+    /**
+     * @param withhold whether the watch stops handing back the credits of the packets it consumes
+     */
+    public final void setWithholdCredits(boolean withhold) {
+        mWithholdCredits = withhold;
+    }
+
+    /**
+     * Fires the stall timeout of the pipeline, as if the watch handed back no credit for
+     * {@link WritePipeline#STALL_TIMEOUT_MS}.
+     */
+    public final void fireStallTimeout() {
+        mRadio.execute(mPipeline.mOnStall);
+    }
+
+    /**
+     * @return how many streams stalled and were written with response instead
+     */
+    public final synchronized int getStalledStreams() {
+        return mStalledStreams;
+    }
+
+    /**
+     * @param probability chance, between 0 and 1, that any packet of a write gets lost
+     */
+    public final void setPacketLoss(double probability) {
+        mPacketLoss = probability;
+    }
+
+    /**
+     * Without capabilities the fake behaves like a watch lacking the capabilities characteristic.
+     */
+    public final void setCapabilities(WatchCapabilities capabilities) {
+        mCapabilities = capabilities;
+    }
+
+    /**
+     * Channels are only resolved while connected, writes issued meanwhile are accepted without
+     * reaching the watch, like the journaled writes of the real device.
+     */
+    public final synchronized void setConnectionState(ConnectionState state) {
+        mState = state;
+        mChannels.values().forEach(this::bind);
+    }
+
+    /**
+     * @return the values the watch received on characteristic, oldest first
+     */
+    public final synchronized List<byte[]> getReceived(UUID characteristic) {
+        List<byte[]> received = mReceived.get(characteristic);
+        return received == null ? Collections.emptyList() : new ArrayList<>(received);
+    }
+
+    public final synchronized byte[] getLastReceived(UUID characteristic) {
+        List<byte[]> received = mReceived.get(characteristic);
+        return received == null || received.isEmpty() ? null : received.get(received.size() - 1);
+    }
+
+    /**
+     * @return the characteristics of every value the watch received, in the order they arrived
+     */
+    public final synchronized List<UUID> getDeliveryOrder() {
+        return new ArrayList<>(mDeliveryOrder);
+    }
+
+    /**
+     * @return how many writes were accepted while the watch was not connected, outside of a batch
+     */
+    public final synchronized int getJournaledWrites() {
+        return mJournaledWrites;
+    }
+
+    public final synchronized void clearReceived() {
+        mReceived.clear();
+        mDeliveryOrder.clear();
+    }
+
+    public final synchronized int getBulkTransfers() {
+        return mBulkTransfers;
+    }
+
+    /**
+     * Blocks until every write issued so far went over the simulated radio.
+     *
+     * @return false if writes are still queued or in flight after timeoutMs
+     */
+    public final boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (mInFlight.get() > 0 || mScheduler.getPendingCount() > 0) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Delivers data as a notification of the watch to the registered callback, on the radio thread.
+     */
+    public final CompletableFuture<Void> injectNotification(UUID characteristic, byte[] data) {
+        if (!NOTIFYING.contains(characteristic))
+            throw new IllegalArgumentException(characteristic + " does not notify");
+        return CompletableFuture.runAsync(() -> {
+            IServiceCallback callback = mCallbacks.get(characteristic);
+            if (callback != null)
+                callback.call(data);
+        }, mRadio);
+    }
+
+    public final CompletableFuture<Void> injectMediaCommand(byte... command) {
+        return injectNotification(AsteroidUUIDS.MEDIA_COMMANDS_CHAR, command);
+    }
+
+    /**
+     * Sends image the way the watch does: its size as a 4 byte big endian integer, followed by
+     * the content split into packets of the maximum payload size.
+     */
+    public final CompletableFuture<Void> injectScreenshot(byte[] image) {
+        CompletableFuture<Void> last = injectNotification(AsteroidUUIDS.SCREENSHOT_CONTENT,
+                ByteBuffer.allocate(4).putInt(image.length).array());
+        int packet = getMaxPayloadSize();
+        for (int offset = 0; offset < image.length; offset += packet)
+            last = injectNotification(AsteroidUUIDS.SCREENSHOT_CONTENT,
+                    Arrays.copyOfRange(image, offset, Math.min(image.length, offset + packet)));
+        return last;
+    }
+
+    /**
+     * Stops the radio, the watch counts as disconnected from then on.
+     */
+    public final void shutdown() {
+        setConnectionState(ConnectionState.STATUS_DISCONNECTED);
+        mRadio.shutdownNow();
+    }
+
+    @Override
+    public final ConnectionState getConnectionState() {
+        return mState;
+    }
+
+    @Override
+    public final int getMtu() {
+        return mMtu;
+    }
+
+    @Override
+    public final int getMaxPayloadSize() {
+        return PayloadUtils.maxPayloadSize(mMtu);
+    }
+
+    @Override
+    public final TransportMetrics getTransportMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public final synchronized IChannel openChannel(UUID characteristic) {
+        AsteroidChannel channel = mChannels.get(characteristic);
+        if (channel == null) {
+            channel = new AsteroidChannel(characteristic, this::submit, mMetrics);
+            bind(channel);
+            mChannels.put(characteristic, channel);
+        }
+        return channel;
+    }
+
+    @Override
+    public final WatchCapabilities getCapabilities() {
+        return mCapabilities;
+    }
+
+    @Override
+    public final IChannel openPrimaryChannel(UUID characteristic) {
+        return openChannel(characteristic);
+    }
+
+    @Override
+    public final synchronized void beginBulkTransfer() {
+        mBulkTransfers++;
+    }
+
+    @Override
+    public final synchronized void endBulkTransfer() {
+        if (mBulkTransfers > 0)
+            mBulkTransfers--;
+    }
+
+    @Override
+    public final void beginBatch() {
+        WriteScheduler.Batch batch = mBatch.get();
+        if (batch == null) {
+            batch = new WriteScheduler.Batch();
+            mBatch.set(batch);
+        }
+        batch.depth++;
+    }
+
+    @Override
+    public final void commitBatch() {
+        WriteScheduler.Batch batch = mBatch.get();
+        if (batch == null || --batch.depth > 0) return;
+        mBatch.remove();
+        if (mState != ConnectionState.STATUS_CONNECTED) {
+            batch.writes.forEach(write -> write.complete(null));
+            return;
+        }
+        mScheduler.commit(batch);
+    }
+
+    /**
+     * Runs the periodic jobs of the registered services, whatever their inputs.
+     */
+    public final void runPeriodicJobs() {
+        List<IPeriodicJob> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<>(mPeriodicJobs);
+        }
+        jobs.forEach(job -> job.run(() -> {}));
+    }
+
+    /**
+     * Configures the channels of service the way the real device does and collects its
+     * periodic jobs, tests run them with {@link #runPeriodicJobs()}.
+     */
+    @Override
+    public final synchronized void registerBleService(IConnectivityService service) {
+        UUID serviceUUID = service.getServiceUUID();
+        WritePriority priority = WritePriority.forService(serviceUUID);
+        mServices.put(serviceUUID, service);
+        mPeriodicJobs.addAll(service.getPeriodicJobs());
+        service.getCharacteristicUUIDs().forEach((uuid, direction) -> {
+            mMetrics.bindCharacteristic(uuid, serviceUUID);
+            if (direction.isToWatch())
+                ((AsteroidChannel) openChannel(uuid)).configure(priority,
+                        direction == IConnectivityService.Direction.TO_WATCH_COALESCED,
+                        service.getCompressibleCharacteristics().contains(uuid));
+        });
+    }
+
+    @Override
+    public final synchronized void unregisterBleService(UUID serviceUUID) {
+        IConnectivityService service = mServices.remove(serviceUUID);
+        if (service != null)
+            mPeriodicJobs.removeAll(service.getPeriodicJobs());
+    }
+
+    @Override
+    public final void registerCallback(UUID characteristicUUID, IServiceCallback callback) {
+        mCallbacks.putIfAbsent(characteristicUUID, callback);
+    }
+
+    @Override
+    public final void unregisterCallback(UUID characteristicUUID) {
+        mCallbacks.remove(characteristicUUID);
+    }
+
+    @Override
+    public final synchronized IConnectivityService getServiceByUUID(UUID uuid) {
+        return mServices.get(uuid);
+    }
+
+    @Override
+    public final synchronized HashMap<UUID, IConnectivityService> getServices() {
+        return new HashMap<>(mServices);
+    }
+
+    private void bind(AsteroidChannel channel) {
+        UUID uuid = channel.getCharacteristic();
+        channel.bind(mState == ConnectionState.STATUS_CONNECTED && WRITABLE.contains(uuid)
+                ? new BluetoothGattCharacteristic(uuid, BluetoothGattCharacteristic.PROPERTY_WRITE, 0) : null);
+    }
+
+    private CompletableFuture<Void> submit(AsteroidChannel channel, byte[] data, WritePriority priority, String key) {
+        WriteScheduler.Batch batch = mBatch.get();
+        if (batch != null)
+            return mScheduler.add(batch, channel, key, data, priority);
+        if (mState != ConnectionState.STATUS_CONNECTED) {
+            // The real device journals these, as far as the caller is concerned they are accepted
+            synchronized (this) {
+                mJournaledWrites++;
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+        return mScheduler.enqueue(channel, key, data, priority);
+    }
+
+    /**
+     * Sink of the write scheduler, puts the write or batch it hands out on the simulated radio.
+     */
+    private void dispatch(WriteScheduler.PendingWrite write) {
+        if (write.batch == null) {
+            transmit(write.channel, write.data, success -> mScheduler.onWriteComplete(write, success));
+            return;
+        }
+        List<WriteScheduler.PendingWrite> writes = write.batch.writes;
+        AtomicInteger remaining = new AtomicInteger(writes.size());
+        AtomicBoolean failed = new AtomicBoolean();
+        for (WriteScheduler.PendingWrite member : writes) {
+            // Packets of the batch follow each other on the radio, nothing gets in between
+            transmit(member.channel, member.data, success -> {
+                if (!success)
+                    failed.set(true);
+                if (remaining.decrementAndGet() == 0)
+                    mScheduler.onBatchComplete(write.batch, !failed.get());
+            });
+        }
+    }
+
+    /**
+     * @param done called on the radio thread once the watch got data or it was lost, before the
+     *             write stops counting as in flight
+     */
+    private void transmit(AsteroidChannel channel, byte[] data, WritePipeline.Completion done) {
+        UUID characteristic = channel.getCharacteristic();
+        if (!channel.isResolved()) {
+            done.onComplete(false);
+            return;
+        }
+
+        if (mCreditWindow > 0 && !mPipeline.isStalled() && data.length > getMaxPayloadSize()
+                && WritePipeline.fits(data, getMaxPayloadSize())) {
+            stream(characteristic, data, done);
+            return;
+        }
+
+        int packets = Math.max(1, (data.length + getMaxPayloadSize() - 1) / getMaxPayloadSize());
+        boolean lost;
+        long delay;
+        synchronized (this) {
+            lost = false;
+            for (int i = 0; i < packets; i++)
+                lost |= mRandom.nextDouble() < mPacketLoss;
+            // Packets of all channels share one radio
+            long now = System.currentTimeMillis();
+            long start = Math.max(now, mRadioFreeAt);
+            mRadioFreeAt = start + packets * (mPacketLatencyMs + mResponseLatencyMs);
+            delay = mRadioFreeAt - now;
+        }
+
+        mInFlight.incrementAndGet();
+        boolean success = !lost;
+        mRadio.schedule(() -> {
+            if (success)
+                received(characteristic, data);
+            done.onComplete(success);
+            mInFlight.decrementAndGet();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void stream(UUID characteristic, byte[] data, WritePipeline.Completion done) {
+        long startedAt = System.currentTimeMillis();
+        mInFlight.incrementAndGet();
+        mPipeline.stream(data, getMaxPayloadSize(), (packet, sent) -> sendPacket(characteristic, packet, sent),
+                success -> {
+                    synchronized (FakeAsteroidDevice.this) {
+                        mMetrics.onStreamComplete(data.length, System.currentTimeMillis() - startedAt, success);
+                    }
+                    done.onComplete(success);
+                    mInFlight.decrementAndGet();
+                },
+                () -> {
+                    synchronized (FakeAsteroidDevice.this) {
+                        mMetrics.onStreamComplete(data.length, System.currentTimeMillis() - startedAt, false);
+                        mStalledStreams++;
+                    }
+                    // Falls back to a write with response, like the manager does
+                    mRadio.execute(() -> {
+                        received(characteristic, data);
+                        done.onComplete(true);
+                        mInFlight.decrementAndGet();
+                    });
+                });
+    }
+
+    private synchronized void received(UUID characteristic, byte[] data) {
+        List<byte[]> received = mReceived.get(characteristic);
+        if (received == null) {
+            received = new ArrayList<>();
+            mReceived.put(characteristic, received);
+        }
+        received.add(data);
+        mDeliveryOrder.add(characteristic);
+    }
+
+    /**
+     * Puts a write without response packet on the radio, the watch hands its credit back once
+     * it consumed the packet. Once credits are withheld, packets are consumed but no credit
+     * comes back.
+     */
+    private void sendPacket(UUID characteristic, byte[] packet, WritePipeline.Completion done) {
+        boolean lost;
+        long delay;
+        synchronized (this) {
+            lost = mRandom.nextDouble() < mPacketLoss;
+            long now = System.currentTimeMillis();
+            long start = Math.max(now, mRadioFreeAt);
+            mRadioFreeAt = start + mPacketLatencyMs;
+            delay = mRadioFreeAt - now;
+            mUnacknowledgedPackets++;
+            mMaxUnacknowledgedPackets = Math.max(mMaxUnacknowledgedPackets, mUnacknowledgedPackets);
+        }
+        mRadio.schedule(() -> {
+            if (!lost)
+                receivePacket(characteristic, packet);
+            done.onComplete(!lost);
+            if (mWithholdCredits) return;
+            mRadio.schedule(() -> {
+                synchronized (FakeAsteroidDevice.this) {
+                    mUnacknowledgedPackets--;
+                }
+                mPipeline.grant(1);
+            }, mResponseLatencyMs, TimeUnit.MILLISECONDS);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reassembles a pipelined write the way the watch does: a packet marked as the start of a
+     * stream discards what is left of the previous one, the payload is received once its last
+     * packet arrived.
+     */
+    private synchronized void receivePacket(UUID characteristic, byte[] packet) {
+        ByteBuffer reassembly = mReassembly.get(characteristic);
+        if ((packet[0] & WritePipeline.FLAG_START) != 0) {
+            int length = (packet[1] & 0xFF) | (packet[2] & 0xFF) << 8;
+            reassembly = ByteBuffer.allocate(length);
+            mReassembly.put(characteristic, reassembly);
+            reassembly.put(packet, WritePipeline.START_HEADER_SIZE, packet.length - WritePipeline.START_HEADER_SIZE);
+        } else if (reassembly != null) {
+            reassembly.put(packet, WritePipeline.HEADER_SIZE, packet.length - WritePipeline.HEADER_SIZE);
+        } else {
+            // The start of this stream was lost
+            return;
+        }
+        if (reassembly.hasRemaining()) return;
+        mReassembly.remove(characteristic);
+        received(characteristic, reassembly.array());
+    }
+}
@@ -0,0 +1,146 @@
+package org.asteroidos.sync.asteroid;
+
+import org.asteroidos.sync.asteroid.IAsteroidDevice.WritePriority;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundJournalTest {
+    private static final UUID MEDIA = UUID.randomUUID();
+    private static final UUID NOTIFICATION = UUID.randomUUID();
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+    private final List<OutboundJournal> mOpened = new ArrayList<>();
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mFolder.getRoot(), "journal");
+    }
+
+    /* Lets pending writes finish before the folder goes away */
+    @After
+    public void tearDown() throws InterruptedException {
+        for (OutboundJournal journal : mOpened)
+            journal.awaitIo();
+    }
+
+    @Test
+    public void collapsesWritesWithTheSameKey() throws InterruptedException {
+        OutboundJournal journal = open();
+        journal.append(MEDIA, "title", bytes(1), WritePriority.MEDIA);
+        journal.append(MEDIA, "artist", bytes(2), WritePriority.MEDIA);
+        journal.append(NOTIFICATION, "title", bytes(3), WritePriority.NOTIFICATION);
+        journal.append(MEDIA, "title", bytes(4), WritePriority.MEDIA);
+
+        List<OutboundJournal.Entry> entries = journal.drain();
+        assertEquals(3, entries.size());
+        assertEquals("artist", entries.get(0).key);
+        assertEquals(NOTIFICATION, entries.get(1).characteristic);
+        assertArrayEquals(bytes(4), entries.get(2).data);
+    }
+
+    @Test
+    public void keepsEveryWriteWithoutKey() throws InterruptedException {
+        OutboundJournal journal = open();
+        journal.append(NOTIFICATION, null, bytes(1), WritePriority.NOTIFICATION);
+        journal.append(NOTIFICATION, null, bytes(1), WritePriority.NOTIFICATION);
+
+        List<OutboundJournal.Entry> entries = journal.drain();
+        assertEquals(2, entries.size());
+        assertNull(entries.get(0).key);
+    }
+
+    @Test
+    public void dropsTheOldestEntriesBeyondItsBounds() throws InterruptedException {
+        OutboundJournal journal = open();
+        for (int i = 0; i < OutboundJournal.MAX_ENTRIES + 2; i++)
+            journal.append(NOTIFICATION, String.valueOf(i), bytes(i), WritePriority.NOTIFICATION);
+        List<OutboundJournal.Entry> entries = journal.drain();
+        assertEquals(OutboundJournal.MAX_ENTRIES, entries.size());
+        assertEquals("2", entries.get(0).key);
+
+        int size = OutboundJournal.MAX_BYTES / 4;
+        for (int i = 0; i < 5; i++)
+            journal.append(MEDIA, String.valueOf(i), new byte[size], WritePriority.BULK);
+        entries = journal.drain();
+        assertEquals(4, entries.size());
+        assertEquals("1", entries.get(0).key);
+    }
+
+    @Test
+    public void isEmptyOnceDrained() throws InterruptedException {
+        OutboundJournal journal = open();
+        journal.append(MEDIA, "title", bytes(1), WritePriority.MEDIA);
+        assertEquals(1, journal.drain().size());
+        assertTrue(journal.drain().isEmpty());
+        journal.awaitIo();
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void survivesARestart() throws InterruptedException {
+        OutboundJournal journal = open();
+        journal.append(MEDIA, "title", bytes(1), WritePriority.MEDIA);
+        journal.append(NOTIFICATION, null, bytes(2), WritePriority.CALL);
+        journal.awaitIo();
+
+        List<OutboundJournal.Entry> entries = open().drain();
+        assertEquals(2, entries.size());
+        OutboundJournal.Entry media = entries.get(0);
+        assertEquals(MEDIA, media.characteristic);
+        assertEquals("title", media.key);
+        assertEquals(WritePriority.MEDIA, media.priority);
+        assertArrayEquals(bytes(1), media.data);
+        assertNull(entries.get(1).key);
+        assertEquals(WritePriority.CALL, entries.get(1).priority);
+    }
+
+    @Test
+    public void writesAppendsTogetherAfterADelay() throws InterruptedException {
+        OutboundJournal journal = open();
+        for (int i = 0; i < 10; i++)
+            journal.append(NOTIFICATION, null, bytes(i), WritePriority.NOTIFICATION);
+        assertFalse(mFile.exists());
+
+        journal.awaitIo();
+        assertTrue(mFile.exists());
+        assertEquals(10, open().drain().size());
+    }
+
+    @Test
+    public void discardsAnUnreadableFile() throws IOException, InterruptedException {
+        try (FileOutputStream out = new FileOutputStream(mFile)) {
+            out.write(new byte[]{0, 0, 0, 2, 0, 0, 0, 9, 1});
+        }
+        assertTrue(open().drain().isEmpty());
+    }
+
+    /* Returns once the journal on disk has been loaded */
+    private OutboundJournal open() throws InterruptedException {
+        OutboundJournal journal = new OutboundJournal(mFile);
+        journal.awaitIo();
+        mOpened.add(journal);
+        return journal;
+    }
+
+    private static byte[] bytes(int value) {
+        return new byte[]{(byte) value};
+    }
+}
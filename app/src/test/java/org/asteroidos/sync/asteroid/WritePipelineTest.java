@@ -0,0 +1,170 @@
+package org.asteroidos.sync.asteroid;
+
+import org.asteroidos.sync.asteroid.IAsteroidDevice.WritePriority;
+import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WritePipelineTest {
+    private static final UUID CHARACTERISTIC = AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR;
+    private static final int WINDOW = 4;
+
+    private final List<byte[]> mPackets = new ArrayList<>();
+    private final List<WritePipeline.Completion> mPacketsDone = new ArrayList<>();
+    private final List<Boolean> mCompletions = new ArrayList<>();
+    private WritePipeline mPipeline;
+    private FakeAsteroidDevice mDevice;
+
+    @Before
+    public void setUp() {
+        mPipeline = new WritePipeline();
+        mDevice = new FakeAsteroidDevice();
+        mDevice.setMtu(23);
+        mDevice.setPacketLatencyMs(1);
+        mDevice.setResponseLatencyMs(5);
+        mDevice.setCreditWindow(WINDOW);
+    }
+
+    @After
+    public void tearDown() {
+        mDevice.shutdown();
+    }
+
+    @Test
+    public void packetsInFlightNeverExceedTheGrantedCredits() throws InterruptedException {
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            payloads.add(payload(300 + i * 50));
+            mDevice.openChannel(CHARACTERISTIC).write(payloads.get(i), WritePriority.BULK, null);
+        }
+        assertTrue(mDevice.awaitIdle(10000));
+
+        assertTrue(mDevice.getMaxUnacknowledgedPackets() > 1);
+        assertTrue(mDevice.getMaxUnacknowledgedPackets() <= WINDOW);
+        List<byte[]> received = mDevice.getReceived(CHARACTERISTIC);
+        assertEquals(payloads.size(), received.size());
+        for (int i = 0; i < payloads.size(); i++)
+            assertArrayEquals(payloads.get(i), received.get(i));
+    }
+
+    @Test
+    public void marksTheFirstPacketOfAStream() {
+        byte[] data = payload(50);
+        mPipeline.grant(10);
+        stream(data);
+
+        assertEquals(3, mPackets.size());
+        byte[] first = mPackets.get(0);
+        assertEquals(WritePipeline.FLAG_START, first[0]);
+        assertEquals(50, (first[1] & 0xFF) | (first[2] & 0xFF) << 8);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(first, WritePipeline.START_HEADER_SIZE, first.length - WritePipeline.START_HEADER_SIZE);
+        for (byte[] packet : mPackets.subList(1, mPackets.size())) {
+            assertEquals(0, packet[0] & WritePipeline.FLAG_START);
+            assertTrue(packet.length <= 20);
+            payload.write(packet, WritePipeline.HEADER_SIZE, packet.length - WritePipeline.HEADER_SIZE);
+        }
+        assertArrayEquals(data, payload.toByteArray());
+    }
+
+    @Test
+    public void abortsAStreamOnItsFirstFailedPacket() {
+        mPipeline.grant(2);
+        stream(payload(100));
+        stream(payload(30));
+        assertEquals(2, mPackets.size());
+
+        mPacketsDone.get(0).onComplete(false);
+        assertEquals(1, mCompletions.size());
+        assertFalse(mCompletions.get(0));
+
+        // The second packet still completes, but nothing is left of its stream to send
+        mPacketsDone.get(1).onComplete(true);
+        mPipeline.grant(2);
+        assertEquals(1, mCompletions.size());
+        assertEquals(4, mPackets.size());
+        assertEquals(WritePipeline.FLAG_START, mPackets.get(2)[0]);
+    }
+
+    @Test
+    public void aStalledStreamIsHandedBackOnce() {
+        List<String> stalled = new ArrayList<>();
+        mPipeline.grant(1);
+        mPipeline.stream(payload(100), 20, (packet, done) -> mPacketsDone.add(done),
+                mCompletions::add, () -> stalled.add("first"));
+        mPipeline.stream(payload(100), 20, (packet, done) -> mPacketsDone.add(done),
+                mCompletions::add, () -> stalled.add("second"));
+        mPipeline.mOnStall.run();
+
+        assertEquals(2, stalled.size());
+        assertTrue(mPipeline.isStalled());
+        // The packet in flight when the pipeline stalled must not complete its stream again
+        mPacketsDone.get(0).onComplete(true);
+        assertTrue(mCompletions.isEmpty());
+
+        mPipeline.grant(1);
+        assertFalse(mPipeline.isStalled());
+    }
+
+    @Test
+    public void aStallFallsBackToAWriteWithResponse() throws InterruptedException {
+        mDevice.setWithholdCredits(true);
+        byte[] data = payload(200);
+        CompletableFuture<Void> future = mDevice.openChannel(CHARACTERISTIC).write(data, WritePriority.BULK, null);
+        assertFalse(mDevice.awaitIdle(100));
+        mDevice.fireStallTimeout();
+        assertTrue(mDevice.awaitIdle(2000));
+
+        assertTrue(future.isDone());
+        assertFalse(future.isCompletedExceptionally());
+        assertEquals(1, mDevice.getStalledStreams());
+        assertArrayEquals(data, mDevice.getLastReceived(CHARACTERISTIC));
+
+        // Until the watch grants credits again, nothing is pipelined
+        mDevice.openChannel(CHARACTERISTIC).write(payload(200), WritePriority.BULK, null);
+        assertTrue(mDevice.awaitIdle(2000));
+        assertEquals(1, mDevice.getStalledStreams());
+        assertEquals(2, mDevice.getReceived(CHARACTERISTIC).size());
+    }
+
+    @Test
+    public void resetFailsEveryStream() {
+        stream(payload(100));
+        stream(payload(100));
+        mPipeline.reset();
+
+        assertEquals(2, mCompletions.size());
+        assertFalse(mCompletions.get(0));
+        assertFalse(mCompletions.get(1));
+        assertEquals(0, mPipeline.getCredits());
+        mPipeline.grant(1);
+        assertTrue(mPackets.isEmpty());
+    }
+
+    private void stream(byte[] data) {
+        mPipeline.stream(data, 20, (packet, done) -> {
+            mPackets.add(packet);
+            mPacketsDone.add(done);
+        }, mCompletions::add, () -> fail("Stalled without a stall timeout"));
+    }
+
+    private static byte[] payload(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) (i * 31 + size);
+        return data;
+    }
+}
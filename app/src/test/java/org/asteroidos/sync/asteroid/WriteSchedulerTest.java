@@ -0,0 +1,289 @@
+package org.asteroidos.sync.asteroid;
+
+import org.asteroidos.sync.asteroid.IAsteroidDevice.WritePriority;
+import org.asteroidos.sync.asteroid.WriteScheduler.Batch;
+import org.asteroidos.sync.asteroid.WriteScheduler.PendingWrite;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteSchedulerTest {
+    private final List<PendingWrite> mDispatched = new ArrayList<>();
+    private TransportMetrics mMetrics;
+    private WriteScheduler mScheduler;
+    private AsteroidChannel mCall;
+    private AsteroidChannel mMedia;
+    private AsteroidChannel mWeather;
+
+    @Before
+    public void setUp() {
+        mMetrics = new TransportMetrics();
+        mScheduler = new WriteScheduler(mDispatched::add, mMetrics);
+        mCall = channel();
+        mMedia = channel();
+        mWeather = channel();
+    }
+
+    @Test
+    public void dispatchesOneWriteAtATime() {
+        mScheduler.enqueue(mMedia, null, bytes(1), WritePriority.MEDIA);
+        mScheduler.enqueue(mMedia, null, bytes(2), WritePriority.MEDIA);
+
+        assertEquals(1, mDispatched.size());
+        assertEquals(1, mScheduler.getPendingCount());
+        assertEquals(1, mMedia.getPendingCount());
+    }
+
+    @Test
+    public void dispatchesTheMostUrgentPriorityFirst() {
+        mScheduler.enqueue(mWeather, null, bytes(0), WritePriority.WEATHER);
+        mScheduler.enqueue(mWeather, null, bytes(1), WritePriority.WEATHER);
+        mScheduler.enqueue(mMedia, null, bytes(2), WritePriority.MEDIA);
+        mScheduler.enqueue(mCall, null, bytes(3), WritePriority.CALL);
+        mScheduler.enqueue(mMedia, null, bytes(4), WritePriority.MEDIA);
+
+        assertArrayEquals(new int[]{0, 3, 2, 4, 1}, drain());
+    }
+
+    @Test
+    public void dropsTheOldestWriteOfAFullClass() {
+        int depth = WriteScheduler.maxDepth(WritePriority.TIME);
+        mScheduler.enqueue(mCall, null, bytes(0), WritePriority.CALL);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 1; i <= depth + 1; i++)
+            futures.add(mScheduler.enqueue(mMedia, null, bytes(i), WritePriority.TIME));
+
+        assertEquals(depth, mScheduler.getPendingCount());
+        assertTrue(futures.get(0).isCancelled());
+        assertEquals(1, mMetrics.getCharacteristicCounters(mMedia.getCharacteristic()).dropped);
+        assertArrayEquals(new int[]{0, 2, 3}, drain());
+    }
+
+    @Test
+    public void doesNotDropOtherClasses() {
+        int depth = WriteScheduler.maxDepth(WritePriority.TIME);
+        mScheduler.enqueue(mCall, null, bytes(0), WritePriority.CALL);
+        CompletableFuture<Void> weather = mScheduler.enqueue(mWeather, null, bytes(1), WritePriority.WEATHER);
+        for (int i = 0; i < depth + 1; i++)
+            mScheduler.enqueue(mMedia, null, bytes(2), WritePriority.TIME);
+
+        assertFalse(weather.isCancelled());
+        assertEquals(depth + 1, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void coalescesPendingWritesWithTheSameKey() {
+        mScheduler.enqueue(mCall, null, bytes(0), WritePriority.CALL);
+        CompletableFuture<Void> first = mScheduler.enqueue(mMedia, "title", bytes(1), WritePriority.MEDIA);
+        mScheduler.enqueue(mMedia, "artist", bytes(2), WritePriority.MEDIA);
+        CompletableFuture<Void> second = mScheduler.enqueue(mMedia, "title", bytes(3), WritePriority.MEDIA);
+
+        assertSame(first, second);
+        assertEquals(2, mScheduler.getPendingCount());
+        assertEquals(1, mMetrics.getCharacteristicCounters(mMedia.getCharacteristic()).coalesced);
+        assertArrayEquals(new int[]{0, 3, 2}, drain());
+    }
+
+    @Test
+    public void doesNotCoalesceAcrossChannelsOrWithoutKey() {
+        mScheduler.enqueue(mCall, null, bytes(0), WritePriority.CALL);
+        mScheduler.enqueue(mMedia, "title", bytes(1), WritePriority.MEDIA);
+        mScheduler.enqueue(mWeather, "title", bytes(2), WritePriority.MEDIA);
+        mScheduler.enqueue(mMedia, null, bytes(3), WritePriority.MEDIA);
+        mScheduler.enqueue(mMedia, null, bytes(4), WritePriority.MEDIA);
+
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, drain());
+    }
+
+    @Test
+    public void doesNotCoalesceWithTheWriteInFlight() {
+        mScheduler.enqueue(mMedia, "title", bytes(1), WritePriority.MEDIA);
+        mScheduler.enqueue(mMedia, "title", bytes(2), WritePriority.MEDIA);
+
+        assertArrayEquals(new int[]{1, 2}, drain());
+    }
+
+    @Test
+    public void doesNotCoalesceWithACommittedBatch() {
+        mScheduler.enqueue(mCall, null, bytes(0), WritePriority.CALL);
+        Batch batch = new Batch();
+        CompletableFuture<Void> batched = mScheduler.add(batch, mMedia, "title", bytes(1), WritePriority.MEDIA);
+        mScheduler.add(batch, mMedia, "artist", bytes(2), WritePriority.MEDIA);
+        mScheduler.commit(batch);
+        CompletableFuture<Void> single = mScheduler.enqueue(mMedia, "title", bytes(3), WritePriority.MEDIA);
+
+        assertNotSame(batched, single);
+        assertEquals(1, batch.writes.get(0).data[0]);
+        assertEquals(0, mMetrics.getCharacteristicCounters(mMedia.getCharacteristic()).coalesced);
+        completeInFlight(true);
+        mScheduler.onBatchComplete(batch, true);
+        assertEquals(3, mDispatched.get(2).data[0]);
+    }
+
+    @Test
+    public void dispatchesABatchAsOneUnitAtItsMostUrgentPriority() {
+        mScheduler.enqueue(mWeather, null, bytes(0), WritePriority.WEATHER);
+        mScheduler.enqueue(mMedia, null, bytes(1), WritePriority.MEDIA);
+        Batch batch = new Batch();
+        mScheduler.add(batch, mWeather, null, bytes(2), WritePriority.WEATHER);
+        mScheduler.add(batch, mCall, null, bytes(3), WritePriority.CALL);
+        mScheduler.add(batch, mWeather, null, bytes(4), WritePriority.WEATHER);
+        assertEquals(1, mScheduler.getPendingCount());
+        mScheduler.commit(batch);
+
+        assertEquals(4, mScheduler.getPendingCount());
+        completeInFlight(true);
+        PendingWrite first = mDispatched.get(1);
+        assertSame(batch, first.batch);
+        assertEquals(1, mScheduler.getPendingCount());
+        assertEquals(2, first.data[0]);
+        mScheduler.onBatchComplete(batch, true);
+        assertEquals(1, mDispatched.get(2).data[0]);
+    }
+
+    @Test
+    public void coalescesWithinABatch() {
+        Batch batch = new Batch();
+        CompletableFuture<Void> first = mScheduler.add(batch, mMedia, "title", bytes(1), WritePriority.MEDIA);
+        CompletableFuture<Void> second = mScheduler.add(batch, mMedia, "title", bytes(2), WritePriority.MEDIA);
+
+        assertSame(first, second);
+        assertEquals(1, batch.writes.size());
+        assertEquals(2, batch.writes.get(0).data[0]);
+    }
+
+    @Test
+    public void dropsAFullBatchAsOneUnit() {
+        mScheduler.enqueue(mCall, null, bytes(0), WritePriority.CALL);
+        Batch batch = new Batch();
+        CompletableFuture<Void> a = mScheduler.add(batch, mMedia, null, bytes(1), WritePriority.TIME);
+        CompletableFuture<Void> b = mScheduler.add(batch, mMedia, null, bytes(2), WritePriority.TIME);
+        CompletableFuture<Void> c = mScheduler.add(batch, mMedia, null, bytes(3), WritePriority.TIME);
+        mScheduler.commit(batch);
+        CompletableFuture<Void> single = mScheduler.enqueue(mMedia, null, bytes(4), WritePriority.TIME);
+
+        assertTrue(a.isCancelled());
+        assertTrue(b.isCancelled());
+        assertTrue(c.isCancelled());
+        assertFalse(single.isCancelled());
+        assertEquals(1, mScheduler.getPendingCount());
+        assertEquals(1, mMedia.getPendingCount());
+        assertArrayEquals(new int[]{0, 4}, drain());
+    }
+
+    @Test
+    public void completesFutures() throws InterruptedException {
+        CompletableFuture<Void> ok = mScheduler.enqueue(mMedia, null, bytes(1), WritePriority.MEDIA);
+        CompletableFuture<Void> failed = mScheduler.enqueue(mMedia, null, bytes(2), WritePriority.MEDIA);
+        assertFalse(ok.isDone());
+
+        completeInFlight(true);
+        assertTrue(ok.isDone());
+        assertFalse(ok.isCompletedExceptionally());
+        completeInFlight(false);
+        assertTrue(failed.isCompletedExceptionally());
+        try {
+            failed.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof java.io.IOException);
+        }
+        assertEquals(1, mMetrics.getCharacteristicCounters(mMedia.getCharacteristic()).failures);
+    }
+
+    @Test
+    public void completesEveryWriteOfABatch() {
+        Batch batch = new Batch();
+        CompletableFuture<Void> a = mScheduler.add(batch, mMedia, null, bytes(1), WritePriority.MEDIA);
+        CompletableFuture<Void> b = mScheduler.add(batch, mMedia, null, bytes(2), WritePriority.MEDIA);
+        mScheduler.commit(batch);
+        mScheduler.onBatchComplete(batch, false);
+
+        assertTrue(a.isCompletedExceptionally());
+        assertTrue(b.isCompletedExceptionally());
+    }
+
+    @Test
+    public void ignoresCompletionOfAWriteNotInFlight() {
+        mScheduler.enqueue(mMedia, null, bytes(1), WritePriority.MEDIA);
+        CompletableFuture<Void> queued = mScheduler.enqueue(mMedia, null, bytes(2), WritePriority.MEDIA);
+        mScheduler.onWriteComplete((PendingWrite) queued, true);
+
+        assertFalse(queued.isDone());
+        assertEquals(1, mDispatched.size());
+    }
+
+    @Test
+    public void clearHandsBackQueuedAndInFlightWrites() {
+        CompletableFuture<Void> inFlight = mScheduler.enqueue(mMedia, null, bytes(1), WritePriority.MEDIA);
+        CompletableFuture<Void> queued = mScheduler.enqueue(mCall, null, bytes(2), WritePriority.CALL);
+        Batch batch = new Batch();
+        CompletableFuture<Void> batched = mScheduler.add(batch, mWeather, null, bytes(3), WritePriority.WEATHER);
+        mScheduler.commit(batch);
+        List<PendingWrite> discarded = mScheduler.clear();
+
+        assertEquals(3, discarded.size());
+        assertSame(inFlight, discarded.get(0));
+        assertSame(queued, discarded.get(1));
+        assertSame(batched, discarded.get(2));
+        assertFalse(inFlight.isDone());
+        assertEquals(0, mScheduler.getPendingCount());
+        assertEquals(0, mCall.getPendingCount());
+        assertEquals(0, mWeather.getPendingCount());
+
+        // The next write is dispatched right away, the cleared one is no longer in flight
+        mScheduler.enqueue(mMedia, null, bytes(4), WritePriority.MEDIA);
+        assertEquals(2, mDispatched.size());
+        mScheduler.onWriteComplete((PendingWrite) inFlight, true);
+        assertFalse(inFlight.isDone());
+    }
+
+    /**
+     * Completes the writes handed to the sink one by one, successfully.
+     *
+     * @return the first byte of each write in the order they went out
+     */
+    private int[] drain() {
+        int done = 0;
+        while (done < mDispatched.size()) {
+            PendingWrite write = mDispatched.get(done++);
+            if (write.batch != null)
+                mScheduler.onBatchComplete(write.batch, true);
+            else
+                mScheduler.onWriteComplete(write, true);
+        }
+        assertEquals(0, mScheduler.getPendingCount());
+        int[] order = new int[mDispatched.size()];
+        for (int i = 0; i < order.length; i++)
+            order[i] = mDispatched.get(i).data[0];
+        return order;
+    }
+
+    private void completeInFlight(boolean success) {
+        PendingWrite write = mDispatched.get(mDispatched.size() - 1);
+        assertNull(write.batch);
+        mScheduler.onWriteComplete(write, success);
+    }
+
+    private AsteroidChannel channel() {
+        return new AsteroidChannel(UUID.randomUUID(), (channel, data, priority, key) -> null, mMetrics);
+    }
+
+    private static byte[] bytes(int value) {
+        return new byte[]{(byte) value};
+    }
+}
@@ -0,0 +1,66 @@
+package org.asteroidos.sync.connectivity;
+
+import org.asteroidos.sync.asteroid.FakeAsteroidDevice;
+import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.FakeContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MediaServiceTest {
+    private static final UUID[] SONG = {
+            AsteroidUUIDS.MEDIA_ARTIST_CHAR, AsteroidUUIDS.MEDIA_ALBUM_CHAR, AsteroidUUIDS.MEDIA_TITLE_CHAR};
+
+    private FakeAsteroidDevice mDevice;
+    private MediaService mService;
+
+    @Before
+    public void setUp() {
+        mDevice = new FakeAsteroidDevice();
+        mService = new MediaService(new FakeContext(), mDevice);
+        mDevice.registerBleService(mService);
+    }
+
+    @After
+    public void tearDown() {
+        mDevice.shutdown();
+    }
+
+    @Test
+    public void clearsTheSongOnceNoPlayerIsLeft() throws InterruptedException {
+        mService.onActiveSessionsChanged(Collections.emptyList());
+        assertTrue(mDevice.awaitIdle(1000));
+
+        for (UUID characteristic : SONG) {
+            assertEquals(1, mDevice.getReceived(characteristic).size());
+            assertArrayEquals(new byte[]{0}, mDevice.getLastReceived(characteristic));
+        }
+    }
+
+    @Test
+    public void sendsEveryClearAsOneBatch() throws InterruptedException {
+        mDevice.setPacketLatencyMs(20);
+        for (int i = 0; i < 3; i++)
+            mService.onActiveSessionsChanged(Collections.emptyList());
+        assertTrue(mDevice.awaitIdle(2000));
+
+        // Committed batches are neither split nor coalesced with each other
+        List<UUID> expected = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            expected.addAll(Arrays.asList(SONG));
+        assertEquals(expected, mDevice.getDeliveryOrder());
+        assertEquals(3, mDevice.getTransportMetrics().getBatchCount());
+        assertEquals(0, mDevice.getTransportMetrics().getServiceCounters()
+                .get(AsteroidUUIDS.MEDIA_SERVICE_UUID).coalesced);
+    }
+}
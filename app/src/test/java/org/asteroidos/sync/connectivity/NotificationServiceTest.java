@@ -0,0 +1,149 @@
+package org.asteroidos.sync.connectivity;
+
+import android.content.Intent;
+
+import org.asteroidos.sync.NotificationPreferences;
+import org.asteroidos.sync.asteroid.FakeAsteroidDevice;
+import org.asteroidos.sync.asteroid.WatchCapabilities;
+import org.asteroidos.sync.dataobjects.Notification;
+import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.FakeContext;
+import org.asteroidos.sync.utils.TlvWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationServiceTest {
+    private static final String PACKAGE = "org.example.chat";
+    private static final String DIALER = "org.asteroidos.generic.dialer";
+    private static final int MAX_LENGTH = 253 * 8;
+
+    private FakeContext mContext;
+    private FakeAsteroidDevice mDevice;
+    private NotificationService.NotificationReceiver mReceiver;
+
+    @Before
+    public void setUp() {
+        mContext = new FakeContext();
+        mDevice = new FakeAsteroidDevice();
+        NotificationService service = new NotificationService(mContext, mDevice);
+        mDevice.registerBleService(service);
+        mReceiver = service.new NotificationReceiver();
+        NotificationPreferences.saveNotificationPreferenceForApp(mContext, PACKAGE,
+                NotificationPreferences.NotificationOption.DEFAULT.asInt());
+    }
+
+    @After
+    public void tearDown() {
+        mDevice.shutdown();
+    }
+
+    @Test
+    public void sendsPostedNotifications() throws InterruptedException {
+        mReceiver.onReceive(mContext, posted(PACKAGE, 7, "Alice", "Lunch?"));
+        assertTrue(mDevice.awaitIdle(1000));
+
+        byte[] expected = new Notification(Notification.MsgType.POSTED, PACKAGE, 7, "Chat", "ic",
+                "Alice", "Lunch?", "normal").toBytes(MAX_LENGTH);
+        assertArrayEquals(expected, mDevice.getLastReceived(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR));
+    }
+
+    @Test
+    public void sendsTlvToWatchesSupportingIt() throws InterruptedException {
+        mDevice.setCapabilities(new WatchCapabilities(1, WatchCapabilities.TLV_NOTIFICATIONS));
+        mReceiver.onReceive(mContext, posted(PACKAGE, 7, "Alice", "Lunch?"));
+        mReceiver.onReceive(mContext, removed(7));
+        assertTrue(mDevice.awaitIdle(1000));
+
+        List<byte[]> received = mDevice.getReceived(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR);
+        assertEquals(2, received.size());
+        assertArrayEquals(new Notification(Notification.MsgType.POSTED, PACKAGE, 7, "Chat", "ic",
+                "Alice", "Lunch?", "normal").toTlv(new TlvWriter(), MAX_LENGTH), received.get(0));
+        assertArrayEquals(new Notification(Notification.MsgType.REMOVED, 7).toTlv(new TlvWriter()), received.get(1));
+    }
+
+    @Test
+    public void skipsMutedApps() throws InterruptedException {
+        NotificationPreferences.saveNotificationPreferenceForApp(mContext, PACKAGE,
+                NotificationPreferences.NotificationOption.NO_NOTIFICATIONS.asInt());
+        mReceiver.onReceive(mContext, posted(PACKAGE, 7, "Alice", "Lunch?"));
+        assertTrue(mDevice.awaitIdle(1000));
+
+        assertTrue(mDevice.getReceived(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR).isEmpty());
+    }
+
+    @Test
+    public void callsOvertakeQueuedNotifications() throws InterruptedException {
+        mDevice.setPacketLatencyMs(20);
+        for (int id = 1; id <= 3; id++)
+            mReceiver.onReceive(mContext, posted(PACKAGE, id, "Alice", "Message " + id));
+        mReceiver.onReceive(mContext, posted(DIALER, 99, "Bob", "Incoming call"));
+        assertTrue(mDevice.awaitIdle(2000));
+
+        List<byte[]> received = mDevice.getReceived(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR);
+        assertEquals(4, received.size());
+        // The first notification was on the air already, the call goes right after it
+        assertTrue(new String(received.get(1)).contains("Incoming call"));
+        assertTrue(new String(received.get(3)).contains("Message 3"));
+    }
+
+    @Test
+    public void replacesANotificationStillQueued() throws InterruptedException {
+        mDevice.setPacketLatencyMs(20);
+        mReceiver.onReceive(mContext, posted(PACKAGE, 1, "Alice", "First"));
+        mReceiver.onReceive(mContext, posted(PACKAGE, 2, "Alice", "Draft"));
+        mReceiver.onReceive(mContext, removed(2));
+        assertTrue(mDevice.awaitIdle(2000));
+
+        List<byte[]> received = mDevice.getReceived(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR);
+        assertEquals(2, received.size());
+        assertArrayEquals(new Notification(Notification.MsgType.REMOVED, 2).toBytes(), received.get(1));
+    }
+
+    private static Intent posted(String packageName, int id, String summary, String body) {
+        FakeIntent intent = new FakeIntent();
+        intent.extras.put("event", "posted");
+        intent.extras.put("packageName", packageName);
+        intent.extras.put("id", id);
+        intent.extras.put("appName", "Chat");
+        intent.extras.put("appIcon", "ic");
+        intent.extras.put("summary", summary);
+        intent.extras.put("body", body);
+        return intent;
+    }
+
+    private static Intent removed(int id) {
+        FakeIntent intent = new FakeIntent();
+        intent.extras.put("event", "removed");
+        intent.extras.put("id", id);
+        return intent;
+    }
+
+    /* The Intent of the Android stubs keeps no extras */
+    private static final class FakeIntent extends Intent {
+        final HashMap<String, Object> extras = new HashMap<>();
+
+        @Override
+        public String getStringExtra(String name) {
+            return (String) extras.get(name);
+        }
+
+        @Override
+        public int getIntExtra(String name, int defaultValue) {
+            Object value = extras.get(name);
+            return value == null ? defaultValue : (Integer) value;
+        }
+
+        @Override
+        public boolean hasExtra(String name) {
+            return extras.containsKey(name);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.asteroidos.sync.connectivity;
+
+import org.asteroidos.sync.asteroid.FakeAsteroidDevice;
+import org.asteroidos.sync.asteroid.IAsteroidDevice;
+import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.FakeContext;
+import org.asteroidos.sync.utils.Settings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeServiceTest {
+    private FakeContext mContext;
+    private FakeAsteroidDevice mDevice;
+    private TimeService mService;
+
+    @Before
+    public void setUp() {
+        mContext = new FakeContext();
+        Settings.get(mContext).set(TimeService.SYNC_TIME, true);
+        mDevice = new FakeAsteroidDevice();
+        mService = new TimeService(mContext, mDevice);
+        mDevice.registerBleService(mService);
+        mService.sync();
+    }
+
+    @After
+    public void tearDown() {
+        mService.unsync();
+        mDevice.shutdown();
+    }
+
+    @Test
+    public void sendsTheTimeOnEveryPeriodicSync() throws InterruptedException {
+        Calendar before = Calendar.getInstance();
+        mDevice.runPeriodicJobs();
+        mDevice.runPeriodicJobs();
+        assertTrue(mDevice.awaitIdle(1000));
+
+        assertEquals(2, mDevice.getReceived(AsteroidUUIDS.TIME_SET_CHAR).size());
+        byte[] time = mDevice.getLastReceived(AsteroidUUIDS.TIME_SET_CHAR);
+        assertEquals(6, time.length);
+        assertEquals(before.get(Calendar.YEAR) - 1900, time[0]);
+        assertEquals(before.get(Calendar.MONTH), time[1]);
+        Calendar sent = Calendar.getInstance();
+        sent.set(time[0] + 1900, time[1], time[2], time[3], time[4], time[5]);
+        long skewMs = sent.getTimeInMillis() - before.getTimeInMillis();
+        assertTrue("Sent time off by " + skewMs + " ms", skewMs > -2000 && skewMs < 2000);
+    }
+
+    @Test
+    public void sendsNothingWhenTimeSyncIsOff() throws InterruptedException {
+        Settings.get(mContext).set(TimeService.SYNC_TIME, false);
+        mDevice.runPeriodicJobs();
+        assertTrue(mDevice.awaitIdle(1000));
+
+        assertTrue(mDevice.getReceived(AsteroidUUIDS.TIME_SET_CHAR).isEmpty());
+    }
+
+    @Test
+    public void sendsNothingWhileDisconnected() throws InterruptedException {
+        mDevice.setConnectionState(IAsteroidDevice.ConnectionState.STATUS_DISCONNECTED);
+        mDevice.runPeriodicJobs();
+        assertTrue(mDevice.awaitIdle(1000));
+
+        // A journaled time would be stale by the time the watch reconnects
+        assertEquals(0, mDevice.getJournaledWrites());
+        assertTrue(mDevice.getReceived(AsteroidUUIDS.TIME_SET_CHAR).isEmpty());
+    }
+
+    @Test
+    public void ignoresSettingChangesOnceUnsynced() throws InterruptedException {
+        mService.unsync();
+        Settings.get(mContext).set(TimeService.SYNC_TIME, false);
+        Settings.get(mContext).set(TimeService.SYNC_TIME, true);
+        assertTrue(mDevice.awaitIdle(1000));
+
+        assertEquals(0, mDevice.getJournaledWrites());
+        assertTrue(mDevice.getReceived(AsteroidUUIDS.TIME_SET_CHAR).isEmpty());
+    }
+
+    @Test
+    public void keepsItsDailySyncWhileUnsynced() throws InterruptedException {
+        // The scheduler only runs it while connected, one that fell due meanwhile runs on reconnect
+        mService.unsync();
+        mDevice.runPeriodicJobs();
+        assertTrue(mDevice.awaitIdle(1000));
+
+        assertEquals(1, mDevice.getReceived(AsteroidUUIDS.TIME_SET_CHAR).size());
+    }
+
+    @Test
+    public void stopsSyncingOnceUnregistered() throws InterruptedException {
+        mDevice.unregisterBleService(mService.getServiceUUID());
+        mDevice.runPeriodicJobs();
+        assertTrue(mDevice.awaitIdle(1000));
+
+        assertTrue(mDevice.getReceived(AsteroidUUIDS.TIME_SET_CHAR).isEmpty());
+    }
+}
@@ -0,0 +1,138 @@
+package org.asteroidos.sync.dataobjects;
+
+import org.asteroidos.sync.utils.PayloadCompressor;
+import org.asteroidos.sync.utils.PayloadUtils;
+import org.asteroidos.sync.utils.TlvWriter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares the XML and TLV encodings of {@link Notification} on a corpus of typical
+ * notifications, each with and without {@link PayloadCompressor deflate}: bytes on the wire,
+ * packets at the usual 247 byte MTU and encoding time.
+ * Run its main method from the IDE or with the unit test classpath; it is not a JUnit test.
+ */
+public class NotificationEncodingBenchmark {
+    private static final int PAYLOAD_SIZE = PayloadUtils.maxPayloadSize(247);
+    private static final int MAX_LENGTH = PAYLOAD_SIZE * 8;
+    private static final int WARMUP_ROUNDS = 20_000;
+    private static final int MEASURED_ROUNDS = 200_000;
+
+    static final List<Notification> CORPUS = Arrays.asList(
+            new Notification(Notification.MsgType.POSTED, "org.telegram.messenger", 1042, "Telegram",
+                    "ios-send", "Alice", "Are we still on for lunch tomorrow?", "normal"),
+            new Notification(Notification.MsgType.POSTED, "com.google.android.gm", 7, "Gmail",
+                    "ios-mail", "Weekly report: build times & flaky tests",
+                    "Hi team, attached are this week's numbers. Median build time went from 9m 12s to "
+                            + "7m 48s after the cache change <details below>. Three tests remain flaky, "
+                            + "see the linked dashboard for the failure history of each of them.", "normal"),
+            new Notification(Notification.MsgType.POSTED, "com.google.android.calendar", 311, "Calendar",
+                    "ios-calendar", "Dentist", "15:30 – 16:00, Rue de la Paix 12", "strong"),
+            new Notification(Notification.MsgType.POSTED, "org.asteroidos.generic.dialer", 1, "Phone",
+                    "ios-call", "Incoming call", "+33 6 12 34 56 78", "ringtone"),
+            new Notification(Notification.MsgType.POSTED, "com.whatsapp", 88, "WhatsApp",
+                    "logo-whatsapp", "Família 👨‍👩‍👧", "Chegamos bem! 🎉 Amanhã mandamos as fotos.", "normal"),
+            new Notification(Notification.MsgType.POSTED, "jp.naver.line.android", 5, "LINE",
+                    "ios-chatbubbles", "田中さん", "明日の会議は10時からに変更になりました。よろしくお願いします。", "normal"),
+            new Notification(Notification.MsgType.POSTED, "org.thoughtcrime.securesms", 12, "Signal",
+                    "ios-chatbubbles", "Climbing group",
+                    "Marc: I can drive, leaving at 8 from the station\n"
+                            + "Julie: Great, can you pick me up on the way?\n"
+                            + "Marc: Sure, where are you?\n"
+                            + "Julie: Near the bakery on the main street\n"
+                            + "Tom: I will come by bike and meet you there\n"
+                            + "Julie: Don't forget the rope this time 😅\n"
+                            + "Marc: Haha, it is already in the car\n"
+                            + "Tom: Weather looks good, sunny until 4 pm\n"
+                            + "Julie: Perfect, see you tomorrow then!\n"
+                            + "Marc: See you tomorrow", "normal"),
+            new Notification(Notification.MsgType.POSTED, "com.spotify.music", 2, "Spotify",
+                    "ios-musical-notes", "", "", "none"),
+            new Notification(Notification.MsgType.REMOVED, 1042));
+
+    public static void main(String[] args) {
+        TlvWriter writer = new TlvWriter();
+        PayloadCompressor compressor = new PayloadCompressor();
+        long[] totals = new long[4];
+        long[] totalPackets = new long[4];
+        System.out.println(String.format(Locale.ROOT, "%-32s %6s %6s %6s %6s  %s", "notification",
+                "XML B", "XML+z", "TLV B", "TLV+z", "packets"));
+        for (Notification notification : CORPUS) {
+            byte[] xml = notification.toBytes(MAX_LENGTH);
+            byte[] tlv = notification.toTlv(writer, MAX_LENGTH);
+            int[] sizes = {xml.length, deflated(compressor, xml), tlv.length, deflated(compressor, tlv)};
+            StringBuilder packets = new StringBuilder();
+            for (int i = 0; i < sizes.length; i++) {
+                totals[i] += sizes[i];
+                totalPackets[i] += packets(sizes[i]);
+                packets.append(packets(sizes[i])).append(i < sizes.length - 1 ? "/" : "");
+            }
+            System.out.println(String.format(Locale.ROOT, "%-32s %6d %6d %6d %6d  %s",
+                    notification.packageName == null ? "removed" : notification.packageName,
+                    sizes[0], sizes[1], sizes[2], sizes[3], packets));
+        }
+        System.out.println(String.format(Locale.ROOT, "%-32s %6d %6d %6d %6d  %d/%d/%d/%d (TLV %.0f%% smaller than XML)",
+                "total", totals[0], totals[1], totals[2], totals[3],
+                totalPackets[0], totalPackets[1], totalPackets[2], totalPackets[3],
+                100.0 * (totals[0] - totals[2]) / totals[0]));
+
+        time("warmup XML", WARMUP_ROUNDS, () -> encodeXml());
+        time("warmup TLV", WARMUP_ROUNDS, () -> encodeTlv(writer));
+        time("warmup deflate", WARMUP_ROUNDS / 10, () -> encodeDeflated(writer, compressor));
+        time("XML", MEASURED_ROUNDS, () -> encodeXml());
+        time("TLV", MEASURED_ROUNDS, () -> encodeTlv(writer));
+        time("TLV+deflate", MEASURED_ROUNDS / 10, () -> encodeDeflated(writer, compressor));
+    }
+
+    private static int packets(int length) {
+        return (length + PAYLOAD_SIZE - 1) / PAYLOAD_SIZE;
+    }
+
+    /**
+     * @return the size on the air, payloads of a single packet are not compressed
+     */
+    private static int deflated(PayloadCompressor compressor, byte[] data) {
+        if (data.length <= PAYLOAD_SIZE) return data.length;
+        byte[] compressed = compressor.compress(data);
+        return compressed != null ? compressed.length : data.length;
+    }
+
+    private static int encodeXml() {
+        int length = 0;
+        for (Notification notification : CORPUS)
+            length += notification.toBytes(MAX_LENGTH).length;
+        return length;
+    }
+
+    private static int encodeTlv(TlvWriter writer) {
+        int length = 0;
+        for (Notification notification : CORPUS)
+            length += notification.toTlv(writer, MAX_LENGTH).length;
+        return length;
+    }
+
+    private static int encodeDeflated(TlvWriter writer, PayloadCompressor compressor) {
+        int length = 0;
+        for (Notification notification : CORPUS) {
+            byte[] compressed = compressor.compress(notification.toTlv(writer, MAX_LENGTH));
+            length += compressed != null ? compressed.length : 0;
+        }
+        return length;
+    }
+
+    private interface Round {
+        int run();
+    }
+
+    private static void time(String label, int rounds, Round round) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            sink += round.run();
+        long perNotification = (System.nanoTime() - start) / ((long) rounds * CORPUS.size());
+        if (!label.startsWith("warmup"))
+            System.out.println(String.format(Locale.ROOT, "%s: %d ns per notification (%d)", label, perNotification, sink));
+    }
+}
@@ -0,0 +1,43 @@
+package org.asteroidos.sync.utils;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+
+/**
+ * Application context for JVM tests: preference files live in memory, everything else is
+ * the inert default of the Android stubs, e.g. registering a receiver does nothing.
+ */
+public class FakeContext extends ContextWrapper {
+    private final HashMap<String, FakeSharedPreferences> mPreferences = new HashMap<>();
+
+    public FakeContext() {
+        super(null);
+    }
+
+    @Override
+    public final Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public final String getPackageName() {
+        return "org.asteroidos.sync";
+    }
+
+    @Override
+    public final synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        return getPreferences(name);
+    }
+
+    public final synchronized FakeSharedPreferences getPreferences(String name) {
+        FakeSharedPreferences preferences = mPreferences.get(name);
+        if (preferences == null) {
+            preferences = new FakeSharedPreferences();
+            mPreferences.put(name, preferences);
+        }
+        return preferences;
+    }
+}
@@ -0,0 +1,157 @@
+package org.asteroidos.sync.utils;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory {@link SharedPreferences}, counting its commits so that tests can tell how often
+ * the file would have been written.
+ */
+public class FakeSharedPreferences implements SharedPreferences {
+    private final HashMap<String, Object> mValues = new HashMap<>();
+    private int mCommits = 0;
+
+    public final synchronized int getCommitCount() {
+        return mCommits;
+    }
+
+    @Override
+    public final synchronized Map<String, ?> getAll() {
+        return new HashMap<>(mValues);
+    }
+
+    @Override
+    public final String getString(String key, String defValue) {
+        return get(key, String.class, defValue);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public final Set<String> getStringSet(String key, Set<String> defValues) {
+        return get(key, Set.class, defValues);
+    }
+
+    @Override
+    public final int getInt(String key, int defValue) {
+        return get(key, Integer.class, defValue);
+    }
+
+    @Override
+    public final long getLong(String key, long defValue) {
+        return get(key, Long.class, defValue);
+    }
+
+    @Override
+    public final float getFloat(String key, float defValue) {
+        return get(key, Float.class, defValue);
+    }
+
+    @Override
+    public final boolean getBoolean(String key, boolean defValue) {
+        return get(key, Boolean.class, defValue);
+    }
+
+    @Override
+    public final synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public final Editor edit() {
+        return new FakeEditor();
+    }
+
+    @Override
+    public final void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+
+    @Override
+    public final void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+
+    private synchronized <T> T get(String key, Class<? super T> type, T defValue) {
+        Object value = mValues.get(key);
+        if (value == null) return defValue;
+        if (!type.isInstance(value))
+            throw new ClassCastException(key + " is a " + value.getClass().getSimpleName());
+        @SuppressWarnings("unchecked")
+        T cast = (T) value;
+        return cast;
+    }
+
+    private final class FakeEditor implements Editor {
+        private final HashMap<String, Object> mChanges = new HashMap<>();
+        private boolean mClear = false;
+
+        @Override
+        public Editor putString(String key, String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, Set<String> values) {
+            return put(key, values == null ? null : new HashSet<>(values));
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        @Override
+        public Editor clear() {
+            mClear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            synchronized (FakeSharedPreferences.this) {
+                if (mClear)
+                    mValues.clear();
+                for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                    if (change.getValue() == null)
+                        mValues.remove(change.getKey());
+                    else
+                        mValues.put(change.getKey(), change.getValue());
+                }
+                mCommits++;
+            }
+            return true;
+        }
+
+        @Override
+        public void apply() {
+            commit();
+        }
+
+        private Editor put(String key, Object value) {
+            mChanges.put(key, value);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.asteroidos.sync.utils;
+
+import org.asteroidos.sync.dataobjects.Notification;
+import org.asteroidos.sync.dataobjects.Notification.MsgType;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadCompressorTest {
+    private final PayloadCompressor mCompressor = new PayloadCompressor();
+
+    @After
+    public void tearDown() {
+        mCompressor.end();
+    }
+
+    @Test
+    public void roundTripsThroughTheDictionary() throws DataFormatException {
+        for (byte[] payload : new byte[][]{xml(), tlv(), repeated(2000)}) {
+            byte[] compressed = mCompressor.compress(payload);
+
+            assertNotNull(compressed);
+            assertEquals(PayloadCompressor.MARKER, compressed[0]);
+            assertTrue(compressed.length < payload.length);
+            assertArrayEquals(payload, inflate(compressed));
+        }
+    }
+
+    @Test
+    public void theDictionaryBeatsPlainDeflate() {
+        // Without the marker byte
+        for (byte[] payload : new byte[][]{xml(), tlv()})
+            assertTrue(mCompressor.compress(payload).length - 1 < deflate(payload).length);
+    }
+
+    @Test
+    public void isReusedFromOnePayloadToTheNext() throws DataFormatException {
+        byte[] large = repeated(5000);
+        byte[] small = xml();
+
+        assertArrayEquals(large, inflate(mCompressor.compress(large)));
+        assertArrayEquals(small, inflate(mCompressor.compress(small)));
+    }
+
+    @Test
+    public void leavesIncompressiblePayloadsAlone() {
+        byte[] noise = new byte[300];
+        new Random(1).nextBytes(noise);
+
+        assertNull(mCompressor.compress(noise));
+        assertNull(mCompressor.compress(new byte[0]));
+    }
+
+    @Test
+    public void compressesNothingOnceEnded() {
+        mCompressor.end();
+        mCompressor.end();
+
+        assertNull(mCompressor.compress(xml()));
+    }
+
+    private static byte[] inflate(byte[] compressed) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(PayloadCompressor.DICTIONARY);
+            inflater.setInput(compressed, 1, compressed.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            while (!inflater.finished()) {
+                int size = inflater.inflate(buffer);
+                if (size == 0 && inflater.needsInput())
+                    throw new DataFormatException("Truncated stream");
+                out.write(buffer, 0, size);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            while (!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static Notification notification() {
+        return new Notification(MsgType.POSTED, "com.whatsapp", 42, "WhatsApp", "logo-whatsapp",
+                "Alice", "Hi! Are you coming to dinner tonight?", "normal");
+    }
+
+    private static byte[] xml() {
+        return notification().toBytes(4096);
+    }
+
+    private static byte[] tlv() {
+        return notification().toTlv(new TlvWriter());
+    }
+
+    private static byte[] repeated(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) ('a' + i % 7);
+        return data;
+    }
+}
@@ -0,0 +1,64 @@
+package org.asteroidos.sync.utils;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class PayloadUtilsTest {
+    /* 1, 2, 3 and 4 byte code points */
+    private static final String MIXED = "aé€😀";
+
+    @Test
+    public void keepsTextThatFits() {
+        String text = "hello";
+        assertSame(text, PayloadUtils.truncateUtf8(text, 5));
+        assertArrayEquals(utf8(text), PayloadUtils.encodeUtf8(text, 5));
+        assertEquals(10, PayloadUtils.utf8Length(MIXED));
+        assertSame(MIXED, PayloadUtils.truncateUtf8(MIXED, 10));
+    }
+
+    @Test
+    public void measuresLikeStringGetBytes() {
+        for (String text : new String[]{"", MIXED, "日本語", "\u0000\u007F\u0080߿ࠀ￿", "a\uD800b", "\uDC00", "\uD83D"})
+            assertEquals(text, utf8(text).length, PayloadUtils.utf8Length(text));
+    }
+
+    @Test
+    public void cutsAsciiAtTheLimit() {
+        assertEquals("hel", PayloadUtils.truncateUtf8("hello", 3));
+        assertArrayEquals(utf8("hel"), PayloadUtils.encodeUtf8("hello", 3));
+    }
+
+    @Test
+    public void neverSplitsACodePoint() {
+        String[] expected = {"", "a", "a", "aé", "aé", "aé",
+                "aé€", "aé€", "aé€", "aé€"};
+        for (int max = 0; max < expected.length; max++) {
+            assertEquals("max " + max, expected[max], PayloadUtils.truncateUtf8(MIXED, max));
+            byte[] encoded = PayloadUtils.encodeUtf8(MIXED, max);
+            assertArrayEquals("max " + max, utf8(expected[max]), encoded);
+        }
+    }
+
+    @Test
+    public void handlesEmptyAndNegativeLimits() {
+        assertEquals("", PayloadUtils.truncateUtf8("€", 0));
+        assertEquals("", PayloadUtils.truncateUtf8("abc", -1));
+        assertEquals(0, PayloadUtils.encodeUtf8("abc", -1).length);
+        assertEquals("", PayloadUtils.truncateUtf8("", 0));
+    }
+
+    @Test
+    public void sizesPayloadsAgainstTheMtu() {
+        assertEquals(20, PayloadUtils.maxPayloadSize(PayloadUtils.DEFAULT_MTU));
+        assertEquals(244, PayloadUtils.maxPayloadSize(247));
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
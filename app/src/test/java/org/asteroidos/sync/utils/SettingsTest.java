@@ -0,0 +1,142 @@
+package org.asteroidos.sync.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SettingsTest {
+    private static final String FILE = "TestPreference";
+    private static final Settings.Key<Boolean> FLAG = Settings.Key.bool(FILE, "flag", true);
+    private static final Settings.Key<Integer> COUNT = Settings.Key.integer(FILE, "count", 7);
+    private static final Settings.Key<Float> LATITUDE = Settings.Key.decimal(FILE, "latitude", 1.5f);
+    private static final Settings.Key<String> NAME = Settings.Key.string(FILE, "name", "none");
+    private static final Settings.Key<Set<String>> PACKAGES = Settings.Key.stringSet(FILE, "packages");
+
+    private FakeContext mContext;
+    private FakeSharedPreferences mPrefs;
+    private Settings mSettings;
+
+    @Before
+    public void setUp() {
+        mContext = new FakeContext();
+        mPrefs = mContext.getPreferences(FILE);
+        mSettings = new Settings(mContext);
+    }
+
+    @Test
+    public void readsTheValuesAlreadyInTheFile() {
+        mPrefs.edit()
+                .putBoolean("flag", false)
+                .putInt("count", 3)
+                .putFloat("latitude", 48.1f)
+                .putString("name", "watch")
+                .putStringSet("packages", new HashSet<>(Arrays.asList("a", "b")))
+                .commit();
+        Settings settings = new Settings(mContext);
+
+        assertFalse(settings.get(FLAG));
+        assertEquals(3, (int) settings.get(COUNT));
+        assertEquals(48.1f, settings.get(LATITUDE), 0);
+        assertEquals("watch", settings.get(NAME));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), settings.get(PACKAGES));
+    }
+
+    @Test
+    public void fallsBackToTheDefaults() {
+        assertTrue(mSettings.get(FLAG));
+        assertEquals(7, (int) mSettings.get(COUNT));
+        assertEquals(1.5f, mSettings.get(LATITUDE), 0);
+        assertEquals("none", mSettings.get(NAME));
+        assertEquals(Collections.emptySet(), mSettings.get(PACKAGES));
+    }
+
+    @Test
+    public void ignoresValuesOfAnotherType() {
+        // Written by an older version under the same name
+        mPrefs.edit()
+                .putString("flag", "true")
+                .putLong("count", 3L)
+                .putInt("name", 1)
+                .commit();
+        Settings settings = new Settings(mContext);
+
+        assertTrue(settings.get(FLAG));
+        assertEquals(7, (int) settings.get(COUNT));
+        assertEquals("none", settings.get(NAME));
+    }
+
+    @Test
+    public void servesWritesFromMemoryAndCommitsThemTogether() {
+        mSettings.set(FLAG, false);
+        mSettings.set(COUNT, 1);
+        mSettings.set(COUNT, 2);
+        mSettings.set(NAME, "watch");
+
+        assertEquals(2, (int) mSettings.get(COUNT));
+        assertEquals(0, mPrefs.getCommitCount());
+        mSettings.flush();
+
+        assertEquals(1, mPrefs.getCommitCount());
+        assertFalse(mPrefs.getBoolean("flag", true));
+        assertEquals(2, mPrefs.getInt("count", 0));
+        assertEquals("watch", mPrefs.getString("name", null));
+        mSettings.flush();
+        assertEquals(1, mPrefs.getCommitCount());
+    }
+
+    @Test
+    public void doesNotWriteUnchangedValues() {
+        mSettings.set(NAME, "watch");
+        mSettings.flush();
+        mSettings.set(NAME, "watch");
+        mSettings.flush();
+
+        assertEquals(1, mPrefs.getCommitCount());
+    }
+
+    @Test
+    public void removesAValueSetToNull() {
+        mSettings.set(COUNT, 3);
+        mSettings.flush();
+        mSettings.set(COUNT, null);
+        mSettings.flush();
+
+        assertEquals(7, (int) mSettings.get(COUNT));
+        assertFalse(mPrefs.contains("count"));
+    }
+
+    @Test
+    public void copiesSets() {
+        Set<String> packages = new HashSet<>(Collections.singletonList("a"));
+        mSettings.set(PACKAGES, packages);
+        packages.add("b");
+        mSettings.get(PACKAGES).add("c");
+
+        assertEquals(Collections.singleton("a"), mSettings.get(PACKAGES));
+    }
+
+    @Test
+    public void tellsListenersAboutActualChanges() {
+        // Off the device there is no main looper, so listeners are called right away
+        List<String> changes = new ArrayList<>();
+        Settings.OnChangeListener listener = (file, name) -> changes.add(file + "/" + name);
+        mSettings.registerListener(FILE, listener);
+        mSettings.set(NAME, "watch");
+        mSettings.set(NAME, "watch");
+        mSettings.set(Settings.Key.string("OtherPreference", "name", ""), "watch");
+        mSettings.unregisterListener(FILE, listener);
+        mSettings.set(NAME, "other");
+
+        assertEquals(Collections.singletonList(FILE + "/name"), changes);
+    }
+}
@@ -0,0 +1,140 @@
+package org.asteroidos.sync.utils;
+
+import org.asteroidos.sync.dataobjects.Notification;
+import org.asteroidos.sync.dataobjects.Notification.MsgType;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+
+public class TlvWriterTest {
+    @Test
+    public void encodesIntegersAsVarints() {
+        assertArrayEquals(bytes(1, 1, 0), new TlvWriter().putInt(1, 0).toByteArray());
+        assertArrayEquals(bytes(1, 1, 0x7F), new TlvWriter().putInt(1, 127).toByteArray());
+        assertArrayEquals(bytes(1, 2, 0x80, 0x01), new TlvWriter().putInt(1, 128).toByteArray());
+        assertArrayEquals(bytes(1, 2, 0xAC, 0x02), new TlvWriter().putInt(1, 300).toByteArray());
+        // Negative ids are sent as their unsigned 32 bit value
+        assertArrayEquals(bytes(1, 5, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F), new TlvWriter().putInt(1, -1).toByteArray());
+    }
+
+    @Test
+    public void sizesVarints() {
+        assertEquals(1, TlvWriter.varintLength(0));
+        assertEquals(1, TlvWriter.varintLength(127));
+        assertEquals(2, TlvWriter.varintLength(128));
+        assertEquals(3, TlvWriter.varintLength(1 << 14));
+        assertEquals(5, TlvWriter.varintLength(Integer.MAX_VALUE));
+        assertEquals(5, TlvWriter.varintLength(-1));
+    }
+
+    @Test
+    public void encodesStringsLikeStringGetBytes() {
+        for (String text : new String[]{"hello", "aé€😀", "日本語", "\u0000\u007F\u0080߿ࠀ￿", "a\uD800b", "\uDC00"}) {
+            byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+            byte[] encoded = new TlvWriter().putString(7, text).toByteArray();
+            assertEquals(text, 7, encoded[0]);
+            assertEquals(text, utf8.length, encoded[1]);
+            assertArrayEquals(text, utf8, copy(encoded, 2, encoded.length));
+        }
+    }
+
+    @Test
+    public void leavesEmptyStringsOut() {
+        TlvWriter writer = new TlvWriter().putString(1, "").putString(2, null);
+
+        assertEquals(0, writer.size());
+        assertEquals(0, writer.toByteArray().length);
+    }
+
+    @Test
+    public void growsPastItsCapacity() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            text.append("€");
+        byte[] encoded = new TlvWriter(4).putByte(9).putString(1, text.toString()).toByteArray();
+
+        assertEquals(1 + 1 + 2 + 300, encoded.length);
+        assertArrayEquals(bytes(9, 1, 0xAC, 0x02), copy(encoded, 0, 4));
+    }
+
+    @Test
+    public void startsAfreshAfterReset() {
+        TlvWriter writer = new TlvWriter(8);
+        byte[] first = writer.putString(1, "a long first message").toByteArray();
+        byte[] second = writer.reset().putInt(2, 5).toByteArray();
+
+        assertArrayEquals(bytes(2, 1, 5), second);
+        assertNotSame(first, second);
+        assertEquals('a', first[2]);
+    }
+
+    @Test
+    public void encodesAPostedNotification() {
+        Notification notification = new Notification(MsgType.POSTED, "org.example", 300, "Example",
+                "ios-example", "Summary €", "", "normal");
+        byte[] encoded = notification.toTlv(new TlvWriter());
+
+        assertEquals(Notification.TLV_POSTED, encoded[0]);
+        Map<Integer, byte[]> fields = decode(encoded);
+        assertArrayEquals(bytes(0xAC, 0x02), fields.get(Notification.TLV_ID));
+        assertEquals("org.example", utf8(fields.get(Notification.TLV_PACKAGE_NAME)));
+        assertEquals("normal", utf8(fields.get(Notification.TLV_VIBRATION)));
+        assertEquals("Example", utf8(fields.get(Notification.TLV_APP_NAME)));
+        assertEquals("ios-example", utf8(fields.get(Notification.TLV_APP_ICON)));
+        assertEquals("Summary €", utf8(fields.get(Notification.TLV_SUMMARY)));
+        assertFalse(fields.containsKey(Notification.TLV_BODY));
+    }
+
+    @Test
+    public void encodesARemovedNotification() {
+        byte[] encoded = new Notification(MsgType.REMOVED, 7).toTlv(new TlvWriter());
+
+        assertArrayEquals(bytes(Notification.TLV_REMOVED, Notification.TLV_ID, 1, 7), encoded);
+    }
+
+    /**
+     * Reads the fields following the message type byte the way the watch does.
+     */
+    private static Map<Integer, byte[]> decode(byte[] message) {
+        Map<Integer, byte[]> fields = new HashMap<>();
+        int offset = 1;
+        while (offset < message.length) {
+            int tag = message[offset++];
+            int length = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = message[offset++] & 0xFF;
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            fields.put(tag, copy(message, offset, offset + length));
+            offset += length;
+        }
+        return fields;
+    }
+
+    private static byte[] copy(byte[] data, int from, int to) {
+        byte[] copy = new byte[to - from];
+        System.arraycopy(data, from, copy, 0, copy.length);
+        return copy;
+    }
+
+    private static String utf8(byte[] data) {
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            bytes[i] = (byte) values[i];
+        return bytes;
+    }
+}